@@ -0,0 +1,75 @@
+/*
+ * Copyright 2022 ConsenSys Software Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software dis-
+ * tributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package dafnyevm.crypto;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the scalar and vectorised implementations of the Blake2b
+ * compression function for small, medium and large numbers of rounds. This can
+ * be run with <code>gradle jmh</code>.
+ *
+ * @author David J. Pearce
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(value = 1, jvmArgsAppend = { "--add-modules", "jdk.incubator.vector" })
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class Blake2bBenchmark {
+    @Param({ "12", "1000", "1000000" })
+    public long rounds;
+
+    private final Blake2bVector vector = new Blake2bVector();
+    private long[] h = new long[8];
+    private long[] m = new long[16];
+    private long[] t = new long[2];
+
+    @Setup
+    public void setup() {
+        Random random = new Random(rounds);
+        for (int i = 0; i != h.length; ++i) {
+            h[i] = random.nextLong();
+        }
+        for (int i = 0; i != m.length; ++i) {
+            m[i] = random.nextLong();
+        }
+        t[0] = random.nextLong();
+    }
+
+    @Benchmark
+    public long[] scalar() {
+        return Blake2b.scalarF(rounds, h.clone(), m, t, true);
+    }
+
+    @Benchmark
+    public long[] vector() {
+        return vector.F(rounds, h.clone(), m, t, true);
+    }
+}
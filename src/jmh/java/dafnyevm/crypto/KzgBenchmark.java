@@ -0,0 +1,89 @@
+/*
+ * Copyright 2022 ConsenSys Software Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software dis-
+ * tributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package dafnyevm.crypto;
+
+import java.math.BigInteger;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import dafnyevm.crypto.Bls12381.Fp;
+import dafnyevm.crypto.Bls12381.Fp2;
+import dafnyevm.crypto.Bls12381.Lines;
+import dafnyevm.crypto.Bls12381.Point;
+
+/**
+ * Measures the cost of verifying a KZG proof, and of the pairing check at its
+ * heart with and without precomputed line functions for the (fixed) G2 points.
+ * This can be run with <code>gradle jmh</code>.
+ *
+ * @author David J. Pearce
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class KzgBenchmark {
+    private Kzg kzg;
+    private Point<Fp> commitment;
+    private Point<Fp> proof;
+    private BigInteger z;
+    private BigInteger y;
+    private Point<Fp2> negG2;
+    private Point<Fp2> tauG2;
+    private List<Lines> lines;
+
+    @Setup
+    public void setup() {
+        // Linear polynomial f(X) = a + bX, whose proof at any point is [b]G1.
+        BigInteger tau = new BigInteger("1234567890123456789");
+        BigInteger a = BigInteger.valueOf(42), b = BigInteger.valueOf(7);
+        tauG2 = Bls12381.G2.multiply(tau);
+        negG2 = Bls12381.G2.negate();
+        kzg = new Kzg(tauG2);
+        commitment = Bls12381.G1.multiply(a.add(b.multiply(tau)));
+        proof = Bls12381.G1.multiply(b);
+        z = BigInteger.valueOf(3);
+        y = a.add(b.multiply(z));
+        lines = List.of(Lines.of(negG2), Lines.of(tauG2));
+    }
+
+    @Benchmark
+    public boolean verifyProof() {
+        return kzg.verifyProof(commitment, z, y, proof);
+    }
+
+    @Benchmark
+    public boolean pairingPrecomputed() {
+        return Bls12381.pairingCheck(List.of(Bls12381.G1, Bls12381.G1), lines);
+    }
+
+    @Benchmark
+    public boolean pairing() {
+        return Bls12381.pairingCheck(List.of(Bls12381.G1, Bls12381.G1), List.of(Lines.of(negG2), Lines.of(tauG2)));
+    }
+}
@@ -14,6 +14,8 @@
 package dafnyevm;
 
 import static EVM.__default.Execute;
+import static EVM.__default.ExecuteN;
+import static EVM.__default.ExecuteNCount;
 import static Gas.__default.CostInitCode;
 import static Gas.__default.G__ACCESS__LIST__ADDRESS__COST;
 import static Gas.__default.G__ACCESS__LIST__STORAGE__KEY__COST;
@@ -25,10 +27,17 @@ import org.web3j.rlp.RlpEncoder;
 import org.web3j.rlp.RlpList;
 import org.web3j.rlp.RlpString;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import EvmState.Continuation_CALLS;
 import EvmState.Continuation_CREATES;
@@ -36,21 +45,27 @@ import EvmState.State_CONTINUING;
 import EvmState.State_ERROR;
 import EvmState.State_EXECUTING;
 import EvmState.State_RETURNS;
-import static EvmFork.__default.BERLIN;
-import static EvmFork.__default.LONDON;
-import static EvmFork.__default.SHANGHAI;
-import static EvmFork.__default.CANCUN;
 import WorldState.Account;
 import dafny.DafnyMap;
 import dafny.DafnySequence;
 import dafny.Tuple2;
+import dafny.Tuple3;
 import evmtools.core.Eip1559Transaction;
 import evmtools.core.LegacyTransaction;
 import evmtools.core.Transaction;
 import evmtools.core.Transaction.Access;
+import evmtools.util.Bytecodes;
 import evmtools.util.Hex;
+import dafnyevm.util.BlockHashes;
+import dafnyevm.util.Bloom;
+import dafnyevm.util.CodeCache;
 import dafnyevm.util.Errors;
+import dafnyevm.util.Forks;
+import dafnyevm.util.PrecompileRegistry;
 import dafnyevm.util.Precompiles;
+import dafnyevm.util.Predictor;
+import dafnyevm.util.Receipt;
+import dafnyevm.util.StateTrie;
 import dafnyevm.util.Word.Uint160;
 import dafnyevm.util.Word.Uint256;
 
@@ -71,6 +86,19 @@ public class DafnyEvm {
      * Constant for EIP3651 "Warm Coinbase".
      */
     private static final BigInteger EIP3651 = BigInteger.valueOf(3651);
+    /**
+     * Constant for EIP4844 "Shard Blob Transactions", which adds the point
+     * evaluation precompile.
+     */
+    private static final BigInteger EIP4844 = BigInteger.valueOf(4844);
+    /**
+     * Address of the point evaluation precompile.
+     */
+    private static final BigInteger POINT_EVALUATION = BigInteger.valueOf(10);
+    /**
+     * Constant for EIP3529 "Reduction in refunds".
+     */
+    private static final BigInteger EIP3529 = BigInteger.valueOf(3529);
     /**
      * Constant for EIP2930 "optional access lists".
      */
@@ -79,6 +107,21 @@ public class DafnyEvm {
      * Constant for EIP1159 
      */
     private static final BigInteger EIP1559 = BigInteger.valueOf(1559);
+    /**
+     * Maximum number of bytecodes executed in a single batch when no tracer is
+     * installed. Batches end early on any non-executing state (including
+     * continuations), so this just needs to be large.
+     */
+    private static final BigInteger UNTRACED_BATCH = BigInteger.valueOf(1_000_000);
+    /**
+     * Used for truncating words into addresses.
+     */
+    private static final BigInteger TWO_160 = BigInteger.ONE.shiftLeft(160);
+    /**
+     * Minimum number of accounts for which world state is constructed in
+     * parallel.
+     */
+    private static final int PARALLEL_THRESHOLD = 256;
 	/**
 	 * A default tracer which does nothing.
 	 */
@@ -100,20 +143,44 @@ public class DafnyEvm {
 	/**
 	 * Fork defines which environment to execute contract code within.
 	 */
-	private EvmFork.Fork fork = BERLIN();
+	private EvmFork.Fork fork = Forks.BERLIN;
 	/**
-	 * Native implementation of precompiled contracts.
+	 * Determines which implementation of each precompiled contract is used.
 	 */
-    private Precompiled.T NATIVE_PRECOMPILES = Precompiled.T.create(Precompiles::ecdsaRecover,
-            Precompiles::sha256, Precompiles::ripEmd160, Precompiles::blake2f, Precompiles::sha3);
+	private PrecompileRegistry precompiles = PrecompileRegistry.getDefault();
 	/**
 	 * World state to use for this call.
 	 */
-	private DafnyMap<BigInteger, Account> worldState = new DafnyMap<>();
+	private volatile DafnyMap<BigInteger, Account> worldState = new DafnyMap<>();
 	/**
 	 * Current block information.
 	 */
 	private BlockInfo blockInfo = new BlockInfo();
+	/**
+	 * Used to compute the state root of the world state produced by a
+	 * transaction. This can be shared between transactions (e.g. in the same
+	 * block) so that only the accounts changed by each are rehashed.
+	 */
+	private StateTrie stateTrie = new StateTrie();
+	/**
+	 * Cache of compiled contract code used for tiered execution (or
+	 * <code>null</code> if tiered execution is disabled).
+	 */
+	private CodeCache codeCache = null;
+	/**
+	 * Engine used to execute bytecodes (when no tracer is installed).
+	 */
+	private Engine engine = Engine.FUNCTIONAL;
+	/**
+	 * Resolves accounts and storage which are missing from the world state (or
+	 * <code>null</code> if the world state is assumed complete).
+	 */
+	private Resolver resolver = null;
+	/**
+	 * Counts the bytecodes executed (or <code>null</code> if they are not being
+	 * counted).
+	 */
+	private Counter counter = null;
 
 	/**
 	 * Set the tracer to use during execution of this EVM. Tracers provide a
@@ -134,24 +201,17 @@ public class DafnyEvm {
 	 * @return
 	 */
 	public DafnyEvm fork(String forkStr) {
-		EvmFork.Fork fork;
-		switch(forkStr.toUpperCase()) {
-		case "BERLIN":
-			fork = BERLIN();
-			break;
-		case "CANCUN":
-			fork = CANCUN();
-			break;			
-		case "LONDON":
-			fork = LONDON();
-			break;
-		case "SHANGHAI":
-			fork = SHANGHAI();
-			break;
-		default:
-			throw new IllegalArgumentException("invalid fork: \"" + forkStr + "\"");
-		}
-		return fork(fork);
+		return fork(toFork(forkStr));
+	}
+
+	/**
+	 * Determine the fork with a given name (ignoring case).
+	 *
+	 * @param forkStr
+	 * @return
+	 */
+	public static EvmFork.Fork toFork(String forkStr) {
+		return Forks.of(forkStr);
 	}
 
 	public DafnyEvm fork(EvmFork.Fork fork) {
@@ -159,6 +219,83 @@ public class DafnyEvm {
 		return this;
 	}
 
+	/**
+	 * Set the registry which determines whether each precompiled contract is
+	 * executed using its Dafny model or a native implementation.
+	 *
+	 * @param precompiles
+	 * @return
+	 */
+	public DafnyEvm precompiles(PrecompileRegistry precompiles) {
+		this.precompiles = precompiles;
+		return this;
+	}
+
+	/**
+	 * Enable tiered execution, where contracts entered at least
+	 * <code>threshold</code> times are compiled and (when no tracer is installed)
+	 * executed in their compiled form.
+	 *
+	 * @param threshold
+	 * @return
+	 */
+	public DafnyEvm tiered(int threshold) {
+		return tiered(new CodeCache(threshold));
+	}
+
+	/**
+	 * Enable tiered execution using a given code cache. This allows compiled code
+	 * to be shared across multiple EVM instances (e.g. when replaying a sequence of
+	 * transactions).  Passing <code>null</code> disables tiered execution.
+	 *
+	 * @param cache
+	 * @return
+	 */
+	public DafnyEvm tiered(CodeCache cache) {
+		this.codeCache = cache;
+		return this;
+	}
+
+	/**
+	 * Set the engine used to execute bytecodes. Since the imperative engine does
+	 * not expose intermediate states, it is only used when no tracer is installed.
+	 *
+	 * @param engine
+	 * @return
+	 */
+	public DafnyEvm engine(Engine engine) {
+		this.engine = engine;
+		return this;
+	}
+
+	/**
+	 * Set a counter for the number of bytecodes executed. Unlike counting steps
+	 * with a tracer, this does not prevent bytecodes from being executed in
+	 * batches, by compiled code or by an imperative frame.
+	 *
+	 * @param counter
+	 * @return
+	 */
+	public DafnyEvm counter(Counter counter) {
+		this.counter = counter;
+		return this;
+	}
+
+	/**
+	 * Set the provider from which accounts (and storage) missing from the world
+	 * state are fetched. When a provider is installed, execution is suspended at
+	 * any point where it touches something which is not yet known, and resumed
+	 * once it has been fetched. Passing <code>null</code> indicates the world
+	 * state is complete.
+	 *
+	 * @param provider
+	 * @return
+	 */
+	public DafnyEvm stateProvider(StateProvider provider) {
+		this.resolver = (provider == null) ? null : new Resolver(provider);
+		return this;
+	}
+
 	/**
 	 * Set the block info to use when executing transactions.
 	 *
@@ -170,6 +307,19 @@ public class DafnyEvm {
 		return this;
 	}
 
+	/**
+	 * Set the trie used to compute state roots. Sharing a trie between the
+	 * transactions of a block means each state root is computed incrementally
+	 * from the last.
+	 *
+	 * @param trie
+	 * @return
+	 */
+	public DafnyEvm stateTrie(StateTrie trie) {
+		this.stateTrie = trie;
+		return this;
+	}
+
     /**
      * Calculate the intrisinc gas required for the transaction as it currently
      * stands.
@@ -219,12 +369,94 @@ public class DafnyEvm {
 	}
 
 	public DafnyEvm create(BigInteger address, BigInteger nonce, BigInteger endowment, Map<BigInteger, BigInteger> storage, byte[] bytecode) {
+		this.worldState = DafnyMap.update(worldState, address, toAccount(nonce, endowment, storage, bytecode));
+		if (resolver != null) {
+			// Storage for this account is now considered complete.
+			resolver.complete(address);
+		}
+		return this;
+	}
+
+	/**
+	 * Add a given set of accounts to the world state in bulk, replacing any
+	 * existing accounts at the same addresses. Unlike repeatedly calling
+	 * <code>create()</code> (which copies the entire world state for each
+	 * account), this builds the world state in a single pass and, hence, takes
+	 * linear time. Furthermore, for large numbers of accounts (e.g. a genesis
+	 * allocation), the code of each account is hashed in parallel.
+	 *
+	 * @param accounts
+	 * @return
+	 */
+	public DafnyEvm worldState(Map<BigInteger, ? extends evmtools.core.Account> accounts) {
+		HashMap<BigInteger, Account> ws = new HashMap<>();
+		worldState.forEach((k, v) -> ws.put(k, v));
+		ws.putAll(toAccounts(accounts));
+		this.worldState = new DafnyMap<>(ws);
+		complete(accounts.keySet());
+		return this;
+	}
+
+	/**
+	 * Add a previously converted world state, replacing any existing accounts at
+	 * the same addresses. Since a <code>Prestate</code> is immutable, it can be
+	 * shared between any number of EVM instances (e.g. when running the same
+	 * test against different forks) and need only be converted once. When this
+	 * EVM has no existing accounts, the prestate is used directly without
+	 * copying.
+	 *
+	 * @param prestate
+	 * @return
+	 */
+	public DafnyEvm worldState(Prestate prestate) {
+		if (worldState.size() == 0) {
+			this.worldState = prestate.accounts;
+		} else {
+			HashMap<BigInteger, Account> ws = new HashMap<>();
+			worldState.forEach((k, v) -> ws.put(k, v));
+			prestate.accounts.forEach((k, v) -> ws.put(k, v));
+			this.worldState = new DafnyMap<>(ws);
+		}
+		complete(prestate.accounts.keySet().Elements());
+		return this;
+	}
+
+	/**
+	 * Mark the storage for a given set of accounts as complete, such that no
+	 * further requests are made for them.
+	 *
+	 * @param addresses
+	 */
+	private void complete(Iterable<BigInteger> addresses) {
+		if (resolver != null) {
+			addresses.forEach(resolver::complete);
+		}
+	}
+
+	/**
+	 * Convert a set of accounts into their Dafny representation. For large
+	 * numbers of accounts (e.g. a genesis allocation), the code of each account
+	 * is hashed in parallel.
+	 *
+	 * @param accounts
+	 * @return
+	 */
+	private static Map<BigInteger, Account> toAccounts(Map<BigInteger, ? extends evmtools.core.Account> accounts) {
+		Stream<? extends Map.Entry<BigInteger, ? extends evmtools.core.Account>> entries = accounts.entrySet().stream();
+		if (accounts.size() >= PARALLEL_THRESHOLD) {
+			entries = entries.parallel();
+		}
+		return entries.collect(Collectors.toMap(e -> e.getKey(), e -> {
+			evmtools.core.Account a = e.getValue();
+			return toAccount(a.nonce, a.balance, a.storage, a.code);
+		}));
+	}
+
+	private static WorldState.Account toAccount(BigInteger nonce, BigInteger endowment, Map<BigInteger, BigInteger> storage, byte[] bytecode) {
 		DafnyMap<BigInteger,BigInteger> store = new DafnyMap<BigInteger,BigInteger>(storage);
 		DafnySequence<Byte> code = DafnySequence.fromBytes(bytecode);
 		BigInteger hash = Precompiles.sha3(code);
-		WorldState.Account acct = WorldState.__default.CreateAccount(nonce, endowment, store, code, hash);
-		this.worldState = DafnyMap.update(worldState, address, acct);
-		return this;
+		return WorldState.__default.CreateAccount(nonce, endowment, store, code, hash);
 	}
 
     /**
@@ -234,6 +466,55 @@ public class DafnyEvm {
      * @return
      */
 	public DafnyEvm.State<?> execute(Transaction tx) {
+		if (resolver == null) {
+			return execute(tx, null, null).join();
+		} else {
+			return executeAsync(tx).join();
+		}
+	}
+
+	/**
+	 * Attempt to execute a transaction on the network, fetching any accounts (or
+	 * storage) missing from the world state using the installed state provider
+	 * (if any). The accounts touched by the transaction itself (i.e. sender,
+	 * recipient, coinbase and access list) are fetched before execution begins
+	 * (see <code>prefetch()</code>), whilst all others are fetched as execution
+	 * reaches them.
+	 *
+	 * @param tx
+	 * @return
+	 */
+	public CompletableFuture<DafnyEvm.State<?>> executeAsync(Transaction tx) {
+		if (resolver == null) {
+			return execute(tx, null, null);
+		} else {
+			final Resolver r = resolver;
+			return r.prefetch(tx).thenCompose(p -> execute(tx, r, p));
+		}
+	}
+
+	/**
+	 * Fetch the accounts (and storage) touched by a given transaction ahead of its
+	 * execution, using the installed state provider (if any). Everything is
+	 * requested in parallel, including the contents of the access list and any
+	 * storage keys (or accounts) predicted from the recipient's code. This can
+	 * be used to overlap fetching state for the next transaction in a block with
+	 * execution of the current one. Requests still outstanding when the
+	 * transaction is executed are not repeated.
+	 *
+	 * @param tx
+	 * @return
+	 */
+	public CompletableFuture<Void> prefetch(Transaction tx) {
+		if (resolver == null) {
+			return CompletableFuture.completedFuture(null);
+		} else {
+			return resolver.prefetch(tx).thenApply(p -> null);
+		}
+	}
+
+	private CompletableFuture<DafnyEvm.State<?>> execute(Transaction tx, Resolver resolver,
+			Predictor.Prediction prediction) {
         WorldState.T ws = WorldState.__default.Create(worldState);
         DafnyMap ts = TransientStorage.__default.Create();
         SubState.Raw ss = SubState.__default.Create();
@@ -247,7 +528,10 @@ public class DafnyEvm {
 	    BigInteger maxFeePerGas;
 	    // Check block limit
 	    if(tx.gasLimit().compareTo(blockInfo.gasLimit) > 0) {
-	    	return new State.Invalid(tracer,Transaction.Outcome.GAS_LIMIT_REACHED);	    	
+	    	return invalid(Transaction.Outcome.GAS_LIMIT_REACHED);	    	
+	    } else if(tx.gasLimit().bitLength() > 64) {
+	    	// Gas is represented as a u64 within the EVM
+	    	return invalid(Transaction.Outcome.GAS_LIMIT_REACHED);
 	    }
         // Account for access list
 		if (tx.accessList() != null && fork.IsActive(EIP2930)) {
@@ -261,13 +545,17 @@ public class DafnyEvm {
 				}
 			}
 		}
+		// Precompiles are always warm (but only exist from the fork introducing them)
+		if (fork.IsActive(EIP4844)) {
+			ss = ss.AccountAccessed(POINT_EVALUATION);
+		}
 	    //
 	    if (gas.compareTo(BigInteger.ZERO) < 0) {
-            return new State.Invalid(tracer,Transaction.Outcome.INTRINSIC_GAS);
+            return invalid(Transaction.Outcome.INTRINSIC_GAS);
         } else if(tx instanceof Eip1559Transaction) {
         	if(!fork.IsActive(EIP1559)) {
         		// Transaction type is not supported.
-        		return new State.Invalid(tracer,Transaction.Outcome.UNKNOWN);
+        		return invalid(Transaction.Outcome.UNKNOWN);
         	}
             Eip1559Transaction etx = (Eip1559Transaction) tx;
             maxFeePerGas = etx.maxFeePerGas();
@@ -277,9 +565,9 @@ public class DafnyEvm {
             effectiveGasPrice = priority_fee_per_gas.add(blockInfo.baseFee);
             // Total must be larger of two
             if(maxFeePerGas.compareTo(blockInfo.baseFee) < 0) {
-            	return new State.Invalid(tracer,Transaction.Outcome.INSUFFICIENT_FUNDS);
+            	return invalid(Transaction.Outcome.INSUFFICIENT_FUNDS);
             } else if(maxFeePerGas.compareTo(etx.maxPriorityFeePerGas()) < 0) {
-            	return new State.Invalid(tracer,Transaction.Outcome.INSUFFICIENT_FUNDS);
+            	return invalid(Transaction.Outcome.INSUFFICIENT_FUNDS);
             }
         } else {
             LegacyTransaction ltx = (LegacyTransaction) tx;
@@ -291,9 +579,9 @@ public class DafnyEvm {
         BigInteger balance = worldState.get(tx.sender()).dtor_balance();
         //
         if(cost.compareTo(balance) > 0) {
-            return new State.Invalid(tracer,Transaction.Outcome.INSUFFICIENT_FUNDS);
+            return invalid(Transaction.Outcome.INSUFFICIENT_FUNDS);
         } else if(balance.compareTo(tx.gasLimit().multiply(maxFeePerGas)) < 0) {
-            return new State.Invalid(tracer,Transaction.Outcome.INSUFFICIENT_FUNDS);
+            return invalid(Transaction.Outcome.INSUFFICIENT_FUNDS);
         } else {
             // Pay for transaction execution
             ws = ws.Withdraw(tx.sender(), cost);
@@ -314,7 +602,7 @@ public class DafnyEvm {
 	        	ss = ss.AccountAccessed(blockInfo.coinBase);
 	        }
 	        // Begin the call.
-	        st = EvmState.__default.Call(ws, ts, ctx, fork, NATIVE_PRECOMPILES, ss, tx.to(), tx.value(), gas,
+	        st = EvmState.__default.Call(ws, ts, ctx, fork, precompiles.dispatcher(fork), ss, tx.to(), tx.value(), gas,
 	                BigInteger.ONE);
 	    } else {
 	        // Contract creation
@@ -327,110 +615,826 @@ public class DafnyEvm {
 	        Context.T ctx = Context.__default.Create(tx.sender(), tx.sender(), address, tx.value(),
 	                DafnySequence.fromBytes(new byte[0]), true, effectiveGasPrice, blockInfo.toDafny());
 	        // Begin the call.
-	        st = EvmState.__default.Create(ws, ts, ctx, fork, NATIVE_PRECOMPILES, ss, callData, gas, BigInteger.ONE);
+	        st = EvmState.__default.Create(ws, ts, ctx, fork, precompiles.dispatcher(fork), ss, callData, gas, BigInteger.ONE);
 	    }
 	    // Execute bytecodes!
 	    if(st instanceof State_EXECUTING) {
-	        st = run(tx, 0, tracer, (State_EXECUTING) st);
-	        // Sanity check returned contract code (for contract creation)
-	        if (tx.to() == null && st.is_RETURNS()) {
-	            State_RETURNS rst = (State_RETURNS) st;
-	            // Sanity check contract size
-	            if (rst.dtor_data().length() > MAX_CODE_SIZE) {
-	                // Contract being created is too large.
-	                EvmState.Error err = EvmState.Error.create_CODESIZE__EXCEEDED();
-	                st = EvmState.State.create_ERROR(err, BigInteger.ZERO, DafnySequence.fromBytes(new byte[0]));
-	            }
+	        // Compiled code is only used when tracing is disabled.
+	        CodeCache cache = (tracer == DEFAULT_TRACER) ? codeCache : null;
+	        CodeCache.Compiled code = (cache != null && tx.to() != null) ? enter(cache, ws, tx.to()) : null;
+	        Execution exec = new Execution(tracer, cache, engine, counter, resolver, prediction, code, (State_EXECUTING) st);
+	        if(resolver == null) {
+	            return CompletableFuture.completedFuture(finish(tx, exec.resume()));
+	        } else {
+	            return exec.complete().thenApply(r -> {
+	                if (prediction != null) {
+	                    tracer.predicted(prediction);
+	                }
+	                return finish(tx, r);
+	            });
+	        }
+	    }
+	    return CompletableFuture.completedFuture(finish(tx, st));
+	}
+
+	/**
+	 * Convert the final state of a transaction back into the Java API.
+	 *
+	 * @param tx
+	 * @param st
+	 * @return
+	 */
+	private DafnyEvm.State<?> finish(Transaction tx, EvmState.State st) {
+	    // Sanity check returned contract code (for contract creation)
+	    if (tx.to() == null && st.is_RETURNS()) {
+	        State_RETURNS rst = (State_RETURNS) st;
+	        // Sanity check contract size
+	        if (rst.dtor_data().length() > MAX_CODE_SIZE) {
+	            // Contract being created is too large.
+	            EvmState.Error err = EvmState.Error.create_CODESIZE__EXCEEDED();
+	            st = EvmState.State.create_ERROR(err, BigInteger.ZERO, DafnySequence.fromBytes(new byte[0]));
 	        }
 	    }
 	    // NOTE: should refund unused gas?
 	    // Convert back into the Java API
+	    if (st instanceof State_RETURNS) {
+	        return new State.Return(tracer, (State_RETURNS) st, 0, stateTrie);
+	    }
 	    return State.from(0,tracer,st);
 	}
 
 	/**
-	 * Execute dafny EVM until it reaches a terminal (or continuation) state.
+	 * Determine the gas used by a transaction which has been executed, after any
+	 * refund. The refund is capped at half of the gas used or, from EIP3529, at
+	 * one fifth.
+	 *
+	 * @param tx The transaction executed.
+	 * @param st The final state of its execution.
+	 * @return
+	 */
+	public BigInteger gasUsed(Transaction tx, State<?> st) {
+		BigInteger used = tx.gasLimit().subtract(st.getGas());
+		if (st instanceof State.Return) {
+			BigInteger quotient = BigInteger.valueOf(fork.IsActive(EIP3529) ? 5 : 2);
+			used = used.subtract(((State.Return) st).getRefund().min(used.divide(quotient)));
+		}
+		return used;
+	}
+
+	private CompletableFuture<DafnyEvm.State<?>> invalid(Transaction.Outcome outcome) {
+		return CompletableFuture.completedFuture(new State.Invalid(tracer, outcome));
+	}
+
+	/**
+	 * Execute dafny EVM until it reaches a terminal state. Nested contract calls
+	 * and creations are managed using an explicit stack of frames (rather than
+	 * recursion), where each frame corresponds to a single executing EVM. When a
+	 * frame reaches a continuation, a child frame is entered (via
+	 * <code>CallEnter</code> or <code>CreateEnter</code>) and, when the child
+	 * terminates, its result is passed back to its parent (via
+	 * <code>CallReturn</code> or <code>CreateReturn</code>). Thus, the depth of
+	 * the Java stack does not depend upon the depth of the EVM call stack.
 	 *
 	 * @param tracer  Tracer to use for generating debug information (if required).
-	 * @param context Enclosing Dafny context.
-	 * @param state   Current DafnyEvm state.
+	 * @param cache   Code cache for tiered execution (or <code>null</code> if disabled).
+	 * @param engine  Engine used to execute bytecodes when no tracer is installed.
+	 * @param code    Compiled form of the code being executed (or <code>null</code> if none).
+	 * @param root    Initial DafnyEvm state.
 	 * @return
 	 */
-    protected static EvmState.State run(Transaction tx, int depth, Tracer tracer, State_EXECUTING _st) {
-        EvmState.State st = _st;
-        tracer.enter(st);
-        // Continue whilst the EVM is happy.
-        while (st.is_EXECUTING()) {
-            tracer.step(depth, (EvmState.State_EXECUTING) st);
-            st = Execute(st);
-            // Manage continuations
-            if (st.is_CONTINUING()) {
-                EvmState.Continuation cc = ((State_CONTINUING) st)._a0;
-                if (cc.is_CALLS()) {
-                    st = callContinue(tx, depth, tracer, (Continuation_CALLS) cc);
-                } else {
-                    st = createContinue(tx, depth, tracer, (Continuation_CREATES) cc);
-                }
-            }
-        }
-        // Final step
-        tracer.leave(depth, st);
-        //
-        return st;
-    }
+	protected static EvmState.State run(Transaction tx, Tracer tracer, CodeCache cache, Engine engine, CodeCache.Compiled code, State_EXECUTING root) {
+		return new Execution(tracer, cache, engine, null, null, null, code, root).resume();
+	}
+
+	/**
+	 * Represents the execution of a single transaction, as managed by
+	 * <code>run()</code>. Since the entire state of an execution is held in its
+	 * stack of frames, it can be suspended at any point between bytecodes and
+	 * later resumed. This happens when a resolver is present and execution
+	 * touches an account (or storage location) which is not yet known. In such
+	 * case, execution is suspended until the missing state has been fetched and
+	 * loaded into every frame.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private static final class Execution {
+		/**
+		 * Stack of executing frames, where the topmost frame is currently executing.
+		 */
+		private final ArrayDeque<Frame> frames = new ArrayDeque<>();
+		private final Tracer tracer;
+		private final CodeCache cache;
+		private final Engine engine;
+		/**
+		 * Counts the bytecodes executed (or <code>null</code>).
+		 */
+		private final Counter counter;
+		/**
+		 * Resolver for missing state (or <code>null</code> if the world state is
+		 * complete).
+		 */
+		private final Resolver resolver;
+		/**
+		 * State predicted to be touched by this execution, against which accesses are
+		 * recorded (or <code>null</code> if there is no prediction).
+		 */
+		private final Predictor.Prediction prediction;
+		/**
+		 * The request on which this execution is currently suspended (or
+		 * <code>null</code> if it is not suspended).
+		 */
+		private CompletableFuture<Load> pending;
+
+		public Execution(Tracer tracer, CodeCache cache, Engine engine, Counter counter, Resolver resolver,
+				Predictor.Prediction prediction, CodeCache.Compiled code, State_EXECUTING root) {
+			this.tracer = tracer;
+			this.cache = cache;
+			this.engine = engine;
+			this.counter = counter;
+			this.resolver = resolver;
+			this.prediction = prediction;
+			frames.push(new Frame(0, null, null, code, root));
+			tracer.enter(root);
+		}
+
+		/**
+		 * Run this execution to completion, suspending whenever necessary. The
+		 * returned future completes with the terminal state of the outermost frame.
+		 *
+		 * @return
+		 */
+		public CompletableFuture<EvmState.State> complete() {
+			CompletableFuture<EvmState.State> result = new CompletableFuture<>();
+			drive(result);
+			return result;
+		}
+
+		private void drive(CompletableFuture<EvmState.State> result) {
+			try {
+				EvmState.State st;
+				while ((st = resume()) == null) {
+					// Keep going for as long as requests complete immediately, since this
+					// avoids unnecessary recursion.
+					if (!pending.isDone()) {
+						pending.whenComplete((l, e) -> {
+							if (e != null) {
+								result.completeExceptionally(e);
+							} else {
+								drive(result);
+							}
+						});
+						return;
+					}
+				}
+				result.complete(st);
+			} catch (Throwable e) {
+				result.completeExceptionally(e);
+			}
+		}
+
+		/**
+		 * Continue executing from wherever this execution was suspended, returning
+		 * either the terminal state of the outermost frame, or <code>null</code> if
+		 * execution has been suspended (again).
+		 *
+		 * @return
+		 */
+		public EvmState.State resume() {
+			if (pending != null) {
+				load(pending.join());
+				pending = null;
+			}
+			//
+			while (true) {
+				Frame frame = frames.peek();
+				EvmState.State st;
+				// Execute frame until it reaches a non-executing state.
+				if (resolver == null) {
+					st = frame.run(tracer, engine, counter);
+				} else if ((pending = frame.run(tracer, resolver, prediction, counter)) != null) {
+					return null;
+				} else {
+					st = frame.state;
+				}
+				//
+				if (st.is_CONTINUING()) {
+					State_CONTINUING cst = (State_CONTINUING) st;
+					if (resolver != null && (pending = resolver.check(cst)) != null) {
+						return null;
+					}
+					Frame child = enter(frame, cache, cst);
+					if (child.state.is_EXECUTING()) {
+						frames.push(child);
+						tracer.enter(child.state);
+					} else {
+						// Child terminated immediately (e.g. call to a precompile)
+						frame.state = child.exit(child.state);
+					}
+				} else {
+					tracer.leave(frame.depth, st);
+					frames.pop();
+					if (frame.cc == null) {
+						return st;
+					}
+					// Return to parent
+					frames.peek().state = frame.exit(st);
+				}
+			}
+		}
+
+		/**
+		 * Load some newly fetched state into every frame (including any suspended
+		 * continuations). This ensures that, should a nested call revert, the
+		 * fetched state remains.
+		 *
+		 * @param l
+		 */
+		private void load(Load l) {
+			for (Frame f : frames) {
+				f.state = l.apply(f.state);
+				if (f.cc != null) {
+					f.cc = l.apply(f.cc);
+				}
+			}
+		}
+	}
 
 	/**
-	 * Manage a nested contract call. This creates a child EVM to execute the
-	 * contract code, and then marshalls the return data back from that (along with
-	 * other things, like the logs).
+	 * Enter a nested contract call or creation, as described by a given
+	 * continuation. The state of the resulting frame may or may not be executing.
 	 *
-	 * @param cc    The continuation state.
-	 * @param depth The current call depth.
+	 * @param parent The frame which has reached the continuation.
+	 * @param cache  Code cache for tiered execution (or <code>null</code> if disabled).
+	 * @param st     The continuation state.
 	 * @return
 	 */
-	private static EvmState.State callContinue(Transaction tx, int depth, Tracer tracer, EvmState.Continuation_CALLS cc) {
-	    // Sanity check precondition for CallEnter
-        if(!cc.dtor_evm().dtor_world().Exists(cc._sender)) {
-            throw new IllegalArgumentException("Non-existent sender account!");
-        }
-	    //
-		EvmState.State st = cc.CallEnter(BigInteger.valueOf(depth));
-		//
-		if(st instanceof State_EXECUTING) {
-		    // Run code within recursive call.
-		    st = run(tx, depth + 1, tracer, (State_EXECUTING) st);
+	private static Frame enter(Frame parent, CodeCache cache, State_CONTINUING st) {
+		EvmState.Continuation cc = st._a0;
+		BigInteger depth = BigInteger.valueOf(parent.depth);
+		if (cc.is_CALLS()) {
+			Continuation_CALLS call = (Continuation_CALLS) cc;
+			// Sanity check precondition for CallEnter
+			if (!call.dtor_evm().dtor_world().Exists(call._sender)) {
+				throw new IllegalArgumentException("Non-existent sender account!");
+			}
+			EvmState.State nst = call.CallEnter(depth);
+			CodeCache.Compiled code = (cache != null && nst.is_EXECUTING())
+					? enter(cache, call.dtor_evm().dtor_world(), call.dtor_code())
+					: null;
+			return new Frame(parent.depth + 1, cc, null, code, nst);
+		} else {
+			Continuation_CREATES create = (Continuation_CREATES) cc;
+			BigInteger address = address(create);
+			// Begin the nested creation. NOTE: initcode is never compiled, since it is
+			// typically only executed once.
+			EvmState.State nst = create.CreateEnter(depth, address, create.dtor_initcode());
+			return new Frame(parent.depth + 1, cc, address, null, nst);
 		}
-	    // Return from call.
-	    return cc.CallReturn(st);
 	}
 
 	/**
-	 * Manage a nested contract creation.
+	 * Determine the address of the contract being created by a given
+	 * continuation.
 	 *
-	 * @param cc    The continuation state.
-	 * @param depth The current call depth.
+	 * @param create
 	 * @return
 	 */
-	private static EvmState.State createContinue(Transaction tx, int depth, Tracer tracer, EvmState.Continuation_CREATES cc) {
+	private static BigInteger address(Continuation_CREATES create) {
 		// Determine sender
-		BigInteger sender = cc.dtor_evm().dtor_context().dtor_address();
+		BigInteger sender = create.dtor_evm().dtor_context().dtor_address();
 		// Construct new account
-		Account acct = cc.dtor_evm().dtor_world().dtor_accounts().get(sender);
+		Account acct = create.dtor_evm().dtor_world().dtor_accounts().get(sender);
 		// Subtract one from nonce (i.e. because it was already incremented prior to this point)
 		BigInteger nonce = acct.dtor_nonce().subtract(BigInteger.ONE);
 		// NOTE: we do not subtract one from the nonce here, as this address is being
 		// calculated *before* the sender's nonce is incremented.
-		byte[] hash = addr(sender, nonce, cc.dtor_salt(), cc.dtor_initcode());
+		byte[] hash = addr(sender, nonce, create.dtor_salt(), create.dtor_initcode());
 		// Finally reconstruct the address from the rightmost 160bits.
-		BigInteger address = new BigInteger(1, hash);
-		// Begin the recursive call.
-		EvmState.State st = cc.CreateEnter(BigInteger.valueOf(depth), address, cc.dtor_initcode());
-		// Run init code for recursive call.
-		if(st instanceof State_EXECUTING) {
-		    st = run(tx, depth + 1, tracer, (State_EXECUTING) st);
-		}
-		// Return from creation
-		return cc.CreateReturn(st, address);
+		return new BigInteger(1, hash);
+	}
+
+	/**
+	 * Represents a single executing EVM within the stack of frames managed by
+	 * <code>run()</code>.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private static final class Frame {
+		/**
+		 * Depth of this frame, where the outermost frame has depth 0.
+		 */
+		private final int depth;
+		/**
+		 * Continuation which gave rise to this frame (or <code>null</code> for the
+		 * outermost frame).
+		 */
+		private EvmState.Continuation cc;
+		/**
+		 * Address of the contract being created (or <code>null</code> if this is not
+		 * a contract creation).
+		 */
+		private final BigInteger address;
+		/**
+		 * Compiled form of the code being executed (or <code>null</code> if none).
+		 */
+		private final CodeCache.Compiled code;
+		/**
+		 * Current state of this frame.
+		 */
+		private EvmState.State state;
+		/**
+		 * Imperative frame (if applicable), which is reused across continuations.
+		 */
+		private EvmFrame.Frame imperative;
+
+		public Frame(int depth, EvmState.Continuation cc, BigInteger address, CodeCache.Compiled code, EvmState.State state) {
+			this.depth = depth;
+			this.cc = cc;
+			this.address = address;
+			this.code = code;
+			this.state = state;
+		}
+
+		/**
+		 * Execute this frame until it reaches a terminal or continuation state. When
+		 * no tracer is installed, bytecodes are executed in large batches via
+		 * <code>EVM.ExecuteN</code> (or via compiled code or an imperative frame, if
+		 * applicable).
+		 *
+		 * @param tracer  Tracer to use for generating debug information (if required).
+		 * @param engine  Engine used to execute bytecodes when no tracer is installed.
+		 * @param counter Counts the bytecodes executed (or <code>null</code>).
+		 * @return
+		 */
+		public EvmState.State run(Tracer tracer, Engine engine, Counter counter) {
+			EvmState.State st = state;
+			if (tracer != DEFAULT_TRACER) {
+				while (st.is_EXECUTING()) {
+					tracer.step(depth, (EvmState.State_EXECUTING) st);
+					st = Execute(st);
+					if (counter != null) {
+						counter.traced(1);
+					}
+				}
+			} else if (code != null) {
+				while (st.is_EXECUTING()) {
+					// Execute compiled code for as long as possible, falling back to the
+					// interpreter for a single step if necessary.
+					st = code.execute((State_EXECUTING) st, counter);
+					if (st.is_EXECUTING()) {
+						st = executeN(st, BigInteger.ONE, counter);
+					}
+				}
+			} else if (engine == Engine.IMPERATIVE) {
+				// Indicates whether the imperative frame currently holds st.
+				boolean loaded = false;
+				while (st.is_EXECUTING()) {
+					if (!EvmFrame.__default.Loadable(st)) {
+						// Memory too large to hold in a frame (which is unreachable
+						// for any realistic gas limit).
+						st = executeN(st, UNTRACED_BATCH, counter);
+						loaded = false;
+						continue;
+					} else if (imperative == null) {
+						imperative = new EvmFrame.Frame();
+						imperative.__ctor(st);
+					} else if (!loaded) {
+						imperative.Load(st);
+					}
+					Tuple2<EvmState.State, BigInteger> r = imperative.Run(UNTRACED_BATCH);
+					st = r.dtor__0();
+					if (counter != null) {
+						counter.untraced(r.dtor__1().longValue());
+					}
+					loaded = true;
+				}
+			} else {
+				while (st.is_EXECUTING()) {
+					st = executeN(st, UNTRACED_BATCH, counter);
+				}
+			}
+			state = st;
+			return st;
+		}
+
+		/**
+		 * Execute this frame one bytecode at a time until it reaches a terminal or
+		 * continuation state, or a bytecode which touches state that the resolver
+		 * has yet to fetch. In the latter case, the frame is left at that bytecode
+		 * and the outstanding request is returned. Otherwise, <code>null</code> is
+		 * returned.
+		 *
+		 * @param tracer     Tracer to use for generating debug information (if required).
+		 * @param resolver   Resolver for missing state.
+		 * @param prediction Predicted state to record accesses against (or <code>null</code>).
+		 * @param counter    Counts the bytecodes executed (or <code>null</code>).
+		 * @return
+		 */
+		public CompletableFuture<Load> run(Tracer tracer, Resolver resolver, Predictor.Prediction prediction,
+				Counter counter) {
+			EvmState.State st = state;
+			while (st.is_EXECUTING()) {
+				State_EXECUTING ist = (State_EXECUTING) st;
+				CompletableFuture<Load> miss = resolver.check(ist, prediction);
+				if (miss != null) {
+					state = st;
+					return miss;
+				}
+				tracer.step(depth, ist);
+				st = Execute(st);
+				if (counter != null) {
+					counter.traced(1);
+				}
+			}
+			state = st;
+			return null;
+		}
+
+		/**
+		 * Return from this frame to its parent, given the terminal state of this
+		 * frame.
+		 *
+		 * @param st
+		 * @return
+		 */
+		public EvmState.State exit(EvmState.State st) {
+			if (cc.is_CALLS()) {
+				return ((Continuation_CALLS) cc).CallReturn(st);
+			} else {
+				return ((Continuation_CREATES) cc).CreateReturn(st, address);
+			}
+		}
+	}
+
+	/**
+	 * Execute up to a given number of bytecodes without a tracer (as for
+	 * <code>EVM.ExecuteN</code>), counting them if required.
+	 *
+	 * @param st      State to execute from.
+	 * @param steps   Maximum number of bytecodes to execute.
+	 * @param counter Counts the bytecodes executed (or <code>null</code>).
+	 * @return
+	 */
+	private static EvmState.State executeN(EvmState.State st, BigInteger steps, Counter counter) {
+		if (counter == null) {
+			return ExecuteN(st, steps);
+		} else {
+			Tuple2<EvmState.State, BigInteger> r = ExecuteNCount(st, steps, BigInteger.ZERO);
+			counter.untraced(r.dtor__1().longValue());
+			return r.dtor__0();
+		}
+	}
+
+	/**
+	 * Responsible for fetching accounts and storage which are missing from the
+	 * world state from a given state provider. Since fetched state is also added
+	 * to the world state of this EVM, it is only ever fetched once. Requests may
+	 * complete on any thread and, hence, all access to the resolver's state is
+	 * synchronised.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private final class Resolver {
+		private final StateProvider provider;
+		/**
+		 * Accounts which are known not to exist.
+		 */
+		private final HashSet<BigInteger> absent = new HashSet<>();
+		/**
+		 * Accounts which have been fetched, and whose storage may therefore be
+		 * incomplete.
+		 */
+		private final HashSet<BigInteger> partial = new HashSet<>();
+		/**
+		 * Outstanding requests for accounts, which allows concurrent requests for the
+		 * same account to share the same result.
+		 */
+		private final HashMap<BigInteger, CompletableFuture<Load>> accounts = new HashMap<>();
+		/**
+		 * Outstanding requests for storage locations.
+		 */
+		private final HashMap<Pair<BigInteger, BigInteger>, CompletableFuture<Load>> slots = new HashMap<>();
+
+		public Resolver(StateProvider provider) {
+			this.provider = provider;
+		}
+
+		/**
+		 * Fetch those accounts (and storage) touched by a transaction before it is
+		 * executed. This includes the sender, recipient (or created address),
+		 * coinbase and everything in the transaction's access list, all of which are
+		 * requested in parallel. Once the recipient is known, its code is analysed
+		 * to predict further accounts and storage keys, which are then requested as
+		 * well.
+		 *
+		 * @param tx
+		 * @return The prediction made for the recipient (or <code>null</code> if
+		 *         there was none).
+		 */
+		public CompletableFuture<Predictor.Prediction> prefetch(Transaction tx) {
+			ArrayList<CompletableFuture<?>> requests = new ArrayList<>();
+			CompletableFuture<Load> sender = orDone(account(tx.sender()));
+			CompletableFuture<Predictor.Prediction> prediction = CompletableFuture.completedFuture(null);
+			if (tx.to() != null) {
+				requests.add(sender);
+				prediction = orDone(account(tx.to())).thenCompose(l -> predict(tx));
+			} else {
+				// Address of created contract depends on sender's nonce.
+				requests.add(sender.thenCompose(l -> {
+					Account acct = worldState.get(tx.sender());
+					BigInteger nonce = (acct == null) ? BigInteger.ZERO : acct.dtor_nonce();
+					return orDone(account(addr(tx.sender(), nonce)));
+				}));
+			}
+			requests.add(orDone(account(blockInfo.coinBase)));
+			// Account for access list
+			if (tx.accessList() != null) {
+				for (Access a : tx.accessList()) {
+					CompletableFuture<Load> f = orDone(account(a.address));
+					requests.add(f);
+					for (BigInteger key : a.storageKeys) {
+						// Storage can only be requested once account is known
+						requests.add(f.thenCompose(l -> orDone(storage(worldState.get(a.address), a.address, key))));
+					}
+				}
+			}
+			CompletableFuture<Void> all = CompletableFuture.allOf(requests.toArray(new CompletableFuture[requests.size()]));
+			return all.thenCombine(prediction, (v, p) -> p);
+		}
+
+		/**
+		 * Predict the state touched by the recipient of a given transaction, and
+		 * request it.
+		 *
+		 * @param tx
+		 * @return
+		 */
+		private CompletableFuture<Predictor.Prediction> predict(Transaction tx) {
+			Account acct = worldState.get(tx.to());
+			if (acct == null) {
+				return CompletableFuture.completedFuture(null);
+			}
+			byte[] code = DafnySequence.toByteArray(codeOf(acct));
+			Predictor.Prediction p = Predictor.predict(code, tx.to(), tx.sender(), tx.data());
+			ArrayList<CompletableFuture<?>> requests = new ArrayList<>();
+			for (BigInteger key : p.getStorageKeys()) {
+				requests.add(orDone(storage(acct, tx.to(), key)));
+			}
+			for (BigInteger address : p.getAccounts()) {
+				requests.add(orDone(account(address)));
+			}
+			return CompletableFuture.allOf(requests.toArray(new CompletableFuture[requests.size()])).thenApply(v -> p);
+		}
+
+		/**
+		 * Check whether the next bytecode to be executed in a given state touches
+		 * an account (or storage location) which is not yet known and, if so,
+		 * request it. Observe that bytecodes with too few operands are ignored here,
+		 * since they will fail regardless.
+		 *
+		 * @param st
+		 * @param prediction Predicted state to record accesses against (or <code>null</code>).
+		 * @return The outstanding request, or <code>null</code> if nothing is missing.
+		 */
+		public CompletableFuture<Load> check(State_EXECUTING st, Predictor.Prediction prediction) {
+			EvmState.Raw evm = st.dtor_evm();
+			Stack.EvmStack stack = evm.dtor_stack();
+			int size = stack.Size().intValue();
+			BigInteger pc = BigInteger.valueOf(Integer.toUnsignedLong(evm.dtor_pc()));
+			int opcode = Code.__default.DecodeUint8(evm.dtor_code(), pc) & 0xff;
+			switch (opcode) {
+			case Bytecodes.BALANCE:
+			case Bytecodes.EXTCODESIZE:
+			case Bytecodes.EXTCODECOPY:
+			case Bytecodes.EXTCODEHASH:
+			case Bytecodes.SELFDESTRUCT:
+				return (size < 1) ? null : account(evm.dtor_world(), stack.Peek(BigInteger.ZERO).mod(TWO_160), prediction);
+			case Bytecodes.CALL:
+			case Bytecodes.CALLCODE:
+			case Bytecodes.DELEGATECALL:
+			case Bytecodes.STATICCALL:
+				return (size < 2) ? null : account(evm.dtor_world(), stack.Peek(BigInteger.ONE).mod(TWO_160), prediction);
+			case Bytecodes.SLOAD:
+			case Bytecodes.SSTORE: {
+				if (size < 1) {
+					return null;
+				}
+				BigInteger address = evm.dtor_context().dtor_address();
+				BigInteger key = stack.Peek(BigInteger.ZERO);
+				if (prediction != null && address.equals(prediction.getAddress())) {
+					prediction.touchStorage(key);
+				}
+				return storage(evm.dtor_world().dtor_accounts().get(address), address, key);
+			}
+			default:
+				return null;
+			}
+		}
+
+		/**
+		 * Check whether a given continuation is creating a contract at an address
+		 * which is not yet known and, if so, request it.
+		 *
+		 * @param st
+		 * @return The outstanding request, or <code>null</code> if nothing is missing.
+		 */
+		public CompletableFuture<Load> check(State_CONTINUING st) {
+			EvmState.Continuation cc = st._a0;
+			if (cc.is_CREATES()) {
+				Continuation_CREATES create = (Continuation_CREATES) cc;
+				return account(create.dtor_evm().dtor_world(), address(create), null);
+			} else {
+				return null;
+			}
+		}
+
+		/**
+		 * Request a given account on behalf of an executing frame, unless the frame
+		 * already has it. Observe that an account can be known to this resolver but
+		 * missing from the frame, because it was fetched after execution began
+		 * (e.g. by a concurrent execution, or when prefetching the next transaction
+		 * in a block). In that case, a completed request is returned so that the
+		 * account is loaded into the frame.
+		 *
+		 * @param world      The world state of the executing frame.
+		 * @param address    The account being accessed.
+		 * @param prediction Predicted state to record accesses against (or <code>null</code>).
+		 * @return The outstanding request, or <code>null</code> if nothing is missing.
+		 */
+		private synchronized CompletableFuture<Load> account(WorldState.T world, BigInteger address,
+				Predictor.Prediction prediction) {
+			if (prediction != null) {
+				prediction.touchAccount(address);
+			}
+			if (world.dtor_accounts().get(address) != null) {
+				return null;
+			}
+			Account a = worldState.get(address);
+			if (a != null) {
+				return CompletableFuture.completedFuture(new Load(address, a, null, null));
+			}
+			return account(address);
+		}
+
+		/**
+		 * Indicate that the storage for a given account is now complete (e.g.
+		 * because it has been explicitly created).
+		 *
+		 * @param address
+		 */
+		public synchronized void complete(BigInteger address) {
+			partial.remove(address);
+		}
+
+		/**
+		 * Request a given account, unless it is already known to this resolver. This
+		 * is only suitable before execution begins, since an account known to the
+		 * resolver is not necessarily known to an executing frame.
+		 *
+		 * @param address
+		 * @return The outstanding request, or <code>null</code> if nothing is missing.
+		 */
+		private synchronized CompletableFuture<Load> account(BigInteger address) {
+			if (worldState.get(address) != null || absent.contains(address)) {
+				return null;
+			} else if (accounts.containsKey(address)) {
+				return accounts.get(address);
+			}
+			CompletableFuture<Load> f = provider.account(address).thenApply(acct -> {
+				synchronized (this) {
+					accounts.remove(address);
+					if (acct == null) {
+						absent.add(address);
+						return new Load(address, null, null, null);
+					} else {
+						Account a = toAccount(acct.nonce, acct.balance, acct.storage, acct.code);
+						worldState = DafnyMap.update(worldState, address, a);
+						partial.add(address);
+						return new Load(address, a, null, null);
+					}
+				}
+			});
+			// NOTE: if the request completed immediately, there is nothing outstanding.
+			if (!f.isDone()) {
+				accounts.put(address, f);
+			}
+			return f;
+		}
+
+		/**
+		 * Request a given storage location of a given account, unless it is already
+		 * known.
+		 *
+		 * @param acct    The account as it currently stands.
+		 * @param address The address of the account.
+		 * @param key     The storage location.
+		 * @return The outstanding request, or <code>null</code> if nothing is missing.
+		 */
+		private synchronized CompletableFuture<Load> storage(Account acct, BigInteger address, BigInteger key) {
+			final Pair<BigInteger, BigInteger> slot = Pair.of(address, key);
+			if (!partial.contains(address) || acct == null || acct.dtor_storage().get(key) != null) {
+				return null;
+			} else if (slots.containsKey(slot)) {
+				return slots.get(slot);
+			}
+			CompletableFuture<Load> f = provider.storage(address, key).thenApply(value -> {
+				synchronized (this) {
+					slots.remove(slot);
+					Account a = worldState.get(address);
+					if (a.dtor_storage().get(key) == null) {
+						DafnyMap<BigInteger, BigInteger> store = DafnyMap.update(a.dtor_storage(), key, value);
+						a = WorldState.__default.CreateAccount(a.dtor_nonce(), a.dtor_balance(), store,
+								a.dtor_code(), a.dtor_hash());
+						worldState = DafnyMap.update(worldState, address, a);
+					}
+					return new Load(address, null, key, value);
+				}
+			});
+			if (!f.isDone()) {
+				slots.put(slot, f);
+			}
+			return f;
+		}
+
+		private CompletableFuture<Load> orDone(CompletableFuture<Load> f) {
+			return (f == null) ? CompletableFuture.completedFuture(null) : f;
+		}
+	}
+
+	/**
+	 * Represents some state which has been fetched by a resolver, and which must
+	 * be loaded into an execution before it can be resumed. This is either an
+	 * account, a storage location, or nothing at all (i.e. when the account does
+	 * not exist).
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private static final class Load {
+		private final BigInteger address;
+		private final Account account;
+		private final BigInteger key;
+		private final BigInteger value;
+
+		public Load(BigInteger address, Account account, BigInteger key, BigInteger value) {
+			this.address = address;
+			this.account = account;
+			this.key = key;
+			this.value = value;
+		}
+
+		public EvmState.State apply(EvmState.State st) {
+			if (account != null) {
+				return st.LoadAccount(address, account);
+			} else if (key != null) {
+				return st.LoadStorage(address, key, value);
+			} else {
+				return st;
+			}
+		}
+
+		public EvmState.Continuation apply(EvmState.Continuation cc) {
+			if (account != null) {
+				return cc.LoadAccount(address, account);
+			} else if (key != null) {
+				return cc.LoadStorage(address, key, value);
+			} else {
+				return cc;
+			}
+		}
+	}
+
+	/**
+	 * Record that the code of a given account is being entered, returning its
+	 * compiled form if it is hot.
+	 *
+	 * @param cache   The code cache being used.
+	 * @param world   The world state containing the account.
+	 * @param address The account whose code is being executed.
+	 * @return
+	 */
+	private static CodeCache.Compiled enter(CodeCache cache, WorldState.T world, BigInteger address) {
+		Account acct = world.dtor_accounts().get(address);
+		if (acct == null) {
+			return null;
+		} else {
+			return cache.enter(acct.dtor_hash(), codeOf(acct));
+		}
+	}
+
+	/**
+	 * Extract the code of a given account. Observe that <code>Code.T</code> is a
+	 * datatype wrapper, and is therefore erased into the underlying sequence.
+	 *
+	 * @param acct
+	 * @return
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private static DafnySequence<Byte> codeOf(Account acct) {
+		return (DafnySequence) acct.dtor_code();
 	}
 
 	/**
@@ -554,6 +1558,26 @@ public class DafnyEvm {
 			throw new IllegalArgumentException("log not available in state " + this.getClass().getName());
 		}
 
+		/**
+		 * Get the log entries produced in reaching this state, which is empty
+		 * unless this state returned normally.
+		 *
+		 * @return
+		 */
+		public List<Receipt.Log> getLogs() {
+			return Collections.emptyList();
+		}
+
+		/**
+		 * Get the bloom of the log entries produced in reaching this state,
+		 * which is empty unless this state returned normally.
+		 *
+		 * @return
+		 */
+		public Bloom getBloom() {
+			return new Bloom();
+		}
+
 		public int getDepth() { return depth; }
 
 		/**
@@ -601,14 +1625,17 @@ public class DafnyEvm {
 			 */
 			@Override
             public BigInteger getGas() {
-				return getEVM().dtor_gas();
+				// NOTE: gas is a u64 and, hence, must be treated as unsigned.
+				long gas = getEVM().dtor_gas();
+				return gas >= 0 ? BigInteger.valueOf(gas) : new BigInteger(Long.toUnsignedString(gas));
 			}
 
 			/**
 			 * Get current <code>pc</code> value.
 			 */
 			public BigInteger getPC() {
-				return getEVM().dtor_pc();
+				// NOTE: pc is a u32 and, hence, must be treated as unsigned.
+				return BigInteger.valueOf(Integer.toUnsignedLong(getEVM().dtor_pc()));
 			}
 
 			/**
@@ -720,8 +1747,18 @@ public class DafnyEvm {
 		 *
 		 */
 		public static class Return extends State<State_RETURNS> {
+			/**
+			 * Trie used to compute the state root (or <code>null</code> if none).
+			 */
+			private final StateTrie trie;
+
 			public Return(Tracer tracer, State_RETURNS state, int depth) {
+				this(tracer, state, depth, null);
+			}
+
+			public Return(Tracer tracer, State_RETURNS state, int depth, StateTrie trie) {
 				super(tracer, state, depth);
+				this.trie = trie;
 			}
 			/**
 			 * Get any return data from this contract call.
@@ -745,6 +1782,37 @@ public class DafnyEvm {
 				return toWorldState(state.dtor_world());
 			}
 
+			/**
+			 * Get the world state returned as a prestate, such that it can be passed
+			 * directly to the next transaction (e.g. in the same block) without
+			 * being converted. Thus, any account unchanged by that transaction
+			 * remains the same object and is skipped when computing its state root
+			 * incrementally.
+			 *
+			 * @return
+			 */
+			@SuppressWarnings("unchecked")
+			public Prestate getPrestate() {
+				return new Prestate((DafnyMap<BigInteger, Account>) state.dtor_world().dtor_accounts());
+			}
+
+			/**
+			 * Get the state root of the world state returned. When this state was
+			 * produced by a transaction, this is computed incrementally using the
+			 * trie of the EVM which executed it (see <code>stateTrie()</code>).
+			 * Observe that this is <em>not</em> the consensus state root of the
+			 * transaction, since the world state is that immediately after
+			 * execution. Specifically, unused gas has not been refunded to the
+			 * sender, the coinbase has not been paid, and empty accounts touched
+			 * during execution have not been removed (EIP-161).
+			 *
+			 * @return
+			 */
+			public BigInteger stateRoot() {
+				StateTrie t = (trie != null) ? trie : new StateTrie();
+				return t.root(state.dtor_world());
+			}
+
             @Override
             public Transaction.Outcome getOutcome() {
                 return Transaction.Outcome.RETURN;
@@ -754,21 +1822,48 @@ public class DafnyEvm {
 			 *
 			 * @return
 			 */
-			@SuppressWarnings({ "rawtypes", "unchecked" })
+			@SuppressWarnings({ "unchecked" })
 			@Override
 			public Pair<BigInteger[], byte[]>[] getLog() {
-				DafnySequence<? extends Tuple2> dlog = state.dtor_substate().dtor_log();
-				Pair<BigInteger[], byte[]>[] log = new Pair[dlog.length()];
+				List<Receipt.Log> logs = getLogs();
+				Pair<BigInteger[], byte[]>[] log = new Pair[logs.size()];
 				for (int i = 0; i != log.length; ++i) {
-					Tuple2<DafnySequence<BigInteger>, DafnySequence<Byte>> ith = dlog.select(i);
-					BigInteger[] topics = (BigInteger[]) ith.dtor__0().toRawArray();
-					byte[] data = DafnySequence.toByteArray(ith.dtor__1());
-					log[i] = Pair.of(topics, data);
+					Receipt.Log ith = logs.get(i);
+					log[i] = Pair.of(ith.topics, ith.data);
 				}
 				//
 				return log;
 			}
 
+			@SuppressWarnings({ "rawtypes", "unchecked" })
+			@Override
+			public List<Receipt.Log> getLogs() {
+				DafnySequence<? extends Tuple3> dlog = state.dtor_substate().dtor_log();
+				ArrayList<Receipt.Log> logs = new ArrayList<>(dlog.length());
+				for (int i = 0; i != dlog.length(); ++i) {
+					Tuple3<BigInteger, DafnySequence<BigInteger>, DafnySequence<Byte>> ith = dlog.select(i);
+					BigInteger[] topics = (BigInteger[]) ith.dtor__1().toRawArray();
+					byte[] data = DafnySequence.toByteArray(ith.dtor__2());
+					logs.add(new Receipt.Log(ith.dtor__0(), topics, data));
+				}
+				return logs;
+			}
+
+			@Override
+			public Bloom getBloom() {
+				return new Bloom(state.dtor_substate().dtor_bloom());
+			}
+
+			/**
+			 * Get the refund counter accumulated during execution (e.g. from
+			 * clearing storage).
+			 *
+			 * @return
+			 */
+			public BigInteger getRefund() {
+				return state.dtor_substate().dtor_refund().max(BigInteger.ZERO);
+			}
+
 			@Override
 			public String toString() {
 				String ws = toWorldStateString(getWorldState());
@@ -888,6 +1983,42 @@ public class DafnyEvm {
 	}
 
 
+	/**
+	 * A world state which has been converted into its Dafny representation,
+	 * ready for use by an EVM. Since this is immutable, it can be safely shared
+	 * between EVM instances, and need only be constructed once for any number of
+	 * transactions executed against the same initial state.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public static final class Prestate {
+		private final DafnyMap<BigInteger, Account> accounts;
+
+		private Prestate(DafnyMap<BigInteger, Account> accounts) {
+			this.accounts = accounts;
+		}
+
+		/**
+		 * Get the number of accounts in this prestate.
+		 *
+		 * @return
+		 */
+		public int size() {
+			return accounts.size();
+		}
+
+		/**
+		 * Convert a given set of accounts into a prestate.
+		 *
+		 * @param accounts
+		 * @return
+		 */
+		public static Prestate of(Map<BigInteger, ? extends evmtools.core.Account> accounts) {
+			return new Prestate(new DafnyMap<>(toAccounts(accounts)));
+		}
+	}
+
 	/**
 	 * Information about currently block.
 	 *
@@ -923,6 +2054,11 @@ public class DafnyEvm {
 		 * Current base fee per gas (EIP1559)
 		 */
 		public final BigInteger baseFee;
+		/**
+		 * Hashes of the most recent blocks, as returned by <code>BLOCKHASH</code>.
+		 * If this is <code>null</code>, then all blocks have a hash of zero.
+		 */
+		public final BlockHashes blockHashes;
 
 		public BlockInfo() {
 			this.coinBase = BigInteger.ONE;
@@ -932,10 +2068,11 @@ public class DafnyEvm {
 			this.gasLimit = BigInteger.ONE;
 			this.chainID = BigInteger.ONE;
 			this.baseFee = BigInteger.ONE;
+			this.blockHashes = null;
 		}
 
 		private BlockInfo(BigInteger coinBase, BigInteger timeStamp, BigInteger number, BigInteger difficulty,
-				BigInteger gasLimit, BigInteger chainID, BigInteger baseFee) {
+				BigInteger gasLimit, BigInteger chainID, BigInteger baseFee, BlockHashes blockHashes) {
 			this.coinBase = coinBase;
 			this.timeStamp = timeStamp;
 			this.number = number;
@@ -943,6 +2080,7 @@ public class DafnyEvm {
 			this.gasLimit = gasLimit;
 			this.chainID = chainID;
 			this.baseFee = baseFee;
+			this.blockHashes = blockHashes;
 		}
 
 		/**
@@ -956,7 +2094,7 @@ public class DafnyEvm {
 		 * Set block's beneficiary address.
 		 */
 		public BlockInfo coinBase(BigInteger v) {
-			return new BlockInfo(v, timeStamp, number, difficulty, gasLimit, chainID, baseFee);
+			return new BlockInfo(v, timeStamp, number, difficulty, gasLimit, chainID, baseFee, blockHashes);
 		}
 
 		/**
@@ -970,7 +2108,7 @@ public class DafnyEvm {
 		 * Set block's timestamp.
 		 */
 		public BlockInfo timeStamp(BigInteger v) {
-			return new BlockInfo(coinBase, v, number, difficulty, gasLimit, chainID, baseFee);
+			return new BlockInfo(coinBase, v, number, difficulty, gasLimit, chainID, baseFee, blockHashes);
 		}
 
 		/**
@@ -984,7 +2122,7 @@ public class DafnyEvm {
 		 * Set block's number.
 		 */
 		public BlockInfo number(BigInteger v) {
-			return new BlockInfo(coinBase, timeStamp, v, difficulty, gasLimit, chainID, baseFee);
+			return new BlockInfo(coinBase, timeStamp, v, difficulty, gasLimit, chainID, baseFee, blockHashes);
 		}
 
 		/**
@@ -998,7 +2136,7 @@ public class DafnyEvm {
 		 * Set block's difficulty.
 		 */
 		public BlockInfo difficulty(BigInteger v) {
-			return new BlockInfo(coinBase, timeStamp, number, v, gasLimit, chainID, baseFee);
+			return new BlockInfo(coinBase, timeStamp, number, v, gasLimit, chainID, baseFee, blockHashes);
 		}
 
 		/**
@@ -1012,7 +2150,7 @@ public class DafnyEvm {
 		 * Set block's gas limit.
 		 */
 		public BlockInfo gasLimit(BigInteger v) {
-			return new BlockInfo(coinBase, timeStamp, number, difficulty, v, chainID, baseFee);
+			return new BlockInfo(coinBase, timeStamp, number, difficulty, v, chainID, baseFee, blockHashes);
 		}
 
 		/**
@@ -1026,7 +2164,7 @@ public class DafnyEvm {
 		 * Set chain ID.
 		 */
 		public BlockInfo chainID(BigInteger v) {
-			return new BlockInfo(coinBase, timeStamp, number, difficulty, gasLimit, v, baseFee);
+			return new BlockInfo(coinBase, timeStamp, number, difficulty, gasLimit, v, baseFee, blockHashes);
 		}
 
 		/**
@@ -1040,7 +2178,15 @@ public class DafnyEvm {
 		 * Set base fee.
 		 */
 		public BlockInfo baseFee(BigInteger v) {
-			return new BlockInfo(coinBase, timeStamp, number, difficulty, gasLimit, chainID, v);
+			return new BlockInfo(coinBase, timeStamp, number, difficulty, gasLimit, chainID, v, blockHashes);
+		}
+
+		/**
+		 * Set hashes of the most recent blocks. Since these are shared rather than
+		 * copied, they should not be advanced whilst this block is executing.
+		 */
+		public BlockInfo blockHashes(BlockHashes v) {
+			return new BlockInfo(coinBase, timeStamp, number, difficulty, gasLimit, chainID, baseFee, v);
 		}
 
 		/**
@@ -1048,7 +2194,84 @@ public class DafnyEvm {
 		 * @return
 		 */
 		public Context.Block toDafny() {
-			return new Context.Block(coinBase, timeStamp, number, difficulty, gasLimit, chainID, baseFee);
+			final BlockHashes hashes = blockHashes;
+			final BigInteger parent = number.subtract(BigInteger.ONE);
+			// Ancestor i is the block numbered number-1-i.
+			java.util.function.Function<Byte, BigInteger> ancestors = (hashes == null) ? i -> BigInteger.ZERO
+					: i -> hashes.get(parent.subtract(BigInteger.valueOf(i & 0xFF)));
+			return new Context.Block(coinBase, timeStamp, number, difficulty, gasLimit, chainID, baseFee, ancestors);
+		}
+	}
+
+	/**
+	 * Identifies the engine used to execute bytecodes. Both engines implement the
+	 * same semantics.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public enum Engine {
+		/**
+		 * Execute bytecodes using the purely functional model given by
+		 * <code>EVM.Execute</code>, where each step produces a fresh state.
+		 */
+		FUNCTIONAL,
+		/**
+		 * Execute bytecodes using a mutable frame (see <code>EvmFrame.Frame</code>)
+		 * which is updated in place, and which is verified to refine the
+		 * functional model.
+		 */
+		IMPERATIVE
+	}
+
+	/**
+	 * Counts the bytecodes executed by an EVM (see <code>counter()</code>).
+	 * Bytecodes executed one at a time (i.e. because a tracer is installed, or
+	 * state is being fetched) are distinguished from those executed without a
+	 * tracer (i.e. in batches, by compiled code or by an imperative frame). This
+	 * allows one to check which paths were actually taken.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public static final class Counter {
+		private long traced;
+		private long untraced;
+
+		/**
+		 * Get the total number of bytecodes executed.
+		 *
+		 * @return
+		 */
+		public long getSteps() {
+			return traced + untraced;
+		}
+
+		/**
+		 * Get the number of bytecodes executed without a tracer.
+		 *
+		 * @return
+		 */
+		public long getUntracedSteps() {
+			return untraced;
+		}
+
+		/**
+		 * Record that a given number of bytecodes were executed one at a time.
+		 *
+		 * @param n
+		 */
+		public void traced(long n) {
+			traced = traced + n;
+		}
+
+		/**
+		 * Record that a given number of bytecodes were executed without a tracer.
+		 *
+		 * @param n
+		 */
+		public void untraced(long n) {
+			untraced = untraced + n;
 		}
 	}
 
@@ -1073,6 +2296,15 @@ public class DafnyEvm {
 		 * @param evm
 		 */
 		public void step(int depth, EvmState.State_EXECUTING st);
+
+		/**
+		 * Identifies that a transaction has completed whose state was prefetched
+		 * using a given prediction, which records how accurate it was.
+		 *
+		 * @param prediction
+		 */
+		public default void predicted(Predictor.Prediction prediction) {
+		}
 	}
 
 	/**
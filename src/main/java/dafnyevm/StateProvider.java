@@ -0,0 +1,85 @@
+/*
+ * Copyright 2022 ConsenSys Software Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software dis-
+ * tributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package dafnyevm;
+
+import java.math.BigInteger;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import evmtools.core.Account;
+
+/**
+ * <p>
+ * Provides access to a backing store of world state (e.g. a remote node, or a
+ * local database) from which accounts and storage are fetched on demand. When
+ * a <code>StateProvider</code> is installed, execution of a transaction is
+ * suspended whenever it touches an account (or storage location) which is not
+ * yet known, and resumed once the corresponding request has completed. Thus,
+ * the world state need not be fully populated before a transaction is
+ * executed.
+ * </p>
+ * <p>
+ * Requests are asynchronous, and may complete on any thread.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public interface StateProvider {
+	/**
+	 * Fetch the account at a given address. The resulting future completes with
+	 * <code>null</code> if no such account exists. The storage of the returned
+	 * account may be incomplete, with any missing locations subsequently being
+	 * fetched via <code>storage()</code>.
+	 *
+	 * @param address
+	 * @return
+	 */
+	public CompletableFuture<Account> account(BigInteger address);
+
+	/**
+	 * Fetch the value of a given storage location for the account at a given
+	 * address. The resulting future completes with zero for any location which
+	 * has not been written.
+	 *
+	 * @param address
+	 * @param key
+	 * @return
+	 */
+	public CompletableFuture<BigInteger> storage(BigInteger address, BigInteger key);
+
+	/**
+	 * Construct a state provider backed by a given map of accounts. This is
+	 * useful for testing, and for wrapping world state which is already held in
+	 * memory.
+	 *
+	 * @param accounts
+	 * @return
+	 */
+	public static StateProvider fromMap(Map<BigInteger, Account> accounts) {
+		return new StateProvider() {
+			@Override
+			public CompletableFuture<Account> account(BigInteger address) {
+				return CompletableFuture.completedFuture(accounts.get(address));
+			}
+
+			@Override
+			public CompletableFuture<BigInteger> storage(BigInteger address, BigInteger key) {
+				Account acct = accounts.get(address);
+				BigInteger value = (acct == null) ? null : acct.storage.get(key);
+				return CompletableFuture.completedFuture(value == null ? BigInteger.ZERO : value);
+			}
+		};
+	}
+}
@@ -13,82 +13,234 @@
  */
 package dafnyevm.crypto;
 
+/**
+ * <p>
+ * Implementation of the compression function F of Blake2b (as required for the
+ * <code>BLAKE2f</code> precompile, see EIP-152). Since the number of rounds is
+ * determined by the caller, this can be arbitrarily expensive and, hence, is
+ * implemented with some care. Specifically, the state is held in local
+ * variables across all rounds, and the message words are arranged in the order
+ * they are used by each round up front.
+ * </p>
+ * <p>
+ * When the (incubating) Vector API is available (i.e. the JVM is started with
+ * <code>--add-modules jdk.incubator.vector</code> on hardware with 256-bit
+ * vectors), a vectorised implementation is used for larger numbers of rounds
+ * (see <code>Blake2bVector</code>). This can be disabled by setting the
+ * <code>dafnyevm.blake2b.vector</code> system property to <code>false</code>.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
 public class Blake2b {
+    /**
+     * Minimum number of rounds for which the vectorised implementation is used.
+     * For fewer rounds, the cost of setting up the vectorised state outweighs
+     * any benefit.
+     */
+    private static final long VECTOR_THRESHOLD = 64;
+
+    /**
+     * Vectorised implementation of the compression function, or
+     * <code>null</code> if this is unavailable.
+     */
+    private static final Compression VECTOR = loadVectorised();
+
+    /**
+     * An implementation of the compression function F.
+     *
+     * @author David J. Pearce
+     *
+     */
+    public interface Compression {
+        /**
+         * Apply the compression function for a given number of rounds.
+         *
+         * @param r Number of rounds.
+         * @param h State vector (8 words), which is updated in place.
+         * @param m Message block (16 words).
+         * @param t Offset counters (2 words).
+         * @param f Final block indicator flag.
+         * @return The updated state vector.
+         */
+        public long[] F(long r, long[] h, long[] m, long[] t, boolean f);
+    }
 
     public static long[] F(long r, long[] h, long[] m, long[] t, boolean f) {
-        long[] v = new long[16];
-        System.arraycopy(h, 0, v, 0, 8);
-        System.arraycopy(IV, 0, v, 8, 8);
-        v[12] = v[12] ^ t[0];
-        v[13] = v[13] ^ t[1];
+        if (VECTOR != null && r >= VECTOR_THRESHOLD) {
+            return VECTOR.F(r, h, m, t, f);
+        } else {
+            return scalarF(r, h, m, t, f);
+        }
+    }
+
+    /**
+     * Apply the compression function without using the Vector API.
+     *
+     * @param r
+     * @param h
+     * @param m
+     * @param t
+     * @param f
+     * @return
+     */
+    public static long[] scalarF(long r, long[] h, long[] m, long[] t, boolean f) {
+        long v0 = h[0], v1 = h[1], v2 = h[2], v3 = h[3], v4 = h[4], v5 = h[5], v6 = h[6], v7 = h[7];
+        long v8 = IV[0], v9 = IV[1], v10 = IV[2], v11 = IV[3];
+        long v12 = IV[4] ^ t[0], v13 = IV[5] ^ t[1], v14 = IV[6], v15 = IV[7];
         //
         if (f) {
             // Invert all bits
-            v[14] = ~v[14];
+            v14 = ~v14;
         }
+        // Message words in the order used by each round
+        long[] x = schedule(r, m);
+        int off = 0;
         // Cryptographic mixing
         for (long i = 0; i < r; ++i) {
-            int[] s = SIGMA[(int) (i % 10)];
             // NOTE: this differs from RFC7693 but follows the same code provided with
             // EIP-152. Its not clear to me why the EIP deviates from the RFC.
-            G1(v,0,4,8,12,m[s[0]]);
-            G1(v,1,5,9,13,m[s[1]]);
-            G1(v,2,6,10,14,m[s[2]]);
-            G1(v,3,7,11,15,m[s[3]]);
-            G2(v,1,5,9,13,m[s[5]]);
-            G2(v,2,6,10,14,m[s[6]]);
-            G2(v,3,7,11,15,m[s[7]]);
-            G2(v,0,4,8,12,m[s[4]]);
-            G1(v,0,5,10,15,m[s[8]]);
-            G1(v,1,6,11,12,m[s[9]]);
-            G1(v,2,7,8,13,m[s[10]]);
-            G1(v,3,4,9,14,m[s[11]]);
-            G2(v,0,5,10,15,m[s[12]]);
-            G2(v,1,6,11,12,m[s[13]]);
-            G2(v,2,7,8,13,m[s[14]]);
-            G2(v,3,4,9,14,m[s[15]]);
+            // Mix columns
+            v0 += v4 + x[off];
+            v12 = Long.rotateRight(v12 ^ v0, 32);
+            v8 += v12;
+            v4 = Long.rotateRight(v4 ^ v8, 24);
+            v0 += v4 + x[off + 4];
+            v12 = Long.rotateRight(v12 ^ v0, 16);
+            v8 += v12;
+            v4 = Long.rotateRight(v4 ^ v8, 63);
+            v1 += v5 + x[off + 1];
+            v13 = Long.rotateRight(v13 ^ v1, 32);
+            v9 += v13;
+            v5 = Long.rotateRight(v5 ^ v9, 24);
+            v1 += v5 + x[off + 5];
+            v13 = Long.rotateRight(v13 ^ v1, 16);
+            v9 += v13;
+            v5 = Long.rotateRight(v5 ^ v9, 63);
+            v2 += v6 + x[off + 2];
+            v14 = Long.rotateRight(v14 ^ v2, 32);
+            v10 += v14;
+            v6 = Long.rotateRight(v6 ^ v10, 24);
+            v2 += v6 + x[off + 6];
+            v14 = Long.rotateRight(v14 ^ v2, 16);
+            v10 += v14;
+            v6 = Long.rotateRight(v6 ^ v10, 63);
+            v3 += v7 + x[off + 3];
+            v15 = Long.rotateRight(v15 ^ v3, 32);
+            v11 += v15;
+            v7 = Long.rotateRight(v7 ^ v11, 24);
+            v3 += v7 + x[off + 7];
+            v15 = Long.rotateRight(v15 ^ v3, 16);
+            v11 += v15;
+            v7 = Long.rotateRight(v7 ^ v11, 63);
+            // Mix diagonals
+            v0 += v5 + x[off + 8];
+            v15 = Long.rotateRight(v15 ^ v0, 32);
+            v10 += v15;
+            v5 = Long.rotateRight(v5 ^ v10, 24);
+            v0 += v5 + x[off + 12];
+            v15 = Long.rotateRight(v15 ^ v0, 16);
+            v10 += v15;
+            v5 = Long.rotateRight(v5 ^ v10, 63);
+            v1 += v6 + x[off + 9];
+            v12 = Long.rotateRight(v12 ^ v1, 32);
+            v11 += v12;
+            v6 = Long.rotateRight(v6 ^ v11, 24);
+            v1 += v6 + x[off + 13];
+            v12 = Long.rotateRight(v12 ^ v1, 16);
+            v11 += v12;
+            v6 = Long.rotateRight(v6 ^ v11, 63);
+            v2 += v7 + x[off + 10];
+            v13 = Long.rotateRight(v13 ^ v2, 32);
+            v8 += v13;
+            v7 = Long.rotateRight(v7 ^ v8, 24);
+            v2 += v7 + x[off + 14];
+            v13 = Long.rotateRight(v13 ^ v2, 16);
+            v8 += v13;
+            v7 = Long.rotateRight(v7 ^ v8, 63);
+            v3 += v4 + x[off + 11];
+            v14 = Long.rotateRight(v14 ^ v3, 32);
+            v9 += v14;
+            v4 = Long.rotateRight(v4 ^ v9, 24);
+            v3 += v4 + x[off + 15];
+            v14 = Long.rotateRight(v14 ^ v3, 16);
+            v9 += v14;
+            v4 = Long.rotateRight(v4 ^ v9, 63);
+            // Move to next round
+            off = (off + 16 == x.length) ? 0 : off + 16;
         }
         // Xor two halves
-        for (int i = 0; i != 8; ++i) {
-            h[i] ^= v[i] ^ v[i + 8];
-        }
+        h[0] ^= v0 ^ v8;
+        h[1] ^= v1 ^ v9;
+        h[2] ^= v2 ^ v10;
+        h[3] ^= v3 ^ v11;
+        h[4] ^= v4 ^ v12;
+        h[5] ^= v5 ^ v13;
+        h[6] ^= v6 ^ v14;
+        h[7] ^= v7 ^ v15;
         //
         return h;
     }
 
-    private static void G1(long[] v, int a, int b, int c, int d, long x) {
-        v[a] = (v[a] + v[b] + x);
-        v[d] = Long.rotateRight(v[d] ^ v[a], 32);
-        v[c] = (v[c] + v[d]);
-        v[b] = Long.rotateRight(v[b] ^ v[c], 24);
+    /**
+     * Arrange the words of a message block in the order they are used by each
+     * round. Since the permutations repeat every ten rounds, this covers at most
+     * ten rounds (and fewer if fewer rounds are required).
+     *
+     * @param r Number of rounds.
+     * @param m Message block (16 words).
+     * @return
+     */
+    static long[] schedule(long r, long[] m) {
+        int n = (int) Math.max(1, Math.min(r, 10)) * 16;
+        long[] x = new long[n];
+        for (int i = 0; i != n; ++i) {
+            x[i] = m[SIGMA[i]];
+        }
+        return x;
     }
 
-    private static void G2(long[] v, int a, int b, int c, int d, long y) {
-        v[a] = (v[a] + v[b] + y);
-        v[d] = Long.rotateRight(v[d] ^ v[a], 16);
-        v[c] = (v[c] + v[d]);
-        v[b] = Long.rotateRight(v[b] ^ v[c], 63);
+    /**
+     * Attempt to load the vectorised implementation. This fails if the Vector
+     * API is not available (or not accelerated by the hardware), in which case
+     * <code>null</code> is returned.
+     *
+     * @return
+     */
+    private static Compression loadVectorised() {
+        if (!Boolean.parseBoolean(System.getProperty("dafnyevm.blake2b.vector", "true"))) {
+            return null;
+        }
+        try {
+            Class<?> c = Class.forName("dafnyevm.crypto.Blake2bVector");
+            return (Compression) c.getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+            return null;
+        }
     }
 
     // Blake2b Initialisation Vector
-    private static final long[] IV = {
+    static final long[] IV = {
             0x6A09E667F3BCC908L, 0xBB67AE8584CAA73BL,
             0x3C6EF372FE94F82BL, 0xA54FF53A5F1D36F1L,
             0x510E527FADE682D1L, 0x9B05688C2B3E6C1FL,
             0x1F83D9ABFB41BD6BL, 0x5BE0CD19137E2179L
     };
 
-    private static final int[][] SIGMA = new int[][]{
-        {0,2,4,6,1,3,5,7,8,10,12,14,9,11,13,15},
-        {14,4,9,13,10,8,15,6,1,0,11,5,12,2,7,3},
-        {11,12,5,15,8,0,2,13,10,3,7,9,14,6,1,4},
-        {7,3,13,11,9,1,12,14,2,5,4,15,6,10,0,8},
-        {9,5,2,10,0,7,4,15,14,11,6,3,1,12,8,13},
-        {2,6,0,8,12,10,11,3,4,7,15,1,13,5,14,9},
-        {12,1,14,4,5,15,13,10,0,6,9,8,7,3,2,11},
-        {13,7,12,3,11,14,1,9,5,15,8,2,0,4,6,10},
-        {6,14,11,0,15,9,3,8,12,13,1,10,2,7,4,5},
-        {10,8,7,1,2,4,6,5,15,9,3,13,11,14,12,0},
+    // Message permutations for each round (flattened), arranged such that the
+    // first eight words are used for the columns, and the last eight for the
+    // diagonals.
+    private static final int[] SIGMA = new int[]{
+        0,2,4,6,1,3,5,7,8,10,12,14,9,11,13,15,
+        14,4,9,13,10,8,15,6,1,0,11,5,12,2,7,3,
+        11,12,5,15,8,0,2,13,10,3,7,9,14,6,1,4,
+        7,3,13,11,9,1,12,14,2,5,4,15,6,10,0,8,
+        9,5,2,10,0,7,4,15,14,11,6,3,1,12,8,13,
+        2,6,0,8,12,10,11,3,4,7,15,1,13,5,14,9,
+        12,1,14,4,5,15,13,10,0,6,9,8,7,3,2,11,
+        13,7,12,3,11,14,1,9,5,15,8,2,0,4,6,10,
+        6,14,11,0,15,9,3,8,12,13,1,10,2,7,4,5,
+        10,8,7,1,2,4,6,5,15,9,3,13,11,14,12,0,
     };
-
 }
@@ -0,0 +1,1093 @@
+/*
+ * Copyright 2022 ConsenSys Software Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software dis-
+ * tributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package dafnyevm.crypto;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * <p>
+ * Arithmetic over the BLS12-381 curve, as needed for verifying KZG proofs (see
+ * EIP-4844). This consists of the groups <code>G1</code> (points on
+ * <code>y^2 = x^3 + 4</code> over <code>Fp</code>) and <code>G2</code> (points
+ * on the twist <code>y^2 = x^3 + 4(u+1)</code> over <code>Fp2</code>), along
+ * with the optimal ate pairing into <code>Fp12</code>. The tower of extension
+ * fields is <code>Fp2 = Fp[u]/(u^2+1)</code>, <code>Fp6 = Fp2[v]/(v^3-(u+1))</code>
+ * and <code>Fp12 = Fp6[w]/(w^2-v)</code>.
+ * </p>
+ * <p>
+ * Since pairings are the expensive part, the line functions computed during
+ * the Miller loop for a given <code>G2</code> point can be precomputed (see
+ * <code>Lines</code>). This is worthwhile for fixed points, such as the
+ * generator. Furthermore, several pairings can be checked at once (see
+ * <code>pairingCheck()</code>) such that they share the squarings of the
+ * Miller loop and a single final exponentiation.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class Bls12381 {
+    /**
+     * The field modulus.
+     */
+    public static final BigInteger P = Fp.MODULUS;
+    /**
+     * The order of the groups G1, G2 and GT.
+     */
+    public static final BigInteger R = new BigInteger(
+            "73eda753299d7d483339d80809a1d80553bda402fffe5bfeffffffff00000001", 16);
+    /**
+     * The absolute value of the curve parameter <code>x</code> (which is
+     * negative), as an unsigned 64-bit word.
+     */
+    private static final long X = 0xd201000000010000L;
+    private static final BigInteger P_PLUS_1_DIV_4 = P.add(BigInteger.ONE).shiftRight(2);
+    private static final BigInteger P_MINUS_1_DIV_2 = P.subtract(BigInteger.ONE).shiftRight(1);
+
+    /**
+     * Coefficient <code>b</code> of the curve equation for G1 and G2
+     * (respectively).
+     */
+    private static final Fp B1 = Fp.of(BigInteger.valueOf(4));
+    private static final Fp2 B2 = new Fp2(B1, B1);
+
+    /**
+     * The generators of G1 and G2.
+     */
+    public static final Point<Fp> G1 = Point.affine(
+            Fp.of(new BigInteger("17f1d3a73197d7942695638c4fa9ac0fc3688c4f9774b905a14e3a3f171bac586c55e83ff97a1aeffb3af00adb22c6bb", 16)),
+            Fp.of(new BigInteger("08b3f481e3aaa0f1a09e30ed741d8ae4fcf5e095d5d00af600db18cb2c04b3edd03cc744a2888ae40caa232946c5e7e1", 16)),
+            B1);
+    public static final Point<Fp2> G2 = Point.affine(
+            new Fp2(Fp.of(new BigInteger("024aa2b2f08f0a91260805272dc51051c6e47ad4fa403b02b4510b647ae3d1770bac0326a805bbefd48056c8c121bdb8", 16)),
+                    Fp.of(new BigInteger("13e02b6052719f607dacd3a088274f65596bd0d09920b61ab5da61bbdc7f5049334cf11213945d57e5ac7d055d042b7e", 16))),
+            new Fp2(Fp.of(new BigInteger("0ce5d527727d6e118cc9cdc6da2e351aadfd9baa8cbdd3a76d429a695160d12c923ac9cc3baca289e193548608b82801", 16)),
+                    Fp.of(new BigInteger("0606c4a02ea734cc32acd2b02bc28b99cb3e287e85a763af267492ab572e99ab3f370d275cec1da1aaa9075ff05f79be", 16))),
+            B2);
+
+    /**
+     * Coefficients for the Frobenius map on Fp12, where the ith coefficient is
+     * <code>(u+1)^(i*(p-1)/6)</code>.
+     */
+    private static final Fp2[] FROBENIUS = new Fp2[6];
+
+    static {
+        Fp2 xi = new Fp2(Fp.ONE, Fp.ONE);
+        BigInteger e = P.subtract(BigInteger.ONE).divide(BigInteger.valueOf(6));
+        for (int i = 0; i != 6; ++i) {
+            FROBENIUS[i] = xi.pow(e.multiply(BigInteger.valueOf(i)));
+        }
+    }
+
+    // ========================================================================
+    // Encoding
+    // ========================================================================
+
+    /**
+     * Decode a point in G1 from its compressed (48 byte) form. This checks the
+     * point is on the curve and in the correct subgroup, returning
+     * <code>null</code> otherwise.
+     *
+     * @param bytes
+     * @param offset
+     * @return
+     */
+    public static Point<Fp> decodeG1(byte[] bytes, int offset) {
+        int flags = bytes[offset] & 0xE0;
+        BigInteger x = decodeCoordinate(bytes, offset, true);
+        if ((flags & 0x80) == 0 || x == null) {
+            // Only compressed points are supported
+            return null;
+        } else if ((flags & 0x40) != 0) {
+            // Infinity must be all zeros (other than the flags)
+            return (flags == 0xC0 && x.signum() == 0) ? Point.infinity(Fp.ZERO, Fp.ONE, B1) : null;
+        }
+        Fp fx = Fp.of(x);
+        Fp y = fx.square().mul(fx).add(B1).sqrt();
+        if (y == null) {
+            return null;
+        } else if (y.isLexicographicallyLargest() != ((flags & 0x20) != 0)) {
+            y = y.neg();
+        }
+        return inSubgroup(Point.affine(fx, y, B1));
+    }
+
+    /**
+     * Decode a point in G2 from its compressed (96 byte) form, where the
+     * imaginary part of the x coordinate comes first. This checks the point is
+     * on the curve and in the correct subgroup, returning <code>null</code>
+     * otherwise.
+     *
+     * @param bytes
+     * @param offset
+     * @return
+     */
+    public static Point<Fp2> decodeG2(byte[] bytes, int offset) {
+        int flags = bytes[offset] & 0xE0;
+        BigInteger x1 = decodeCoordinate(bytes, offset, true);
+        BigInteger x0 = decodeCoordinate(bytes, offset + 48, false);
+        if ((flags & 0x80) == 0 || x0 == null || x1 == null) {
+            // Only compressed points are supported
+            return null;
+        } else if ((flags & 0x40) != 0) {
+            // Infinity must be all zeros (other than the flags)
+            return (flags == 0xC0 && x0.signum() == 0 && x1.signum() == 0) ? Point.infinity(Fp2.ZERO, Fp2.ONE, B2)
+                    : null;
+        }
+        Fp2 fx = new Fp2(Fp.of(x0), Fp.of(x1));
+        Fp2 y = fx.square().mul(fx).add(B2).sqrt();
+        if (y == null) {
+            return null;
+        } else if (y.isLexicographicallyLargest() != ((flags & 0x20) != 0)) {
+            y = y.neg();
+        }
+        return inSubgroup(Point.affine(fx, y, B2));
+    }
+
+    /**
+     * Decode a single (48 byte) coordinate, whose top three bits may be used for
+     * flags. This returns <code>null</code> if the coordinate is not less than
+     * <code>p</code>.
+     *
+     * @param bytes
+     * @param offset
+     * @param flagged Whether the top three bits hold flags (and should be ignored).
+     * @return
+     */
+    private static BigInteger decodeCoordinate(byte[] bytes, int offset, boolean flagged) {
+        byte[] tmp = new byte[48];
+        System.arraycopy(bytes, offset, tmp, 0, 48);
+        if (flagged) {
+            tmp[0] &= 0x1F;
+        }
+        BigInteger x = new BigInteger(1, tmp);
+        return x.compareTo(P) < 0 ? x : null;
+    }
+
+    private static <F extends Field<F>> Point<F> inSubgroup(Point<F> p) {
+        return p.multiply(R).isInfinity() ? p : null;
+    }
+
+    // ========================================================================
+    // Pairing
+    // ========================================================================
+
+    /**
+     * Check whether the product of the pairings of a given sequence of points
+     * is one. That is, whether <code>e(p1,q1) * e(p2,q2) * ... == 1</code>.
+     * The G2 points are given by their (possibly precomputed) line functions.
+     *
+     * @param ps Points in G1.
+     * @param qs Line functions for points in G2.
+     * @return
+     */
+    public static boolean pairingCheck(List<Point<Fp>> ps, List<Lines> qs) {
+        ArrayList<Fp> xs = new ArrayList<>();
+        ArrayList<Fp> ys = new ArrayList<>();
+        ArrayList<Lines> ls = new ArrayList<>();
+        for (int i = 0; i != ps.size(); ++i) {
+            Point<Fp> p = ps.get(i);
+            Lines q = qs.get(i);
+            // Pairings involving infinity are simply one
+            if (!p.isInfinity() && q != null) {
+                p = p.toAffine();
+                xs.add(p.x);
+                ys.add(p.y);
+                ls.add(q);
+            }
+        }
+        // Compute Miller loop for all pairs simultaneously
+        Fp12 f = Fp12.ONE;
+        int k = 0;
+        for (int i = 62; i >= 0; --i) {
+            f = f.square();
+            for (int j = 0; j != ls.size(); ++j) {
+                f = f.mul(ls.get(j).evaluate(k, xs.get(j), ys.get(j)));
+            }
+            k = k + 1;
+            if (((X >>> i) & 1) != 0) {
+                for (int j = 0; j != ls.size(); ++j) {
+                    f = f.mul(ls.get(j).evaluate(k, xs.get(j), ys.get(j)));
+                }
+                k = k + 1;
+            }
+        }
+        // Since x is negative
+        f = f.conjugate();
+        return finalExponentiation(f).equals(Fp12.ONE);
+    }
+
+    /**
+     * Raise an element to the power <code>(p^12 - 1) / r</code>. This is split
+     * into the "easy" part <code>(p^6 - 1)(p^2 + 1)</code> and the "hard" part
+     * <code>(p^4 - p^2 + 1) / r</code>. For the latter, we actually compute
+     * three times the hard part using the decomposition
+     * <code>(x-1)^2 (x+p) (x^2+p^2-1) + 3</code> (see "Efficient Final
+     * Exponentiation via Cyclotomic Structure for Pairings over Families of
+     * Elliptic Curves", Hayashida et al.). Since three is coprime to
+     * <code>r</code>, this does not affect whether the result is one.
+     *
+     * @param f
+     * @return
+     */
+    private static Fp12 finalExponentiation(Fp12 f) {
+        // Easy part
+        f = f.conjugate().mul(f.inverse());
+        f = f.frobenius().frobenius().mul(f);
+        // Hard part (after which the conjugate is the inverse)
+        Fp12 a = powX(f).mul(f.conjugate());
+        a = powX(a).mul(a.conjugate());
+        Fp12 b = powX(a).mul(a.frobenius());
+        Fp12 c = powX(powX(b)).mul(b.frobenius().frobenius()).mul(b.conjugate());
+        return c.mul(f.square()).mul(f);
+    }
+
+    /**
+     * Raise an element of the cyclotomic subgroup to the power <code>x</code>.
+     *
+     * @param f
+     * @return
+     */
+    private static Fp12 powX(Fp12 f) {
+        Fp12 r = f;
+        for (int i = 62; i >= 0; --i) {
+            r = r.square();
+            if (((X >>> i) & 1) != 0) {
+                r = r.mul(f);
+            }
+        }
+        // Since x is negative
+        return r.conjugate();
+    }
+
+    /**
+     * The line functions computed during the Miller loop for a given point
+     * <code>Q</code> in G2. Each line passes through (multiples of)
+     * <code>Q</code> on the twist, and is described by its slope
+     * <code>lambda</code> and a constant <code>c</code>. Mapping back from the
+     * twist, evaluating the line at a point <code>(x,y)</code> in G1 gives
+     * <code>c - lambda*x*w^2 + y*w^3</code> (up to a factor in a subfield of
+     * Fp12, which is eliminated by the final exponentiation).
+     *
+     * @author David J. Pearce
+     *
+     */
+    public static final class Lines {
+        private final Fp2[] lambdas;
+        private final Fp2[] constants;
+
+        private Lines(Fp2[] lambdas, Fp2[] constants) {
+            this.lambdas = lambdas;
+            this.constants = constants;
+        }
+
+        /**
+         * Compute the line functions for a given point in G2, or return
+         * <code>null</code> for the point at infinity.
+         *
+         * @param q
+         * @return
+         */
+        public static Lines of(Point<Fp2> q) {
+            if (q.isInfinity()) {
+                return null;
+            }
+            q = q.toAffine();
+            ArrayList<Fp2> lambdas = new ArrayList<>();
+            ArrayList<Fp2> constants = new ArrayList<>();
+            Fp2 tx = q.x, ty = q.y;
+            for (int i = 62; i >= 0; --i) {
+                // Doubling step
+                Fp2 tx2 = tx.square();
+                Fp2 lambda = tx2.add(tx2).add(tx2).mul(ty.add(ty).inverse());
+                lambdas.add(lambda);
+                constants.add(lambda.mul(tx).sub(ty));
+                Fp2 x3 = lambda.square().sub(tx).sub(tx);
+                ty = lambda.mul(tx.sub(x3)).sub(ty);
+                tx = x3;
+                if (((X >>> i) & 1) != 0) {
+                    // Addition step
+                    lambda = q.y.sub(ty).mul(q.x.sub(tx).inverse());
+                    lambdas.add(lambda);
+                    constants.add(lambda.mul(tx).sub(ty));
+                    x3 = lambda.square().sub(tx).sub(q.x);
+                    ty = lambda.mul(tx.sub(x3)).sub(ty);
+                    tx = x3;
+                }
+            }
+            return new Lines(lambdas.toArray(new Fp2[0]), constants.toArray(new Fp2[0]));
+        }
+
+        private Fp12 evaluate(int k, Fp x, Fp y) {
+            Fp6 c0 = new Fp6(constants[k], lambdas[k].mul(x).neg(), Fp2.ZERO);
+            Fp6 c1 = new Fp6(Fp2.ZERO, new Fp2(y, Fp.ZERO), Fp2.ZERO);
+            return new Fp12(c0, c1);
+        }
+    }
+
+    // ========================================================================
+    // Points
+    // ========================================================================
+
+    /**
+     * A point on a curve <code>y^2 = x^3 + b</code> over some field, held in
+     * Jacobian coordinates (i.e. <code>(x/z^2,y/z^3)</code>). The point at
+     * infinity has <code>z = 0</code>.
+     *
+     * @author David J. Pearce
+     *
+     * @param <F>
+     */
+    public static final class Point<F extends Field<F>> {
+        private final F x, y, z, b;
+
+        private Point(F x, F y, F z, F b) {
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.b = b;
+        }
+
+        public static <F extends Field<F>> Point<F> affine(F x, F y, F b) {
+            return new Point<>(x, y, b.one(), b);
+        }
+
+        public static <F extends Field<F>> Point<F> infinity(F x, F y, F b) {
+            return new Point<>(x, y, b.zero(), b);
+        }
+
+        public boolean isInfinity() {
+            return z.isZero();
+        }
+
+        /**
+         * Check whether this point lies on its curve.
+         *
+         * @return
+         */
+        public boolean isOnCurve() {
+            if (isInfinity()) {
+                return true;
+            }
+            F z2 = z.square();
+            F z6 = z2.square().mul(z2);
+            return y.square().equals(x.square().mul(x).add(b.mul(z6)));
+        }
+
+        public Point<F> negate() {
+            return new Point<>(x, y.neg(), z, b);
+        }
+
+        /**
+         * Double this point (using "dbl-2009-l").
+         *
+         * @return
+         */
+        public Point<F> twice() {
+            if (isInfinity()) {
+                return this;
+            }
+            F a = x.square();
+            F bb = y.square();
+            F c = bb.square();
+            F d = x.add(bb).square().sub(a).sub(c);
+            d = d.add(d);
+            F e = a.add(a).add(a);
+            F f = e.square();
+            F x3 = f.sub(d).sub(d);
+            F c8 = c.add(c);
+            c8 = c8.add(c8);
+            c8 = c8.add(c8);
+            F y3 = e.mul(d.sub(x3)).sub(c8);
+            F z3 = y.mul(z);
+            return new Point<>(x3, y3, z3.add(z3), b);
+        }
+
+        /**
+         * Add another point to this point (using "add-2007-bl").
+         *
+         * @param q
+         * @return
+         */
+        public Point<F> add(Point<F> q) {
+            if (isInfinity()) {
+                return q;
+            } else if (q.isInfinity()) {
+                return this;
+            }
+            F z1z1 = z.square();
+            F z2z2 = q.z.square();
+            F u1 = x.mul(z2z2);
+            F u2 = q.x.mul(z1z1);
+            F s1 = y.mul(q.z).mul(z2z2);
+            F s2 = q.y.mul(z).mul(z1z1);
+            F h = u2.sub(u1);
+            F r = s2.sub(s1);
+            if (h.isZero()) {
+                return r.isZero() ? twice() : infinity(x, y, b);
+            }
+            r = r.add(r);
+            F i = h.add(h).square();
+            F j = h.mul(i);
+            F v = u1.mul(i);
+            F x3 = r.square().sub(j).sub(v).sub(v);
+            F s1j = s1.mul(j);
+            F y3 = r.mul(v.sub(x3)).sub(s1j).sub(s1j);
+            F z3 = z.add(q.z).square().sub(z1z1).sub(z2z2).mul(h);
+            return new Point<>(x3, y3, z3, b);
+        }
+
+        /**
+         * Multiply this point by a given (non-negative) scalar.
+         *
+         * @param k
+         * @return
+         */
+        public Point<F> multiply(BigInteger k) {
+            Point<F> r = infinity(x, y, b);
+            for (int i = k.bitLength() - 1; i >= 0; --i) {
+                r = r.twice();
+                if (k.testBit(i)) {
+                    r = r.add(this);
+                }
+            }
+            return r;
+        }
+
+        /**
+         * Convert this point into affine form (i.e. where <code>z = 1</code>).
+         *
+         * @return
+         */
+        public Point<F> toAffine() {
+            if (isInfinity()) {
+                return this;
+            }
+            F zinv = z.inverse();
+            F zinv2 = zinv.square();
+            return new Point<>(x.mul(zinv2), y.mul(zinv2).mul(zinv), b.one(), b);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o instanceof Point) {
+                @SuppressWarnings("unchecked")
+                Point<F> q = (Point<F>) o;
+                if (isInfinity() || q.isInfinity()) {
+                    return isInfinity() && q.isInfinity();
+                }
+                F z1z1 = z.square();
+                F z2z2 = q.z.square();
+                return x.mul(z2z2).equals(q.x.mul(z1z1))
+                        && y.mul(z2z2).mul(q.z).equals(q.y.mul(z1z1).mul(z));
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            return toAffine().x.hashCode();
+        }
+    }
+
+    // ========================================================================
+    // Fields
+    // ========================================================================
+
+    /**
+     * Operations common to the base field and its quadratic extension (over
+     * which the points of G1 and G2 are defined).
+     *
+     * @author David J. Pearce
+     *
+     * @param <F>
+     */
+    public interface Field<F extends Field<F>> {
+        public F add(F o);
+
+        public F sub(F o);
+
+        public F mul(F o);
+
+        public F square();
+
+        public F neg();
+
+        public F inverse();
+
+        public boolean isZero();
+
+        public F zero();
+
+        public F one();
+    }
+
+    /**
+     * An element of the base field <code>Fp</code>. Elements are held as twelve
+     * 32-bit limbs (least significant first) in Montgomery form (i.e.
+     * <code>n*2^384 mod p</code>), such that multiplication requires no
+     * <code>BigInteger</code> arithmetic or division. Conversion to and from
+     * <code>BigInteger</code> is only needed when encoding, decoding and
+     * inverting elements.
+     *
+     * @author David J. Pearce
+     *
+     */
+    public static final class Fp implements Field<Fp> {
+        private static final int LIMBS = 12;
+        private static final long M = 0xFFFFFFFFL;
+        /**
+         * The field modulus (see <code>P</code>). This is defined here, rather
+         * than taken from the enclosing class, so that initialising this class
+         * does not depend upon initialising the enclosing class.
+         */
+        private static final BigInteger MODULUS = new BigInteger(
+                "1a0111ea397fe69a4b1ba7b6434bacd764774b84f38512bf6730d2a0f6b0f6241eabfffeb153ffffb9feffffffffaaab", 16);
+        private static final int[] MODULUS_LIMBS = limbs(MODULUS);
+        /**
+         * The constant <code>-p^-1 mod 2^32</code> used for Montgomery reduction.
+         */
+        private static final long N0 = MODULUS.negate().modInverse(BigInteger.ONE.shiftLeft(32)).longValue();
+        /**
+         * The constant <code>2^768 mod p</code> used for converting into
+         * Montgomery form.
+         */
+        private static final int[] R2 = limbs(BigInteger.ONE.shiftLeft(2 * 32 * LIMBS).mod(MODULUS));
+
+        public static final Fp ZERO = new Fp(new int[LIMBS]);
+        public static final Fp ONE = of(BigInteger.ONE);
+
+        private final int[] n;
+
+        private Fp(int[] n) {
+            this.n = n;
+        }
+
+        public static Fp of(BigInteger n) {
+            int[] r = new int[LIMBS];
+            mul(r, limbs(n.mod(MODULUS)), R2);
+            return new Fp(r);
+        }
+
+        public BigInteger toBigInteger() {
+            int[] one = new int[LIMBS];
+            one[0] = 1;
+            int[] r = new int[LIMBS];
+            mul(r, n, one);
+            BigInteger v = BigInteger.ZERO;
+            for (int i = LIMBS - 1; i >= 0; --i) {
+                v = v.shiftLeft(32).or(BigInteger.valueOf(r[i] & M));
+            }
+            return v;
+        }
+
+        @Override
+        public Fp add(Fp o) {
+            int[] r = new int[LIMBS];
+            long carry = 0;
+            for (int i = 0; i != LIMBS; ++i) {
+                carry += (n[i] & M) + (o.n[i] & M);
+                r[i] = (int) carry;
+                carry >>>= 32;
+            }
+            // NOTE: since p < 2^381, there is never a carry out of the top limb.
+            if (geqP(r)) {
+                subP(r);
+            }
+            return new Fp(r);
+        }
+
+        @Override
+        public Fp sub(Fp o) {
+            int[] r = new int[LIMBS];
+            long borrow = 0;
+            for (int i = 0; i != LIMBS; ++i) {
+                long d = (n[i] & M) - (o.n[i] & M) - borrow;
+                r[i] = (int) d;
+                borrow = (d >>> 63);
+            }
+            if (borrow != 0) {
+                // Add p (modulo 2^384)
+                long carry = 0;
+                for (int i = 0; i != LIMBS; ++i) {
+                    carry += (r[i] & M) + (MODULUS_LIMBS[i] & M);
+                    r[i] = (int) carry;
+                    carry >>>= 32;
+                }
+            }
+            return new Fp(r);
+        }
+
+        @Override
+        public Fp mul(Fp o) {
+            int[] r = new int[LIMBS];
+            mul(r, n, o.n);
+            return new Fp(r);
+        }
+
+        @Override
+        public Fp square() {
+            int[] r = new int[LIMBS];
+            mul(r, n, n);
+            return new Fp(r);
+        }
+
+        @Override
+        public Fp neg() {
+            return isZero() ? this : ZERO.sub(this);
+        }
+
+        @Override
+        public Fp inverse() {
+            return of(toBigInteger().modInverse(MODULUS));
+        }
+
+        /**
+         * Compute a square root of this element, or return <code>null</code> if
+         * none exists. Since <code>p = 3 (mod 4)</code>, this is simply
+         * <code>n^((p+1)/4)</code>.
+         *
+         * @return
+         */
+        public Fp sqrt() {
+            Fp r = pow(P_PLUS_1_DIV_4);
+            return r.square().equals(this) ? r : null;
+        }
+
+        private Fp pow(BigInteger e) {
+            Fp r = ONE;
+            for (int i = e.bitLength() - 1; i >= 0; --i) {
+                r = r.square();
+                if (e.testBit(i)) {
+                    r = r.mul(this);
+                }
+            }
+            return r;
+        }
+
+        /**
+         * Check whether this element is larger than its negation.
+         *
+         * @return
+         */
+        public boolean isLexicographicallyLargest() {
+            return toBigInteger().compareTo(P_MINUS_1_DIV_2) > 0;
+        }
+
+        @Override
+        public boolean isZero() {
+            for (int i = 0; i != LIMBS; ++i) {
+                if (n[i] != 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public Fp zero() {
+            return ZERO;
+        }
+
+        @Override
+        public Fp one() {
+            return ONE;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            // NOTE: the Montgomery form of each element is unique.
+            return o instanceof Fp && Arrays.equals(((Fp) o).n, n);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(n);
+        }
+
+        @Override
+        public String toString() {
+            return "0x" + toBigInteger().toString(16);
+        }
+
+        /**
+         * Compute <code>r = a * b * 2^-384 (mod p)</code> using Montgomery
+         * multiplication (i.e. the "Coarsely Integrated Operand Scanning"
+         * method). Here, <code>r</code> may alias either operand.
+         *
+         * @param r
+         * @param a
+         * @param b
+         */
+        private static void mul(int[] r, int[] a, int[] b) {
+            long[] t = new long[LIMBS + 2];
+            for (int i = 0; i != LIMBS; ++i) {
+                // t = t + a * b[i]
+                long bi = b[i] & M;
+                long carry = 0;
+                for (int j = 0; j != LIMBS; ++j) {
+                    long s = t[j] + (a[j] & M) * bi + carry;
+                    t[j] = s & M;
+                    carry = s >>> 32;
+                }
+                long s = t[LIMBS] + carry;
+                t[LIMBS] = s & M;
+                t[LIMBS + 1] = s >>> 32;
+                // t = (t + m * p) / 2^32, where m is chosen to clear the bottom limb
+                long m = (t[0] * N0) & M;
+                carry = (t[0] + m * (MODULUS_LIMBS[0] & M)) >>> 32;
+                for (int j = 1; j != LIMBS; ++j) {
+                    s = t[j] + m * (MODULUS_LIMBS[j] & M) + carry;
+                    t[j - 1] = s & M;
+                    carry = s >>> 32;
+                }
+                s = t[LIMBS] + carry;
+                t[LIMBS - 1] = s & M;
+                t[LIMBS] = t[LIMBS + 1] + (s >>> 32);
+            }
+            for (int i = 0; i != LIMBS; ++i) {
+                r[i] = (int) t[i];
+            }
+            // NOTE: since 4p < 2^384, the result is less than 2p and t[LIMBS] is zero.
+            if (geqP(r)) {
+                subP(r);
+            }
+        }
+
+        private static boolean geqP(int[] r) {
+            for (int i = LIMBS - 1; i >= 0; --i) {
+                int c = Integer.compareUnsigned(r[i], MODULUS_LIMBS[i]);
+                if (c != 0) {
+                    return c > 0;
+                }
+            }
+            return true;
+        }
+
+        private static void subP(int[] r) {
+            long borrow = 0;
+            for (int i = 0; i != LIMBS; ++i) {
+                long d = (r[i] & M) - (MODULUS_LIMBS[i] & M) - borrow;
+                r[i] = (int) d;
+                borrow = (d >>> 63);
+            }
+        }
+
+        private static int[] limbs(BigInteger v) {
+            int[] r = new int[LIMBS];
+            for (int i = 0; i != LIMBS; ++i) {
+                r[i] = v.shiftRight(32 * i).intValue();
+            }
+            return r;
+        }
+    }
+
+    /**
+     * An element <code>a + b*u</code> of the quadratic extension
+     * <code>Fp2</code>, where <code>u^2 = -1</code>.
+     *
+     * @author David J. Pearce
+     *
+     */
+    public static final class Fp2 implements Field<Fp2> {
+        public static final Fp2 ZERO = new Fp2(Fp.ZERO, Fp.ZERO);
+        public static final Fp2 ONE = new Fp2(Fp.ONE, Fp.ZERO);
+
+        private final Fp a, b;
+
+        public Fp2(Fp a, Fp b) {
+            this.a = a;
+            this.b = b;
+        }
+
+        @Override
+        public Fp2 add(Fp2 o) {
+            return new Fp2(a.add(o.a), b.add(o.b));
+        }
+
+        @Override
+        public Fp2 sub(Fp2 o) {
+            return new Fp2(a.sub(o.a), b.sub(o.b));
+        }
+
+        @Override
+        public Fp2 mul(Fp2 o) {
+            Fp t0 = a.mul(o.a);
+            Fp t1 = b.mul(o.b);
+            return new Fp2(t0.sub(t1), a.add(b).mul(o.a.add(o.b)).sub(t0).sub(t1));
+        }
+
+        public Fp2 mul(Fp k) {
+            return new Fp2(a.mul(k), b.mul(k));
+        }
+
+        @Override
+        public Fp2 square() {
+            Fp ab = a.mul(b);
+            return new Fp2(a.add(b).mul(a.sub(b)), ab.add(ab));
+        }
+
+        @Override
+        public Fp2 neg() {
+            return new Fp2(a.neg(), b.neg());
+        }
+
+        @Override
+        public Fp2 inverse() {
+            Fp t = a.square().add(b.square()).inverse();
+            return new Fp2(a.mul(t), b.mul(t).neg());
+        }
+
+        /**
+         * Multiply by the non-residue <code>u+1</code> used to construct Fp6.
+         *
+         * @return
+         */
+        public Fp2 mulByNonResidue() {
+            return new Fp2(a.sub(b), a.add(b));
+        }
+
+        /**
+         * Compute the conjugate <code>a - b*u</code>, which is also the
+         * Frobenius map (i.e. raising to the power <code>p</code>).
+         *
+         * @return
+         */
+        public Fp2 conjugate() {
+            return new Fp2(a, b.neg());
+        }
+
+        public Fp2 pow(BigInteger e) {
+            Fp2 r = ONE;
+            for (int i = e.bitLength() - 1; i >= 0; --i) {
+                r = r.square();
+                if (e.testBit(i)) {
+                    r = r.mul(this);
+                }
+            }
+            return r;
+        }
+
+        /**
+         * Compute a square root of this element, or return <code>null</code> if
+         * none exists. This uses the norm <code>a^2 + b^2</code> to reduce the
+         * problem to square roots in Fp.
+         *
+         * @return
+         */
+        public Fp2 sqrt() {
+            Fp2 r;
+            if (b.isZero()) {
+                // Either a or -a is a square, since -1 is not
+                Fp s = a.sqrt();
+                Fp t = a.neg().sqrt();
+                r = (s != null) ? new Fp2(s, Fp.ZERO) : (t != null) ? new Fp2(Fp.ZERO, t) : null;
+            } else {
+                Fp n = a.square().add(b.square()).sqrt();
+                if (n == null) {
+                    return null;
+                }
+                Fp half = Fp.of(BigInteger.TWO).inverse();
+                Fp x0 = a.add(n).mul(half).sqrt();
+                if (x0 == null) {
+                    x0 = a.sub(n).mul(half).sqrt();
+                }
+                r = (x0 == null || x0.isZero()) ? null : new Fp2(x0, b.mul(x0.add(x0).inverse()));
+            }
+            return (r != null && r.square().equals(this)) ? r : null;
+        }
+
+        /**
+         * Check whether this element is larger than its negation, where the
+         * imaginary part takes precedence.
+         *
+         * @return
+         */
+        public boolean isLexicographicallyLargest() {
+            return b.isZero() ? a.isLexicographicallyLargest() : b.isLexicographicallyLargest();
+        }
+
+        @Override
+        public boolean isZero() {
+            return a.isZero() && b.isZero();
+        }
+
+        @Override
+        public Fp2 zero() {
+            return ZERO;
+        }
+
+        @Override
+        public Fp2 one() {
+            return ONE;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Fp2 && ((Fp2) o).a.equals(a) && ((Fp2) o).b.equals(b);
+        }
+
+        @Override
+        public int hashCode() {
+            return a.hashCode() ^ b.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return "(" + a + "," + b + ")";
+        }
+    }
+
+    /**
+     * An element <code>c0 + c1*v + c2*v^2</code> of the cubic extension
+     * <code>Fp6</code>, where <code>v^3 = u+1</code>.
+     *
+     * @author David J. Pearce
+     *
+     */
+    private static final class Fp6 {
+        private static final Fp6 ZERO = new Fp6(Fp2.ZERO, Fp2.ZERO, Fp2.ZERO);
+        private static final Fp6 ONE = new Fp6(Fp2.ONE, Fp2.ZERO, Fp2.ZERO);
+
+        private final Fp2 c0, c1, c2;
+
+        private Fp6(Fp2 c0, Fp2 c1, Fp2 c2) {
+            this.c0 = c0;
+            this.c1 = c1;
+            this.c2 = c2;
+        }
+
+        private Fp6 add(Fp6 o) {
+            return new Fp6(c0.add(o.c0), c1.add(o.c1), c2.add(o.c2));
+        }
+
+        private Fp6 sub(Fp6 o) {
+            return new Fp6(c0.sub(o.c0), c1.sub(o.c1), c2.sub(o.c2));
+        }
+
+        private Fp6 neg() {
+            return new Fp6(c0.neg(), c1.neg(), c2.neg());
+        }
+
+        private Fp6 mul(Fp6 o) {
+            Fp2 t0 = c0.mul(o.c0);
+            Fp2 t1 = c1.mul(o.c1);
+            Fp2 t2 = c2.mul(o.c2);
+            Fp2 r0 = c1.add(c2).mul(o.c1.add(o.c2)).sub(t1).sub(t2).mulByNonResidue().add(t0);
+            Fp2 r1 = c0.add(c1).mul(o.c0.add(o.c1)).sub(t0).sub(t1).add(t2.mulByNonResidue());
+            Fp2 r2 = c0.add(c2).mul(o.c0.add(o.c2)).sub(t0).sub(t2).add(t1);
+            return new Fp6(r0, r1, r2);
+        }
+
+        private Fp6 mul(Fp2 k) {
+            return new Fp6(c0.mul(k), c1.mul(k), c2.mul(k));
+        }
+
+        /**
+         * Multiply by <code>v</code>.
+         *
+         * @return
+         */
+        private Fp6 mulByV() {
+            return new Fp6(c2.mulByNonResidue(), c0, c1);
+        }
+
+        private Fp6 inverse() {
+            Fp2 t0 = c0.square().sub(c1.mul(c2).mulByNonResidue());
+            Fp2 t1 = c2.square().mulByNonResidue().sub(c0.mul(c1));
+            Fp2 t2 = c1.square().sub(c0.mul(c2));
+            Fp2 d = c0.mul(t0).add(c2.mul(t1).add(c1.mul(t2)).mulByNonResidue()).inverse();
+            return new Fp6(t0.mul(d), t1.mul(d), t2.mul(d));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Fp6 && ((Fp6) o).c0.equals(c0) && ((Fp6) o).c1.equals(c1)
+                    && ((Fp6) o).c2.equals(c2);
+        }
+
+        @Override
+        public int hashCode() {
+            return c0.hashCode() ^ c1.hashCode() ^ c2.hashCode();
+        }
+    }
+
+    /**
+     * An element <code>c0 + c1*w</code> of the quadratic extension
+     * <code>Fp12</code>, where <code>w^2 = v</code>.
+     *
+     * @author David J. Pearce
+     *
+     */
+    private static final class Fp12 {
+        private static final Fp12 ONE = new Fp12(Fp6.ONE, Fp6.ZERO);
+
+        private final Fp6 c0, c1;
+
+        private Fp12(Fp6 c0, Fp6 c1) {
+            this.c0 = c0;
+            this.c1 = c1;
+        }
+
+        private Fp12 mul(Fp12 o) {
+            Fp6 t0 = c0.mul(o.c0);
+            Fp6 t1 = c1.mul(o.c1);
+            return new Fp12(t0.add(t1.mulByV()), c0.add(c1).mul(o.c0.add(o.c1)).sub(t0).sub(t1));
+        }
+
+        private Fp12 square() {
+            Fp6 ab = c0.mul(c1);
+            Fp6 r0 = c0.add(c1).mul(c0.add(c1.mulByV())).sub(ab).sub(ab.mulByV());
+            return new Fp12(r0, ab.add(ab));
+        }
+
+        private Fp12 conjugate() {
+            return new Fp12(c0, c1.neg());
+        }
+
+        private Fp12 inverse() {
+            Fp6 t = c0.mul(c0).sub(c1.mul(c1).mulByV()).inverse();
+            return new Fp12(c0.mul(t), c1.mul(t).neg());
+        }
+
+        /**
+         * Raise this element to the power <code>p</code>. Viewing it as
+         * <code>g0 + g1*w + ... + g5*w^5</code> (where <code>c0 = (g0,g2,g4)</code>
+         * and <code>c1 = (g1,g3,g5)</code>), each <code>gi</code> is conjugated
+         * and <code>w^i</code> becomes <code>w^i * (u+1)^(i*(p-1)/6)</code>.
+         *
+         * @return
+         */
+        private Fp12 frobenius() {
+            Fp6 r0 = new Fp6(c0.c0.conjugate(), c0.c1.conjugate().mul(FROBENIUS[2]),
+                    c0.c2.conjugate().mul(FROBENIUS[4]));
+            Fp6 r1 = new Fp6(c1.c0.conjugate().mul(FROBENIUS[1]), c1.c1.conjugate().mul(FROBENIUS[3]),
+                    c1.c2.conjugate().mul(FROBENIUS[5]));
+            return new Fp12(r0, r1);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Fp12 && ((Fp12) o).c0.equals(c0) && ((Fp12) o).c1.equals(c1);
+        }
+
+        @Override
+        public int hashCode() {
+            return c0.hashCode() ^ c1.hashCode();
+        }
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright 2022 ConsenSys Software Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software dis-
+ * tributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package dafnyevm.crypto;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.bouncycastle.util.encoders.Hex;
+
+import dafnyevm.crypto.Bls12381.Fp;
+import dafnyevm.crypto.Bls12381.Fp2;
+import dafnyevm.crypto.Bls12381.Lines;
+import dafnyevm.crypto.Bls12381.Point;
+
+/**
+ * <p>
+ * Verification of KZG proofs as used by the point evaluation precompile (see
+ * EIP-4844). A proof <code>pi</code> shows that the polynomial committed to by
+ * <code>C</code> evaluates to <code>y</code> at <code>z</code>, which holds
+ * when <code>e(C - [y]G1, G2) == e(pi, [tau]G2 - [z]G2)</code>. Rearranging
+ * this gives the equivalent check:
+ * </p>
+ *
+ * <pre>
+ * e(C - [y]G1 + [z]pi, -G2) * e(pi, [tau]G2) == 1
+ * </pre>
+ * <p>
+ * Here, both points in G2 are fixed by the trusted setup. Hence, their line
+ * functions are computed once up front, leaving only the (cheaper) scalar
+ * multiplications in G1 and a single shared Miller loop for each proof.
+ * </p>
+ * <p>
+ * The trusted setup is loaded from the resource
+ * <code>dafnyevm/crypto/trusted_setup.txt</code>, or from the file given by
+ * the <code>dafnyevm.kzg.setup</code> system property. This uses the text
+ * format of the reference implementation (i.e. the number of G1 points, the
+ * number of G2 points, and then each point as hex). Only the first two G2
+ * points (i.e. <code>G2</code> and <code>[tau]G2</code>) are needed to verify
+ * proofs, hence the bundled resource omits the rest.
+ * </p>
+ * <p>
+ * NOTE: verifying a proof takes tens of milliseconds, which is far slower than
+ * optimised native libraries (e.g. c-kzg). Although elements of the base field
+ * are held in fixed-width limbs (see <code>Fp</code>), most of this time is
+ * spent in the pairing, whose extension field arithmetic allocates heavily.
+ * The point evaluation precompile is therefore much slower to execute than its
+ * gas cost suggests.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class Kzg {
+    public static final int FIELD_ELEMENTS_PER_BLOB = 4096;
+    public static final byte VERSIONED_HASH_VERSION_KZG = 0x01;
+    /**
+     * The line functions for <code>-G2</code>.
+     */
+    private static final Lines NEG_G2 = Lines.of(Bls12381.G2.negate());
+
+    /**
+     * The line functions for <code>[tau]G2</code>.
+     */
+    private final Lines tau;
+
+    /**
+     * Construct a verifier for a trusted setup with a given <code>[tau]G2</code>.
+     *
+     * @param tau
+     */
+    public Kzg(Point<Fp2> tau) {
+        this.tau = Lines.of(tau);
+    }
+
+    /**
+     * Get the verifier for the trusted setup, which is loaded on first use.
+     *
+     * @return
+     */
+    public static Kzg getInstance() {
+        return Setup.INSTANCE;
+    }
+
+    /**
+     * Check whether a given proof shows the polynomial committed to evaluates to
+     * <code>y</code> at <code>z</code>, where both are assumed to be less than
+     * <code>r</code>.
+     *
+     * @param commitment
+     * @param z
+     * @param y
+     * @param proof
+     * @return
+     */
+    public boolean verifyProof(Point<Fp> commitment, BigInteger z, BigInteger y, Point<Fp> proof) {
+        Point<Fp> p = commitment.add(Bls12381.G1.multiply(y).negate()).add(proof.multiply(z));
+        return Bls12381.pairingCheck(List.of(p, proof), List.of(NEG_G2, tau));
+    }
+
+    /**
+     * Check the input to the point evaluation precompile. That is, a versioned
+     * hash (32 bytes), the evaluation point <code>z</code> (32 bytes), the
+     * claimed value <code>y</code> (32 bytes), the commitment (48 bytes) and the
+     * proof (48 bytes). This holds only if the versioned hash matches the
+     * commitment, and the proof is valid.
+     *
+     * @param input
+     * @param offset
+     * @param length
+     * @return
+     */
+    public boolean verifyPointEvaluation(byte[] input, int offset, int length) {
+        if (length != 192 || !Arrays.equals(versionedHash(input, offset + 96), 0, 32, input, offset, offset + 32)) {
+            return false;
+        }
+        BigInteger z = new BigInteger(1, input, offset + 32, 32);
+        BigInteger y = new BigInteger(1, input, offset + 64, 32);
+        if (z.compareTo(Bls12381.R) >= 0 || y.compareTo(Bls12381.R) >= 0) {
+            return false;
+        }
+        Point<Fp> commitment = Bls12381.decodeG1(input, offset + 96);
+        Point<Fp> proof = Bls12381.decodeG1(input, offset + 144);
+        return commitment != null && proof != null && verifyProof(commitment, z, y, proof);
+    }
+
+    /**
+     * Compute the versioned hash of a (48 byte) commitment. This is its Sha256
+     * hash, where the first byte is replaced by the version.
+     *
+     * @param commitment
+     * @param offset
+     * @return
+     */
+    public static byte[] versionedHash(byte[] commitment, int offset) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(commitment, offset, 48);
+            byte[] hash = digest.digest();
+            hash[0] = VERSIONED_HASH_VERSION_KZG;
+            return hash;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Load a trusted setup from a given stream (in the text format of the
+     * reference implementation).
+     *
+     * @param in
+     * @return
+     * @throws IOException
+     */
+    public static Kzg load(InputStream in) throws IOException {
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isBlank()) {
+                    lines.add(line.trim());
+                }
+            }
+        }
+        if (lines.size() < 2) {
+            throw new IOException("invalid trusted setup");
+        }
+        int n1 = Integer.parseInt(lines.get(0));
+        int n2 = Integer.parseInt(lines.get(1));
+        if (n2 < 2 || lines.size() < n1 + n2 + 2) {
+            throw new IOException("invalid trusted setup");
+        }
+        Point<Fp2> g2 = Bls12381.decodeG2(Hex.decode(lines.get(n1 + 2)), 0);
+        Point<Fp2> tau = Bls12381.decodeG2(Hex.decode(lines.get(n1 + 3)), 0);
+        if (g2 == null || tau == null || !g2.equals(Bls12381.G2)) {
+            throw new IOException("invalid trusted setup");
+        }
+        return new Kzg(tau);
+    }
+
+    /**
+     * Holds the default trusted setup, such that it is only loaded when first
+     * needed.
+     */
+    private static class Setup {
+        private static final Kzg INSTANCE = load();
+
+        private static Kzg load() {
+            String file = System.getProperty("dafnyevm.kzg.setup");
+            try (InputStream in = (file != null) ? Files.newInputStream(Path.of(file))
+                    : Kzg.class.getResourceAsStream("trusted_setup.txt")) {
+                if (in == null) {
+                    throw new IOException("missing trusted setup");
+                }
+                return Kzg.load(in);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
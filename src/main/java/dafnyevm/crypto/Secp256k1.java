@@ -0,0 +1,1181 @@
+/*
+ * Copyright 2022 ConsenSys Software Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software dis-
+ * tributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package dafnyevm.crypto;
+
+import java.math.BigInteger;
+
+/**
+ * <p>
+ * Public key recovery for the secp256k1 curve (as used by the
+ * <code>ECRECOVER</code> precompile). Field elements are held as eight 32-bit
+ * limbs (least significant first) and arithmetic modulo <code>p</code> exploits
+ * its special form (i.e. <code>p = 2^256 - 2^32 - 977</code>), such that no
+ * <code>BigInteger</code> arithmetic is required on the critical path. Points
+ * are held in Jacobian coordinates to avoid inversions.
+ * </p>
+ * <p>
+ * Recovery computes <code>Q = u1*G + u2*R</code> using the GLV endomorphism
+ * (i.e. <code>lambda*(x,y) = (beta*x,y)</code>) to split each scalar into two
+ * halves of roughly 128 bits. The four resulting multiplications are then
+ * interleaved (so they share their doublings), using windowed NAF with a large
+ * precomputed table for the generator.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class Secp256k1 {
+    /**
+     * The order of the curve.
+     */
+    public static final BigInteger N = new BigInteger("fffffffffffffffffffffffffffffffebaaedce6af48a03bbfd25e8cd0364141", 16);
+    /**
+     * Basis vectors used for splitting scalars (see "Guide to Elliptic Curve
+     * Cryptography", Algorithm 3.74).
+     */
+    private static final BigInteger A1 = new BigInteger("3086d221a7d46bcde86c90e49284eb15", 16);
+    private static final BigInteger B1 = new BigInteger("-e4437ed6010e88286f547fa90abfe4c3", 16);
+    private static final BigInteger A2 = new BigInteger("114ca50f7a8e2f3f657c1108d9d44cfd8", 16);
+    private static final BigInteger B2 = A1;
+    /**
+     * Window width used for the generator (which has a precomputed table) and
+     * for arbitrary points (whose table is computed for each multiplication).
+     */
+    private static final int G_WINDOW = 8;
+    private static final int P_WINDOW = 5;
+    private static final long M = 0xFFFFFFFFL;
+    /**
+     * The prime <code>p</code> (in limbs), and <code>C = 2^256 - p</code>.
+     */
+    private static final int[] P = limbs(new BigInteger("fffffffffffffffffffffffffffffffffffffffffffffffffffffffefffffc2f", 16));
+    private static final long C_LO = 977;
+    private static final int[] ZERO = new int[8];
+    private static final int[] ONE = limbs(BigInteger.ONE);
+    private static final int[] SEVEN = limbs(BigInteger.valueOf(7));
+    /**
+     * Beta such that <code>lambda*(x,y) = (beta*x,y)</code> for any point, where
+     * <code>lambda = 0x5363ad4c...1b23bd72</code>.
+     */
+    private static final int[] BETA = limbs(new BigInteger("7ae96a2b657c07106e64479eac3434e99cf0497512f58995c1396c28719501ee", 16));
+    /**
+     * Precomputed odd multiples of the generator (and of its endomorphism), in
+     * affine coordinates.
+     */
+    private static final int[][][] G_TABLE;
+    private static final int[][][] G_LAMBDA_TABLE;
+
+    static {
+        int[] gx = limbs(new BigInteger("79be667ef9dcbbac55a06295ce870b07029bfcdb2dce28d959f2815b16f81798", 16));
+        int[] gy = limbs(new BigInteger("483ada7726a3c4655da4fbfc0e1108a8fd17b448a68554199c47d08ffb10d4b8", 16));
+        G_TABLE = affineOddMultiples(gx, gy, G_WINDOW);
+        G_LAMBDA_TABLE = endomorphism(G_TABLE);
+    }
+
+    /**
+     * Recover the public key from a signature over a given hash. The public key
+     * is returned as 64 bytes (i.e. the x and y coordinates in big endian form),
+     * or <code>null</code> if no key can be recovered.
+     *
+     * @param h     Hash which was signed (32 bytes).
+     * @param recid Recovery identifier (either <code>0</code> or <code>1</code>).
+     * @param r
+     * @param s
+     * @return
+     */
+    public static byte[] recover(byte[] h, int recid, BigInteger r, BigInteger s) {
+        if (recid < 0 || recid > 1 || r.signum() <= 0 || r.compareTo(N) >= 0 || s.signum() <= 0
+                || s.compareTo(N) >= 0) {
+            return null;
+        }
+        // Determine the point R from its x coordinate (which is less than p, since r < n < p).
+        int[] x = limbs(r);
+        int[] y = new int[8];
+        sqr(y, x);
+        mul(y, y, x);
+        add(y, y, SEVEN);
+        int[] root = sqrt(y);
+        int[] check = new int[8];
+        sqr(check, root);
+        if (!equal(check, y)) {
+            // x is not on the curve.
+            return null;
+        }
+        if ((root[0] & 1) != recid) {
+            sub(root, ZERO, root);
+        }
+        // Compute u1 = -e/r and u2 = s/r
+        BigInteger e = new BigInteger(1, h).mod(N);
+        BigInteger rinv = r.modInverse(N);
+        BigInteger u1 = N.subtract(e).multiply(rinv).mod(N);
+        BigInteger u2 = s.multiply(rinv).mod(N);
+        // Compute Q = u1*G + u2*R
+        int[][] q = multiply(u1, x, root, u2);
+        if (isZero(q[2])) {
+            return null;
+        }
+        // Convert to affine coordinates
+        int[] zinv = inv(q[2]);
+        int[] zinv2 = new int[8];
+        sqr(zinv2, zinv);
+        int[] qx = new int[8];
+        int[] qy = new int[8];
+        mul(qx, q[0], zinv2);
+        mul(zinv2, zinv2, zinv);
+        mul(qy, q[1], zinv2);
+        byte[] key = new byte[64];
+        toBytes(qx, key, 0);
+        toBytes(qy, key, 32);
+        return key;
+    }
+
+    // ========================================================================
+    // Scalar Multiplication
+    // ========================================================================
+
+    /**
+     * Compute <code>u1*G + u2*(x,y)</code> in Jacobian coordinates.
+     * <p>
+     * To avoid an inversion, the odd multiples of <code>(x,y)</code> are
+     * computed such that they share a common z coordinate <code>f</code> (see
+     * <code>oddMultiples()</code>). They can then be used as affine points on an
+     * isomorphic curve, provided the accumulated point is interpreted as having
+     * its z coordinate scaled by <code>f</code>. Likewise, points from the
+     * generator table are mapped onto the isomorphic curve before being added.
+     * </p>
+     *
+     * @param u1
+     * @param x
+     * @param y
+     * @param u2
+     * @return
+     */
+    private static int[][] multiply(BigInteger u1, int[] x, int[] y, BigInteger u2) {
+        BigInteger[] k1 = split(u1);
+        BigInteger[] k2 = split(u2);
+        int[] f = new int[8];
+        int[][][] table = oddMultiples(x, y, P_WINDOW, f);
+        int[][][] lambdaTable = endomorphism(table);
+        // Scaling factors for mapping generator points onto the isomorphic curve.
+        int[] f2 = new int[8], f3 = new int[8], gx = new int[8], gy = new int[8];
+        sqr(f2, f);
+        mul(f3, f2, f);
+        // Each term is a table and the wNAF of its scalar.
+        int[][][][] tables = { G_TABLE, G_LAMBDA_TABLE, table, lambdaTable };
+        BigInteger[] scalars = { k1[0], k1[1], k2[0], k2[1] };
+        int[] windows = { G_WINDOW, G_WINDOW, P_WINDOW, P_WINDOW };
+        int[][] nafs = new int[4][];
+        int length = 0;
+        for (int i = 0; i != 4; ++i) {
+            nafs[i] = wnaf(scalars[i].abs(), windows[i]);
+            length = Math.max(length, nafs[i].length);
+        }
+        //
+        int[][] q = { new int[8], new int[8], new int[8] };
+        int[] ny = new int[8];
+        for (int j = length - 1; j >= 0; --j) {
+            dbl(q);
+            for (int i = 0; i != 4; ++i) {
+                if (j < nafs[i].length && nafs[i][j] != 0) {
+                    int d = nafs[i][j];
+                    int[][] pt = tables[i][Math.abs(d) >> 1];
+                    int[] px = pt[0], py = pt[1];
+                    if (i < 2) {
+                        mul(gx, px, f2);
+                        mul(gy, py, f3);
+                        px = gx;
+                        py = gy;
+                    }
+                    boolean negate = (d < 0) != (scalars[i].signum() < 0);
+                    if (negate) {
+                        sub(ny, ZERO, py);
+                        madd(q, px, ny, null);
+                    } else {
+                        madd(q, px, py, null);
+                    }
+                }
+            }
+        }
+        // Undo the isomorphism
+        mul(q[2], q[2], f);
+        return q;
+    }
+
+    /**
+     * Split a scalar <code>k</code> into <code>k1</code> and <code>k2</code>,
+     * such that <code>k = k1 + k2*lambda (mod n)</code> and both are roughly 128
+     * bits. Either may be negative.
+     *
+     * @param k
+     * @return
+     */
+    private static BigInteger[] split(BigInteger k) {
+        BigInteger c1 = roundDiv(B2.multiply(k), N);
+        BigInteger c2 = roundDiv(B1.negate().multiply(k), N);
+        BigInteger k1 = k.subtract(c1.multiply(A1)).subtract(c2.multiply(A2));
+        BigInteger k2 = c1.multiply(B1).negate().subtract(c2.multiply(B2));
+        return new BigInteger[] { k1, k2 };
+    }
+
+    private static BigInteger roundDiv(BigInteger a, BigInteger b) {
+        return a.add(b.shiftRight(1)).divide(b);
+    }
+
+    /**
+     * Compute the width-w non-adjacent form of a non-negative scalar, least
+     * significant digit first. Every non-zero digit is odd, and has magnitude
+     * less than <code>2^(w-1)</code>.
+     *
+     * @param k
+     * @param w
+     * @return
+     */
+    private static int[] wnaf(BigInteger k, int w) {
+        int[] digits = new int[k.bitLength() + 1];
+        int mask = (1 << w) - 1;
+        int i = 0;
+        while (k.signum() > 0) {
+            int d = 0;
+            if (k.testBit(0)) {
+                d = k.intValue() & mask;
+                if (d >= (1 << (w - 1))) {
+                    d = d - (1 << w);
+                }
+                k = k.subtract(BigInteger.valueOf(d));
+            }
+            digits[i++] = d;
+            k = k.shiftRight(1);
+        }
+        return java.util.Arrays.copyOf(digits, i);
+    }
+
+    /**
+     * Compute the odd multiples <code>P, 3P, 5P, ...</code> of a given affine
+     * point, as needed for windowed NAF of a given width. The results all share
+     * a common z coordinate, which is written into <code>f</code>, and only
+     * their x and y coordinates are returned. That is, the ith result
+     * <code>(x,y)</code> represents the Jacobian point <code>(x,y,f)</code>.
+     * Computing this requires no inversions.
+     *
+     * @param x
+     * @param y
+     * @param w
+     * @param f
+     * @return
+     */
+    private static int[][][] oddMultiples(int[] x, int[] y, int w, int[] f) {
+        int n = 1 << (w - 2);
+        // Compute D = 2P, and map P onto the isomorphic curve where D is affine.
+        int[][] d = { x.clone(), y.clone(), ONE.clone() };
+        dbl(d);
+        int[] z2 = new int[8], z3 = new int[8];
+        sqr(z2, d[2]);
+        mul(z3, z2, d[2]);
+        int[][][] jacobian = new int[n][][];
+        int[][] ratios = new int[n][8];
+        jacobian[0] = new int[][] { new int[8], new int[8], ONE.clone() };
+        mul(jacobian[0][0], x, z2);
+        mul(jacobian[0][1], y, z3);
+        for (int i = 1; i < n; ++i) {
+            int[][] p = copy(jacobian[i - 1]);
+            madd(p, d[0], d[1], ratios[i]);
+            jacobian[i] = p;
+        }
+        // Rescale every point to the z coordinate of the last.
+        int[][][] table = new int[n][][];
+        int[] s = ONE.clone(), s2 = new int[8], s3 = new int[8];
+        for (int i = n - 1; i >= 0; --i) {
+            sqr(s2, s);
+            mul(s3, s2, s);
+            int[] px = new int[8], py = new int[8];
+            mul(px, jacobian[i][0], s2);
+            mul(py, jacobian[i][1], s3);
+            table[i] = new int[][] { px, py };
+            if (i > 0) {
+                mul(s, s, ratios[i]);
+            }
+        }
+        // Account for the isomorphism
+        mul(f, jacobian[n - 1][2], d[2]);
+        return table;
+    }
+
+    /**
+     * Compute the odd multiples <code>P, 3P, 5P, ...</code> of a given affine
+     * point in affine coordinates.
+     *
+     * @param x
+     * @param y
+     * @param w
+     * @return
+     */
+    private static int[][][] affineOddMultiples(int[] x, int[] y, int w) {
+        int[] f = new int[8];
+        int[][][] table = oddMultiples(x, y, w, f);
+        int[] finv = inv(f), finv2 = new int[8], finv3 = new int[8];
+        sqr(finv2, finv);
+        mul(finv3, finv2, finv);
+        for (int[][] p : table) {
+            mul(p[0], p[0], finv2);
+            mul(p[1], p[1], finv3);
+        }
+        return table;
+    }
+
+    /**
+     * Apply the endomorphism to every point in a table of affine points.
+     *
+     * @param table
+     * @return
+     */
+    private static int[][][] endomorphism(int[][][] table) {
+        int[][][] result = new int[table.length][][];
+        for (int i = 0; i != table.length; ++i) {
+            int[] x = new int[8];
+            mul(x, table[i][0], BETA);
+            result[i] = new int[][] { x, table[i][1] };
+        }
+        return result;
+    }
+
+    // ========================================================================
+    // Point Arithmetic (Jacobian Coordinates)
+    // ========================================================================
+
+    /**
+     * Double a point in place (using "dbl-2009-l", since <code>a = 0</code>).
+     *
+     * @param p
+     */
+    private static void dbl(int[][] p) {
+        if (isZero(p[2])) {
+            return;
+        }
+        int[] a = new int[8], b = new int[8], c = new int[8], d = new int[8], e = new int[8], f = new int[8];
+        sqr(a, p[0]);
+        sqr(b, p[1]);
+        sqr(c, b);
+        // d = 2*((x+b)^2 - a - c)
+        add(d, p[0], b);
+        sqr(d, d);
+        sub(d, d, a);
+        sub(d, d, c);
+        add(d, d, d);
+        // e = 3*a, f = e^2
+        add(e, a, a);
+        add(e, e, a);
+        sqr(f, e);
+        // z3 = 2*y*z
+        mul(p[2], p[1], p[2]);
+        add(p[2], p[2], p[2]);
+        // x3 = f - 2*d
+        sub(p[0], f, d);
+        sub(p[0], p[0], d);
+        // y3 = e*(d - x3) - 8*c
+        sub(d, d, p[0]);
+        mul(p[1], e, d);
+        add(c, c, c);
+        add(c, c, c);
+        add(c, c, c);
+        sub(p[1], p[1], c);
+    }
+
+    /**
+     * Add an affine point to a Jacobian point in place (using "madd-2007-bl").
+     * If <code>ratio</code> is non-null, then it is assigned the ratio of the
+     * resulting z coordinate to the original (i.e. such that
+     * <code>z3 = z1 * ratio</code>).
+     *
+     * @param p
+     * @param x2
+     * @param y2
+     * @param ratio
+     */
+    private static void madd(int[][] p, int[] x2, int[] y2, int[] ratio) {
+        if (isZero(p[2])) {
+            System.arraycopy(x2, 0, p[0], 0, 8);
+            System.arraycopy(y2, 0, p[1], 0, 8);
+            System.arraycopy(ONE, 0, p[2], 0, 8);
+            return;
+        }
+        int[] z1z1 = new int[8], u2 = new int[8], s2 = new int[8], h = new int[8], hh = new int[8];
+        int[] i = new int[8], j = new int[8], r = new int[8], v = new int[8];
+        sqr(z1z1, p[2]);
+        mul(u2, x2, z1z1);
+        mul(s2, y2, p[2]);
+        mul(s2, s2, z1z1);
+        sub(h, u2, p[0]);
+        sub(r, s2, p[1]);
+        add(r, r, r);
+        if (isZero(h)) {
+            if (isZero(r)) {
+                dbl(p);
+            } else {
+                System.arraycopy(ZERO, 0, p[2], 0, 8);
+            }
+            return;
+        }
+        sqr(hh, h);
+        add(i, hh, hh);
+        add(i, i, i);
+        mul(j, h, i);
+        mul(v, p[0], i);
+        // z3 = 2*z1*h
+        add(h, h, h);
+        mul(p[2], p[2], h);
+        if (ratio != null) {
+            System.arraycopy(h, 0, ratio, 0, 8);
+        }
+        // x3 = r^2 - j - 2*v
+        sqr(p[0], r);
+        sub(p[0], p[0], j);
+        sub(p[0], p[0], v);
+        sub(p[0], p[0], v);
+        // y3 = r*(v - x3) - 2*y1*j
+        mul(j, p[1], j);
+        add(j, j, j);
+        sub(v, v, p[0]);
+        mul(p[1], r, v);
+        sub(p[1], p[1], j);
+    }
+
+    /**
+     * Add a Jacobian point to another in place (using "add-2007-bl").
+     *
+     * @param p
+     * @param q
+     */
+    private static void add(int[][] p, int[][] q) {
+        if (isZero(q[2])) {
+            return;
+        } else if (isZero(p[2])) {
+            for (int k = 0; k != 3; ++k) {
+                System.arraycopy(q[k], 0, p[k], 0, 8);
+            }
+            return;
+        }
+        int[] z1z1 = new int[8], z2z2 = new int[8], u1 = new int[8], u2 = new int[8], s1 = new int[8];
+        int[] s2 = new int[8], h = new int[8], i = new int[8], j = new int[8], r = new int[8], v = new int[8];
+        sqr(z1z1, p[2]);
+        sqr(z2z2, q[2]);
+        mul(u1, p[0], z2z2);
+        mul(u2, q[0], z1z1);
+        mul(s1, p[1], q[2]);
+        mul(s1, s1, z2z2);
+        mul(s2, q[1], p[2]);
+        mul(s2, s2, z1z1);
+        sub(h, u2, u1);
+        sub(r, s2, s1);
+        add(r, r, r);
+        if (isZero(h)) {
+            if (isZero(r)) {
+                dbl(p);
+            } else {
+                System.arraycopy(ZERO, 0, p[2], 0, 8);
+            }
+            return;
+        }
+        add(i, h, h);
+        sqr(i, i);
+        mul(j, h, i);
+        mul(v, u1, i);
+        // z3 = ((z1+z2)^2 - z1z1 - z2z2)*h
+        add(p[2], p[2], q[2]);
+        sqr(p[2], p[2]);
+        sub(p[2], p[2], z1z1);
+        sub(p[2], p[2], z2z2);
+        mul(p[2], p[2], h);
+        // x3 = r^2 - j - 2*v
+        sqr(p[0], r);
+        sub(p[0], p[0], j);
+        sub(p[0], p[0], v);
+        sub(p[0], p[0], v);
+        // y3 = r*(v - x3) - 2*s1*j
+        mul(j, s1, j);
+        add(j, j, j);
+        sub(v, v, p[0]);
+        mul(p[1], r, v);
+        sub(p[1], p[1], j);
+    }
+
+    private static int[][] copy(int[][] p) {
+        return new int[][] { p[0].clone(), p[1].clone(), p[2].clone() };
+    }
+
+    // ========================================================================
+    // Field Arithmetic (modulo p)
+    // ========================================================================
+
+    /**
+     * Compute <code>r = a * b (mod p)</code>. The result may alias either
+     * operand.
+     *
+     * @param r
+     * @param a
+     * @param b
+     */
+    private static void mul(int[] r, int[] a, int[] b) {
+        long a0 = a[0] & M, a1 = a[1] & M, a2 = a[2] & M, a3 = a[3] & M;
+        long a4 = a[4] & M, a5 = a[5] & M, a6 = a[6] & M, a7 = a[7] & M;
+        long b0 = b[0] & M, b1 = b[1] & M, b2 = b[2] & M, b3 = b[3] & M;
+        long b4 = b[4] & M, b5 = b[5] & M, b6 = b[6] & M, b7 = b[7] & M;
+        long p, lo, hi, c = 0;
+        // Column 0
+        p = a0 * b0;
+        lo = c + (p & M);
+        hi = p >>> 32;
+        long t0 = lo & M;
+        c = (lo >>> 32) + hi;
+        // Column 1
+        p = a0 * b1;
+        lo = c + (p & M);
+        hi = p >>> 32;
+        p = a1 * b0;
+        lo += p & M;
+        hi += p >>> 32;
+        long t1 = lo & M;
+        c = (lo >>> 32) + hi;
+        // Column 2
+        p = a0 * b2;
+        lo = c + (p & M);
+        hi = p >>> 32;
+        p = a1 * b1;
+        lo += p & M;
+        hi += p >>> 32;
+        p = a2 * b0;
+        lo += p & M;
+        hi += p >>> 32;
+        long t2 = lo & M;
+        c = (lo >>> 32) + hi;
+        // Column 3
+        p = a0 * b3;
+        lo = c + (p & M);
+        hi = p >>> 32;
+        p = a1 * b2;
+        lo += p & M;
+        hi += p >>> 32;
+        p = a2 * b1;
+        lo += p & M;
+        hi += p >>> 32;
+        p = a3 * b0;
+        lo += p & M;
+        hi += p >>> 32;
+        long t3 = lo & M;
+        c = (lo >>> 32) + hi;
+        // Column 4
+        p = a0 * b4;
+        lo = c + (p & M);
+        hi = p >>> 32;
+        p = a1 * b3;
+        lo += p & M;
+        hi += p >>> 32;
+        p = a2 * b2;
+        lo += p & M;
+        hi += p >>> 32;
+        p = a3 * b1;
+        lo += p & M;
+        hi += p >>> 32;
+        p = a4 * b0;
+        lo += p & M;
+        hi += p >>> 32;
+        long t4 = lo & M;
+        c = (lo >>> 32) + hi;
+        // Column 5
+        p = a0 * b5;
+        lo = c + (p & M);
+        hi = p >>> 32;
+        p = a1 * b4;
+        lo += p & M;
+        hi += p >>> 32;
+        p = a2 * b3;
+        lo += p & M;
+        hi += p >>> 32;
+        p = a3 * b2;
+        lo += p & M;
+        hi += p >>> 32;
+        p = a4 * b1;
+        lo += p & M;
+        hi += p >>> 32;
+        p = a5 * b0;
+        lo += p & M;
+        hi += p >>> 32;
+        long t5 = lo & M;
+        c = (lo >>> 32) + hi;
+        // Column 6
+        p = a0 * b6;
+        lo = c + (p & M);
+        hi = p >>> 32;
+        p = a1 * b5;
+        lo += p & M;
+        hi += p >>> 32;
+        p = a2 * b4;
+        lo += p & M;
+        hi += p >>> 32;
+        p = a3 * b3;
+        lo += p & M;
+        hi += p >>> 32;
+        p = a4 * b2;
+        lo += p & M;
+        hi += p >>> 32;
+        p = a5 * b1;
+        lo += p & M;
+        hi += p >>> 32;
+        p = a6 * b0;
+        lo += p & M;
+        hi += p >>> 32;
+        long t6 = lo & M;
+        c = (lo >>> 32) + hi;
+        // Column 7
+        p = a0 * b7;
+        lo = c + (p & M);
+        hi = p >>> 32;
+        p = a1 * b6;
+        lo += p & M;
+        hi += p >>> 32;
+        p = a2 * b5;
+        lo += p & M;
+        hi += p >>> 32;
+        p = a3 * b4;
+        lo += p & M;
+        hi += p >>> 32;
+        p = a4 * b3;
+        lo += p & M;
+        hi += p >>> 32;
+        p = a5 * b2;
+        lo += p & M;
+        hi += p >>> 32;
+        p = a6 * b1;
+        lo += p & M;
+        hi += p >>> 32;
+        p = a7 * b0;
+        lo += p & M;
+        hi += p >>> 32;
+        long t7 = lo & M;
+        c = (lo >>> 32) + hi;
+        // Column 8
+        p = a1 * b7;
+        lo = c + (p & M);
+        hi = p >>> 32;
+        p = a2 * b6;
+        lo += p & M;
+        hi += p >>> 32;
+        p = a3 * b5;
+        lo += p & M;
+        hi += p >>> 32;
+        p = a4 * b4;
+        lo += p & M;
+        hi += p >>> 32;
+        p = a5 * b3;
+        lo += p & M;
+        hi += p >>> 32;
+        p = a6 * b2;
+        lo += p & M;
+        hi += p >>> 32;
+        p = a7 * b1;
+        lo += p & M;
+        hi += p >>> 32;
+        long t8 = lo & M;
+        c = (lo >>> 32) + hi;
+        // Column 9
+        p = a2 * b7;
+        lo = c + (p & M);
+        hi = p >>> 32;
+        p = a3 * b6;
+        lo += p & M;
+        hi += p >>> 32;
+        p = a4 * b5;
+        lo += p & M;
+        hi += p >>> 32;
+        p = a5 * b4;
+        lo += p & M;
+        hi += p >>> 32;
+        p = a6 * b3;
+        lo += p & M;
+        hi += p >>> 32;
+        p = a7 * b2;
+        lo += p & M;
+        hi += p >>> 32;
+        long t9 = lo & M;
+        c = (lo >>> 32) + hi;
+        // Column 10
+        p = a3 * b7;
+        lo = c + (p & M);
+        hi = p >>> 32;
+        p = a4 * b6;
+        lo += p & M;
+        hi += p >>> 32;
+        p = a5 * b5;
+        lo += p & M;
+        hi += p >>> 32;
+        p = a6 * b4;
+        lo += p & M;
+        hi += p >>> 32;
+        p = a7 * b3;
+        lo += p & M;
+        hi += p >>> 32;
+        long t10 = lo & M;
+        c = (lo >>> 32) + hi;
+        // Column 11
+        p = a4 * b7;
+        lo = c + (p & M);
+        hi = p >>> 32;
+        p = a5 * b6;
+        lo += p & M;
+        hi += p >>> 32;
+        p = a6 * b5;
+        lo += p & M;
+        hi += p >>> 32;
+        p = a7 * b4;
+        lo += p & M;
+        hi += p >>> 32;
+        long t11 = lo & M;
+        c = (lo >>> 32) + hi;
+        // Column 12
+        p = a5 * b7;
+        lo = c + (p & M);
+        hi = p >>> 32;
+        p = a6 * b6;
+        lo += p & M;
+        hi += p >>> 32;
+        p = a7 * b5;
+        lo += p & M;
+        hi += p >>> 32;
+        long t12 = lo & M;
+        c = (lo >>> 32) + hi;
+        // Column 13
+        p = a6 * b7;
+        lo = c + (p & M);
+        hi = p >>> 32;
+        p = a7 * b6;
+        lo += p & M;
+        hi += p >>> 32;
+        long t13 = lo & M;
+        c = (lo >>> 32) + hi;
+        // Column 14
+        p = a7 * b7;
+        lo = c + (p & M);
+        hi = p >>> 32;
+        long t14 = lo & M;
+        c = (lo >>> 32) + hi;
+        reduce(r, t0, t1, t2, t3, t4, t5, t6, t7, t8, t9, t10, t11, t12, t13, t14, c);
+    }
+
+    /**
+     * Compute <code>r = a * a (mod p)</code>. This exploits symmetry to compute
+     * each cross product only once. The result may alias the operand.
+     *
+     * @param r
+     * @param a
+     */
+    private static void sqr(int[] r, int[] a) {
+        long a0 = a[0] & M, a1 = a[1] & M, a2 = a[2] & M, a3 = a[3] & M;
+        long a4 = a[4] & M, a5 = a[5] & M, a6 = a[6] & M, a7 = a[7] & M;
+        long p, lo, hi, c = 0;
+        // Column 0
+        p = a0 * a0;
+        lo = c + (p & M);
+        hi = p >>> 32;
+        long t0 = lo & M;
+        c = (lo >>> 32) + hi;
+        // Column 1
+        p = a0 * a1;
+        lo = c + ((p & M) << 1);
+        hi = (p >>> 32) << 1;
+        long t1 = lo & M;
+        c = (lo >>> 32) + hi;
+        // Column 2
+        p = a0 * a2;
+        lo = c + ((p & M) << 1);
+        hi = (p >>> 32) << 1;
+        p = a1 * a1;
+        lo += p & M;
+        hi += p >>> 32;
+        long t2 = lo & M;
+        c = (lo >>> 32) + hi;
+        // Column 3
+        p = a0 * a3;
+        lo = c + ((p & M) << 1);
+        hi = (p >>> 32) << 1;
+        p = a1 * a2;
+        lo += (p & M) << 1;
+        hi += (p >>> 32) << 1;
+        long t3 = lo & M;
+        c = (lo >>> 32) + hi;
+        // Column 4
+        p = a0 * a4;
+        lo = c + ((p & M) << 1);
+        hi = (p >>> 32) << 1;
+        p = a1 * a3;
+        lo += (p & M) << 1;
+        hi += (p >>> 32) << 1;
+        p = a2 * a2;
+        lo += p & M;
+        hi += p >>> 32;
+        long t4 = lo & M;
+        c = (lo >>> 32) + hi;
+        // Column 5
+        p = a0 * a5;
+        lo = c + ((p & M) << 1);
+        hi = (p >>> 32) << 1;
+        p = a1 * a4;
+        lo += (p & M) << 1;
+        hi += (p >>> 32) << 1;
+        p = a2 * a3;
+        lo += (p & M) << 1;
+        hi += (p >>> 32) << 1;
+        long t5 = lo & M;
+        c = (lo >>> 32) + hi;
+        // Column 6
+        p = a0 * a6;
+        lo = c + ((p & M) << 1);
+        hi = (p >>> 32) << 1;
+        p = a1 * a5;
+        lo += (p & M) << 1;
+        hi += (p >>> 32) << 1;
+        p = a2 * a4;
+        lo += (p & M) << 1;
+        hi += (p >>> 32) << 1;
+        p = a3 * a3;
+        lo += p & M;
+        hi += p >>> 32;
+        long t6 = lo & M;
+        c = (lo >>> 32) + hi;
+        // Column 7
+        p = a0 * a7;
+        lo = c + ((p & M) << 1);
+        hi = (p >>> 32) << 1;
+        p = a1 * a6;
+        lo += (p & M) << 1;
+        hi += (p >>> 32) << 1;
+        p = a2 * a5;
+        lo += (p & M) << 1;
+        hi += (p >>> 32) << 1;
+        p = a3 * a4;
+        lo += (p & M) << 1;
+        hi += (p >>> 32) << 1;
+        long t7 = lo & M;
+        c = (lo >>> 32) + hi;
+        // Column 8
+        p = a1 * a7;
+        lo = c + ((p & M) << 1);
+        hi = (p >>> 32) << 1;
+        p = a2 * a6;
+        lo += (p & M) << 1;
+        hi += (p >>> 32) << 1;
+        p = a3 * a5;
+        lo += (p & M) << 1;
+        hi += (p >>> 32) << 1;
+        p = a4 * a4;
+        lo += p & M;
+        hi += p >>> 32;
+        long t8 = lo & M;
+        c = (lo >>> 32) + hi;
+        // Column 9
+        p = a2 * a7;
+        lo = c + ((p & M) << 1);
+        hi = (p >>> 32) << 1;
+        p = a3 * a6;
+        lo += (p & M) << 1;
+        hi += (p >>> 32) << 1;
+        p = a4 * a5;
+        lo += (p & M) << 1;
+        hi += (p >>> 32) << 1;
+        long t9 = lo & M;
+        c = (lo >>> 32) + hi;
+        // Column 10
+        p = a3 * a7;
+        lo = c + ((p & M) << 1);
+        hi = (p >>> 32) << 1;
+        p = a4 * a6;
+        lo += (p & M) << 1;
+        hi += (p >>> 32) << 1;
+        p = a5 * a5;
+        lo += p & M;
+        hi += p >>> 32;
+        long t10 = lo & M;
+        c = (lo >>> 32) + hi;
+        // Column 11
+        p = a4 * a7;
+        lo = c + ((p & M) << 1);
+        hi = (p >>> 32) << 1;
+        p = a5 * a6;
+        lo += (p & M) << 1;
+        hi += (p >>> 32) << 1;
+        long t11 = lo & M;
+        c = (lo >>> 32) + hi;
+        // Column 12
+        p = a5 * a7;
+        lo = c + ((p & M) << 1);
+        hi = (p >>> 32) << 1;
+        p = a6 * a6;
+        lo += p & M;
+        hi += p >>> 32;
+        long t12 = lo & M;
+        c = (lo >>> 32) + hi;
+        // Column 13
+        p = a6 * a7;
+        lo = c + ((p & M) << 1);
+        hi = (p >>> 32) << 1;
+        long t13 = lo & M;
+        c = (lo >>> 32) + hi;
+        // Column 14
+        p = a7 * a7;
+        lo = c + (p & M);
+        hi = p >>> 32;
+        long t14 = lo & M;
+        c = (lo >>> 32) + hi;
+        reduce(r, t0, t1, t2, t3, t4, t5, t6, t7, t8, t9, t10, t11, t12, t13, t14, c);
+    }
+
+    /**
+     * Square a value <code>n</code> times in place.
+     *
+     * @param r
+     * @param n
+     */
+    private static void sqrn(int[] r, int n) {
+        for (int i = 0; i != n; ++i) {
+            sqr(r, r);
+        }
+    }
+
+    /**
+     * Compute <code>a^(2^223 - 1)</code> and related powers, as needed for both
+     * inversion and square roots. This follows the addition chain used in
+     * libsecp256k1, and returns the powers <code>x2</code>, <code>x3</code>,
+     * <code>x22</code> and <code>x223</code> (where
+     * <code>xk = a^(2^k - 1)</code>).
+     *
+     * @param a
+     * @return
+     */
+    private static int[][] chain(int[] a) {
+        int[] x2 = new int[8], x3 = new int[8], t = new int[8];
+        sqr(x2, a);
+        mul(x2, x2, a);
+        sqr(x3, x2);
+        mul(x3, x3, a);
+        System.arraycopy(x3, 0, t, 0, 8);
+        sqrn(t, 3);
+        mul(t, t, x3); // x6
+        sqrn(t, 3);
+        mul(t, t, x3); // x9
+        sqrn(t, 2);
+        int[] x11 = new int[8];
+        mul(x11, t, x2);
+        int[] x22 = x11.clone();
+        sqrn(x22, 11);
+        mul(x22, x22, x11);
+        int[] x44 = x22.clone();
+        sqrn(x44, 22);
+        mul(x44, x44, x22);
+        int[] x88 = x44.clone();
+        sqrn(x88, 44);
+        mul(x88, x88, x44);
+        int[] x = x88.clone();
+        sqrn(x, 88);
+        mul(x, x, x88); // x176
+        sqrn(x, 44);
+        mul(x, x, x44); // x220
+        sqrn(x, 3);
+        mul(x, x, x3); // x223
+        return new int[][] { x2, x3, x22, x };
+    }
+
+    /**
+     * Compute <code>a^(p-2) (mod p)</code>, i.e. the inverse of a (for non-zero
+     * a).
+     *
+     * @param a
+     * @return
+     */
+    private static int[] inv(int[] a) {
+        int[][] xs = chain(a);
+        int[] r = xs[3];
+        sqrn(r, 23);
+        mul(r, r, xs[2]);
+        sqrn(r, 5);
+        mul(r, r, a);
+        sqrn(r, 3);
+        mul(r, r, xs[0]);
+        sqrn(r, 2);
+        mul(r, r, a);
+        return r;
+    }
+
+    /**
+     * Compute <code>a^((p+1)/4) (mod p)</code> which, since
+     * <code>p = 3 (mod 4)</code>, is a square root of a if one exists.
+     *
+     * @param a
+     * @return
+     */
+    private static int[] sqrt(int[] a) {
+        int[][] xs = chain(a);
+        int[] r = xs[3];
+        sqrn(r, 23);
+        mul(r, r, xs[2]);
+        sqrn(r, 6);
+        mul(r, r, xs[0]);
+        sqrn(r, 2);
+        return r;
+    }
+
+    /**
+     * Reduce a 512-bit product (as sixteen 32-bit limbs, least significant
+     * first) modulo p, using the fact that <code>2^256 = 2^32 + 977 (mod p)</code>.
+     */
+    private static void reduce(int[] r, long t0, long t1, long t2, long t3, long t4, long t5, long t6, long t7,
+            long t8, long t9, long t10, long t11, long t12, long t13, long t14, long t15) {
+        // Fold the upper half: lo + hi*977 + (hi << 32)
+        long carry = t0 + t8 * C_LO;
+        r[0] = (int) carry;
+        carry = (carry >>> 32) + t1 + t9 * C_LO + t8;
+        r[1] = (int) carry;
+        carry = (carry >>> 32) + t2 + t10 * C_LO + t9;
+        r[2] = (int) carry;
+        carry = (carry >>> 32) + t3 + t11 * C_LO + t10;
+        r[3] = (int) carry;
+        carry = (carry >>> 32) + t4 + t12 * C_LO + t11;
+        r[4] = (int) carry;
+        carry = (carry >>> 32) + t5 + t13 * C_LO + t12;
+        r[5] = (int) carry;
+        carry = (carry >>> 32) + t6 + t14 * C_LO + t13;
+        r[6] = (int) carry;
+        carry = (carry >>> 32) + t7 + t15 * C_LO + t14;
+        r[7] = (int) carry;
+        long top = (carry >>> 32) + t15;
+        // Fold the remaining top word in the same way.
+        carry = (r[0] & M) + top * C_LO;
+        r[0] = (int) carry;
+        carry = (carry >>> 32) + (r[1] & M) + top;
+        r[1] = (int) carry;
+        carry >>>= 32;
+        for (int i = 2; i != 8 && carry != 0; ++i) {
+            carry += (r[i] & M);
+            r[i] = (int) carry;
+            carry >>>= 32;
+        }
+        if (carry != 0) {
+            // Result wrapped past 2^256, so add 2^256 - p (which cannot wrap again).
+            addC(r);
+        }
+        if (geqP(r)) {
+            addC(r);
+        }
+    }
+
+    /**
+     * Compute <code>r = a + b (mod p)</code>.
+     *
+     * @param r
+     * @param a
+     * @param b
+     */
+    private static void add(int[] r, int[] a, int[] b) {
+        long carry = 0;
+        for (int i = 0; i != 8; ++i) {
+            carry += (a[i] & M) + (b[i] & M);
+            r[i] = (int) carry;
+            carry >>>= 32;
+        }
+        if (carry != 0 || geqP(r)) {
+            addC(r);
+        }
+    }
+
+    /**
+     * Compute <code>r = a - b (mod p)</code>.
+     *
+     * @param r
+     * @param a
+     * @param b
+     */
+    private static void sub(int[] r, int[] a, int[] b) {
+        long borrow = 0;
+        for (int i = 0; i != 8; ++i) {
+            long d = (a[i] & M) - (b[i] & M) - borrow;
+            r[i] = (int) d;
+            borrow = (d >>> 63);
+        }
+        if (borrow != 0) {
+            // Add p (modulo 2^256)
+            long carry = 0;
+            for (int i = 0; i != 8; ++i) {
+                carry += (r[i] & M) + (P[i] & M);
+                r[i] = (int) carry;
+                carry >>>= 32;
+            }
+        }
+    }
+
+    /**
+     * Add <code>2^256 - p</code> to a value, modulo <code>2^256</code> (which is
+     * equivalent to subtracting p).
+     *
+     * @param r
+     */
+    private static void addC(int[] r) {
+        long carry = (r[0] & M) + C_LO;
+        r[0] = (int) carry;
+        carry = (carry >>> 32) + (r[1] & M) + 1;
+        r[1] = (int) carry;
+        carry >>>= 32;
+        for (int i = 2; i != 8 && carry != 0; ++i) {
+            carry += (r[i] & M);
+            r[i] = (int) carry;
+            carry >>>= 32;
+        }
+    }
+
+    private static boolean geqP(int[] r) {
+        for (int i = 7; i >= 0; --i) {
+            int c = Integer.compareUnsigned(r[i], P[i]);
+            if (c != 0) {
+                return c > 0;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isZero(int[] a) {
+        for (int i = 0; i != 8; ++i) {
+            if (a[i] != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean equal(int[] a, int[] b) {
+        return java.util.Arrays.equals(a, b);
+    }
+
+    private static int[] limbs(BigInteger v) {
+        int[] r = new int[8];
+        for (int i = 0; i != 8; ++i) {
+            r[i] = v.shiftRight(32 * i).intValue();
+        }
+        return r;
+    }
+
+    private static void toBytes(int[] a, byte[] bytes, int offset) {
+        for (int i = 0; i != 8; ++i) {
+            int w = a[7 - i];
+            bytes[offset + 4 * i] = (byte) (w >>> 24);
+            bytes[offset + 4 * i + 1] = (byte) (w >>> 16);
+            bytes[offset + 4 * i + 2] = (byte) (w >>> 8);
+            bytes[offset + 4 * i + 3] = (byte) w;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2022 ConsenSys Software Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software dis-
+ * tributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package dafnyevm.util;
+
+import java.math.BigInteger;
+
+/**
+ * <p>
+ * Holds the hashes of the (at most) 256 most recent blocks, as needed by
+ * <code>BLOCKHASH</code>. This is a ring buffer whose window ends at the
+ * current block, such that moving to the next block overwrites the oldest
+ * hash in place (see <code>advance()</code>). Thus, a block executor can
+ * maintain the window across a chain of blocks without copying it.
+ * </p>
+ * <p>
+ * Hashes are looked up by (absolute) block number, and any block outside the
+ * window has a hash of zero. This means views of the window handed to Dafny
+ * (see <code>DafnyEvm.BlockInfo</code>) remain valid after it is advanced,
+ * though blocks which have since fallen out of the window are then reported as
+ * zero. Hence, the window should not be advanced while a block is being
+ * executed.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class BlockHashes {
+	/**
+	 * Number of recent blocks whose hashes are available.
+	 */
+	public static final int WINDOW = 256;
+	/**
+	 * Hashes of recent blocks, where the hash of block <code>n</code> is held at
+	 * index <code>n % WINDOW</code>.
+	 */
+	private final BigInteger[] hashes = new BigInteger[WINDOW];
+	/**
+	 * Number of the current block (i.e. whose hash is not yet known).
+	 */
+	private long number;
+	/**
+	 * Number of hashes in the window.
+	 */
+	private int size;
+
+	/**
+	 * Construct an empty window for a given (current) block.
+	 *
+	 * @param number
+	 */
+	public BlockHashes(long number) {
+		this.number = number;
+	}
+
+	/**
+	 * Get the number of the current block.
+	 *
+	 * @return
+	 */
+	public long number() {
+		return number;
+	}
+
+	/**
+	 * Record the hash of the current block, and then move to the next block. If
+	 * the window is full, the oldest hash is discarded.
+	 *
+	 * @param hash
+	 */
+	public void advance(BigInteger hash) {
+		hashes[(int) (number % WINDOW)] = hash;
+		number = number + 1;
+		size = Math.min(size + 1, WINDOW);
+	}
+
+	/**
+	 * Get the hash of a given block, which is zero unless it is in the window.
+	 *
+	 * @param n
+	 * @return
+	 */
+	public BigInteger get(long n) {
+		if (n >= number || n < number - size || n < 0) {
+			return BigInteger.ZERO;
+		}
+		return hashes[(int) (n % WINDOW)];
+	}
+
+	/**
+	 * Get the hash of a given block, which is zero unless it is in the window.
+	 *
+	 * @param n
+	 * @return
+	 */
+	public BigInteger get(BigInteger n) {
+		return (n.bitLength() < 64) ? get(n.longValue()) : BigInteger.ZERO;
+	}
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2022 ConsenSys Software Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software dis-
+ * tributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package dafnyevm.util;
+
+import java.math.BigInteger;
+
+import org.web3j.crypto.Hash;
+
+import dafnyevm.util.Word.Uint160;
+import dafnyevm.util.Word.Uint256;
+
+/**
+ * A 2048-bit log bloom filter, as defined by <code>M3:2048</code> in the Yellow
+ * Paper. Each item added (i.e. the address or a topic of a log entry) sets
+ * three bits determined by its hash. The bloom of a transaction is maintained
+ * by the EVM as log entries are emitted, and the bloom of a block is the union
+ * of those of its receipts.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class Bloom {
+	/**
+	 * Number of bytes in a bloom.
+	 */
+	public static final int SIZE = 256;
+
+	private final byte[] bits = new byte[SIZE];
+
+	public Bloom() {
+	}
+
+	/**
+	 * Construct a bloom from its (unsigned) integer representation, as
+	 * maintained by the EVM.
+	 *
+	 * @param bloom
+	 */
+	public Bloom(BigInteger bloom) {
+		byte[] bytes = bloom.toByteArray();
+		int n = Math.min(bytes.length, SIZE);
+		System.arraycopy(bytes, bytes.length - n, bits, SIZE - n, n);
+	}
+
+	/**
+	 * Add the address and topics of a given log entry to this bloom.
+	 *
+	 * @param log
+	 */
+	public void add(Receipt.Log log) {
+		add(new Uint160(log.address).getBytes());
+		for (BigInteger topic : log.topics) {
+			add(new Uint256(topic).getBytes());
+		}
+	}
+
+	/**
+	 * Add a given item to this bloom.
+	 *
+	 * @param item
+	 */
+	public void add(byte[] item) {
+		byte[] hash = Hash.sha3(item);
+		for (int i = 0; i < 6; i += 2) {
+			int bit = ((hash[i] & 0x7) << 8) | (hash[i + 1] & 0xFF);
+			bits[SIZE - 1 - (bit >> 3)] |= (byte) (1 << (bit & 0x7));
+		}
+	}
+
+	/**
+	 * Check whether a given item may have been added to this bloom.
+	 *
+	 * @param item
+	 * @return
+	 */
+	public boolean contains(byte[] item) {
+		byte[] hash = Hash.sha3(item);
+		for (int i = 0; i < 6; i += 2) {
+			int bit = ((hash[i] & 0x7) << 8) | (hash[i + 1] & 0xFF);
+			if ((bits[SIZE - 1 - (bit >> 3)] & (1 << (bit & 0x7))) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Add everything in a given bloom to this bloom.
+	 *
+	 * @param other
+	 */
+	public void or(Bloom other) {
+		for (int i = 0; i != SIZE; ++i) {
+			bits[i] |= other.bits[i];
+		}
+	}
+
+	/**
+	 * Get the (big endian) bytes of this bloom.
+	 *
+	 * @return
+	 */
+	public byte[] getBytes() {
+		return bits.clone();
+	}
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright 2022 ConsenSys Software Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software dis-
+ * tributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package dafnyevm.util;
+
+import java.math.BigInteger;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import dafny.DafnySequence;
+import dafnyevm.DafnyEvm;
+import EvmState.State_EXECUTING;
+import static evmtools.util.Bytecodes.*;
+
+/**
+ * <p>
+ * Provides a second execution tier for contract code which is executed
+ * frequently. The number of times a given piece of contract code is entered is
+ * counted (keyed on its code hash) and, once this exceeds a given threshold,
+ * the code is translated into a pre-decoded form where its basic blocks have
+ * been identified up front. Executing a compiled block then avoids decoding
+ * each opcode from the code sequence, and each instruction is dispatched
+ * directly to its handler (see <code>Dispatch</code>).
+ * </p>
+ * <p>
+ * Compiled code operates over exactly the same machine state as the
+ * interpreter, and each instruction is executed via the same handlers which
+ * <code>EVM.Execute</code> uses. Compiled code returns control to the
+ * interpreter ("deoptimises") whenever it reaches a state it does not handle:
+ * an error, a continuation (i.e. <code>CALL</code> or <code>CREATE</code>), a
+ * <code>pc</code> which is not an instruction boundary, or an opcode not
+ * supported by the current fork. Tracing is handled by not using compiled
+ * code at all.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class CodeCache {
+	/**
+	 * Default number of times a contract must be entered before it is compiled.
+	 */
+	public static final int DEFAULT_THRESHOLD = 16;
+	/**
+	 * Number of times a given contract must be entered before it is compiled.
+	 */
+	private final int threshold;
+	/**
+	 * Profile information for all contracts seen so far, keyed on code hash.
+	 */
+	private final ConcurrentHashMap<BigInteger, Profile> profiles = new ConcurrentHashMap<>();
+	public CodeCache() {
+		this(DEFAULT_THRESHOLD);
+	}
+
+	public CodeCache(int threshold) {
+		if (threshold < 0) {
+			throw new IllegalArgumentException("invalid threshold");
+		}
+		this.threshold = threshold;
+	}
+
+	/**
+	 * Record that a contract with the given code hash is being entered, and
+	 * return its compiled form if it is now considered hot. Otherwise, return
+	 * <code>null</code> to indicate the contract should be interpreted.
+	 *
+	 * @param hash The code hash of the contract being entered.
+	 * @param code The contract code itself.
+	 * @return
+	 */
+	public Compiled enter(BigInteger hash, DafnySequence<? extends Byte> code) {
+		if (code.length() == 0) {
+			// Nothing to compile
+			return null;
+		}
+		Profile p = profiles.computeIfAbsent(hash, h -> new Profile());
+		//
+		if (p.compiled != null) {
+			return p.compiled;
+		} else if (p.count.incrementAndGet() < threshold) {
+			return null;
+		} else {
+			@SuppressWarnings({ "unchecked", "rawtypes" })
+			Compiled c = compile(DafnySequence.toByteArray((DafnySequence) code));
+			// NOTE: racing threads may both compile the same contract, but the results
+			// are identical so it doesn't matter which wins.
+			p.compiled = c;
+			return c;
+		}
+	}
+
+	/**
+	 * Get the number of contracts which have been compiled so far.
+	 *
+	 * @return
+	 */
+	public int getCompiledCount() {
+		int count = 0;
+		for (Profile p : profiles.values()) {
+			count += (p.compiled != null) ? 1 : 0;
+		}
+		return count;
+	}
+
+	/**
+	 * Translate a contract's code into its compiled form. This decodes every
+	 * instruction reachable by a linear sweep from the start of the code and
+	 * identifies the extent of each basic block.
+	 *
+	 * @param code
+	 * @return
+	 */
+	private Compiled compile(byte[] code) {
+		final int n = code.length;
+		int[] next = new int[n];
+		boolean[] entry = new boolean[n];
+		for (int pc = 0; pc < n;) {
+			int opcode = code[pc] & 0xff;
+			int width = (opcode >= PUSH1 && opcode <= PUSH32) ? (opcode - PUSH1) + 2 : 1;
+			int npc = pc + width;
+			entry[pc] = true;
+			// Determine whether block continues after this instruction.
+			if (npc >= n || isTerminator(opcode) || (code[npc] & 0xff) == JUMPDEST) {
+				next[pc] = -1;
+			} else {
+				next[pc] = npc;
+			}
+			pc = npc;
+		}
+		return new Compiled(code, entry, next);
+	}
+
+	/**
+	 * Determine whether a given instruction terminates a basic block. This
+	 * includes all instructions which may change the <code>pc</code> other than by
+	 * simply advancing it, and all instructions which may result in a
+	 * continuation.
+	 *
+	 * @param opcode
+	 * @return
+	 */
+	private static boolean isTerminator(int opcode) {
+		switch (opcode) {
+		case STOP:
+		case JUMP:
+		case JUMPI:
+		case CREATE:
+		case CALL:
+		case CALLCODE:
+		case RETURN:
+		case DELEGATECALL:
+		case CREATE2:
+		case STATICCALL:
+		case REVERT:
+		case INVALID:
+		case SELFDESTRUCT:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Profile information for a given contract.
+	 */
+	private static class Profile {
+		private final AtomicInteger count = new AtomicInteger();
+		private volatile Compiled compiled;
+	}
+
+	/**
+	 * Represents the compiled form of a given contract. This is independent of
+	 * any fork, and can be shared across threads.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public class Compiled {
+		/**
+		 * The raw bytecode of the contract.
+		 */
+		private final byte[] code;
+		/**
+		 * Identifies which positions in the code correspond to instruction
+		 * boundaries.
+		 */
+		private final boolean[] entry;
+		/**
+		 * For each instruction, the position of the next instruction in the same
+		 * basic block (or <code>-1</code> if the block ends here).
+		 */
+		private final int[] next;
+
+		private Compiled(byte[] code, boolean[] entry, int[] next) {
+			this.code = code;
+			this.entry = entry;
+			this.next = next;
+		}
+
+		/**
+		 * Execute compiled code from a given state, until either a non-executing
+		 * state is reached, or control must be returned to the interpreter. In the
+		 * latter case, the returned state is guaranteed to be executing.
+		 *
+		 * @param st
+		 * @param counter Counts the bytecodes executed (or <code>null</code>).
+		 * @return
+		 */
+		public EvmState.State execute(State_EXECUTING st, DafnyEvm.Counter counter) {
+			final Dispatch dispatch = Dispatch.of(st.dtor_evm().dtor_fork());
+			EvmState.State nst = st;
+			long steps = 0;
+			//
+			while (nst.is_EXECUTING()) {
+				State_EXECUTING ist = (State_EXECUTING) nst;
+				// NOTE: pc is a u32 and, hence, any value beyond 2^31 is negative here.
+				final int _pc = ist.dtor_evm().dtor_pc();
+				// Check whether this is a block we know about
+				if (_pc < 0 || _pc >= code.length || !entry[_pc]) {
+					// Deoptimise
+					return count(counter, steps, ist);
+				}
+				// Execute one basic block
+				for (int pc = _pc; pc >= 0; pc = next[pc]) {
+					final byte opcode = code[pc];
+					if (!dispatch.isBytecode(opcode)) {
+						// Deoptimise (so interpreter can signal the error)
+						return count(counter, steps, ist);
+					}
+					nst = dispatch.execute(opcode, ist);
+					steps = steps + 1;
+					if (!nst.is_EXECUTING()) {
+						break;
+					}
+					ist = (State_EXECUTING) nst;
+				}
+			}
+			return count(counter, steps, nst);
+		}
+
+		private EvmState.State count(DafnyEvm.Counter counter, long steps, EvmState.State st) {
+			if (counter != null) {
+				counter.untraced(steps);
+			}
+			return st;
+		}
+	}
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright 2022 ConsenSys Software Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software dis-
+ * tributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package dafnyevm.util;
+
+import static Gas.__default.*;
+import static Opcode.__default.*;
+
+import java.math.BigInteger;
+import java.util.function.UnaryOperator;
+
+import EvmState.State_EXECUTING;
+
+/**
+ * <p>
+ * Provides a dispatch table mapping each opcode directly to its handler in
+ * <code>Bytecode</code>, along with its static gas cost (where it has one).
+ * The underlying table is built once at class initialisation, and then
+ * specialised for each fork by removing those opcodes the fork does not
+ * support. Executing an instruction through the table is equivalent to
+ * <code>EVM.Execute</code>, except that it avoids evaluating the large
+ * <code>match</code> statements in <code>EVM.DeductGas</code> and
+ * <code>EVM.ExecuteBytecode</code>, along with the fork membership check.
+ * </p>
+ * <p>
+ * Opcodes whose gas cost depends on the machine state still have their gas
+ * deducted via <code>EVM.DeductGas</code>. Likewise, any opcode not explicitly
+ * listed here falls back to <code>EVM.ExecuteBytecode</code>.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class Dispatch {
+	/**
+	 * The dispatch table shared by all forks.
+	 */
+	private static final Entry[] TABLE = new Entry[256];
+	/**
+	 * Most recently used fork, and its specialised table. In practice, every
+	 * frame within a transaction uses the same fork instance and, hence, this is
+	 * almost always a hit.
+	 */
+	private static volatile Dispatch LAST;
+
+	static {
+		// 0s: Stop and Arithmetic Operations
+		register(STOP(), G__ZERO(), Bytecode.__default::Stop);
+		register(ADD(), G__VERYLOW(), Bytecode.__default::Add);
+		register(MUL(), G__LOW(), Bytecode.__default::Mul);
+		register(SUB(), G__VERYLOW(), Bytecode.__default::Sub);
+		register(DIV(), G__LOW(), Bytecode.__default::Div);
+		register(SDIV(), G__LOW(), Bytecode.__default::SDiv);
+		register(MOD(), G__LOW(), Bytecode.__default::Mod);
+		register(SMOD(), G__LOW(), Bytecode.__default::SMod);
+		register(ADDMOD(), G__MID(), Bytecode.__default::AddMod);
+		register(MULMOD(), G__MID(), Bytecode.__default::MulMod);
+		register(EXP(), null, Bytecode.__default::Exp);
+		register(SIGNEXTEND(), G__LOW(), Bytecode.__default::SignExtend);
+		// 10s: Comparison & Bitwise Logic
+		register(LT(), G__VERYLOW(), Bytecode.__default::Lt);
+		register(GT(), G__VERYLOW(), Bytecode.__default::Gt);
+		register(SLT(), G__VERYLOW(), Bytecode.__default::SLt);
+		register(SGT(), G__VERYLOW(), Bytecode.__default::SGt);
+		register(EQ(), G__VERYLOW(), Bytecode.__default::Eq);
+		register(ISZERO(), G__VERYLOW(), Bytecode.__default::IsZero);
+		register(AND(), G__VERYLOW(), Bytecode.__default::And);
+		register(OR(), G__VERYLOW(), Bytecode.__default::Or);
+		register(XOR(), G__VERYLOW(), Bytecode.__default::Xor);
+		register(NOT(), G__VERYLOW(), Bytecode.__default::Not);
+		register(BYTE(), G__VERYLOW(), Bytecode.__default::Byte);
+		register(SHL(), G__VERYLOW(), Bytecode.__default::Shl);
+		register(SHR(), G__VERYLOW(), Bytecode.__default::Shr);
+		register(SAR(), G__VERYLOW(), Bytecode.__default::Sar);
+		// 20s
+		register(KECCAK256(), null, Bytecode.__default::Keccak256);
+		// 30s: Environment Information
+		register(ADDRESS(), G__BASE(), Bytecode.__default::Address);
+		register(BALANCE(), null, Bytecode.__default::Balance);
+		register(ORIGIN(), G__BASE(), Bytecode.__default::Origin);
+		register(CALLER(), G__BASE(), Bytecode.__default::Caller);
+		register(CALLVALUE(), G__BASE(), Bytecode.__default::CallValue);
+		register(CALLDATALOAD(), G__VERYLOW(), Bytecode.__default::CallDataLoad);
+		register(CALLDATASIZE(), G__BASE(), Bytecode.__default::CallDataSize);
+		register(CALLDATACOPY(), null, Bytecode.__default::CallDataCopy);
+		register(CODESIZE(), G__BASE(), Bytecode.__default::CodeSize);
+		register(CODECOPY(), null, Bytecode.__default::CodeCopy);
+		register(GASPRICE(), G__BASE(), Bytecode.__default::GasPrice);
+		register(EXTCODESIZE(), null, Bytecode.__default::ExtCodeSize);
+		register(EXTCODECOPY(), null, Bytecode.__default::ExtCodeCopy);
+		register(RETURNDATASIZE(), G__BASE(), Bytecode.__default::ReturnDataSize);
+		register(RETURNDATACOPY(), null, Bytecode.__default::ReturnDataCopy);
+		register(EXTCODEHASH(), null, Bytecode.__default::ExtCodeHash);
+		// 40s: Block Information
+		register(BLOCKHASH(), G__BLOCKHASH(), Bytecode.__default::BlockHash);
+		register(COINBASE(), G__BASE(), Bytecode.__default::CoinBase);
+		register(TIMESTAMP(), G__BASE(), Bytecode.__default::TimeStamp);
+		register(NUMBER(), G__BASE(), Bytecode.__default::Number);
+		register(DIFFICULTY(), G__BASE(), Bytecode.__default::Difficulty);
+		register(GASLIMIT(), G__BASE(), Bytecode.__default::GasLimit);
+		register(CHAINID(), G__BASE(), Bytecode.__default::ChainID);
+		register(SELFBALANCE(), G__LOW(), Bytecode.__default::SelfBalance);
+		register(BASEFEE(), G__BASE(), Bytecode.__default::BaseFee);
+		// 50s: Stack, Memory, Storage and Flow
+		register(POP(), G__BASE(), Bytecode.__default::Pop);
+		register(MLOAD(), null, Bytecode.__default::MLoad);
+		register(MSTORE(), null, Bytecode.__default::MStore);
+		register(MSTORE8(), null, Bytecode.__default::MStore8);
+		register(SLOAD(), null, Bytecode.__default::SLoad);
+		register(SSTORE(), null, Bytecode.__default::SStore);
+		register(JUMP(), G__MID(), Bytecode.__default::Jump);
+		register(JUMPI(), G__HIGH(), Bytecode.__default::JumpI);
+		register(PC(), G__BASE(), Bytecode.__default::Pc);
+		register(MSIZE(), G__BASE(), Bytecode.__default::MSize);
+		register(GAS(), G__BASE(), Bytecode.__default::Gas);
+		register(JUMPDEST(), G__JUMPDEST(), Bytecode.__default::JumpDest);
+		register(TLOAD(), G__WARMACCESS(), Bytecode.__default::TLoad);
+		register(TSTORE(), G__WARMACCESS(), Bytecode.__default::TStore);
+		register(MCOPY(), null, Bytecode.__default::MCopy);
+		register(PUSH0(), G__BASE(), Bytecode.__default::Push0);
+		// 60s & 70s: Push operations
+		for (int k = 1; k <= 32; ++k) {
+			final BigInteger n = BigInteger.valueOf(k);
+			register((byte) (PUSH1() + k - 1), G__VERYLOW(), st -> Bytecode.__default.Push(st, n));
+		}
+		// 80s: Duplicate operations
+		for (int k = 1; k <= 16; ++k) {
+			final BigInteger n = BigInteger.valueOf(k);
+			register((byte) (DUP1() + k - 1), G__VERYLOW(), st -> Bytecode.__default.Dup(st, n));
+		}
+		// 90s: Exchange operations
+		for (int k = 1; k <= 16; ++k) {
+			final BigInteger n = BigInteger.valueOf(k);
+			register((byte) (SWAP1() + k - 1), G__VERYLOW(), st -> Bytecode.__default.Swap(st, n));
+		}
+		// a0s: Log operations
+		for (int k = 0; k <= 4; ++k) {
+			final BigInteger n = BigInteger.valueOf(k);
+			register((byte) (LOG0() + k), null, st -> Bytecode.__default.LogN(st, n));
+		}
+		// f0s: System operations
+		register(CREATE(), null, Bytecode.__default::Create);
+		register(CALL(), null, Bytecode.__default::Call);
+		register(CALLCODE(), null, Bytecode.__default::CallCode);
+		register(RETURN(), null, Bytecode.__default::Return);
+		register(DELEGATECALL(), null, Bytecode.__default::DelegateCall);
+		register(CREATE2(), null, Bytecode.__default::Create2);
+		register(STATICCALL(), null, Bytecode.__default::StaticCall);
+		register(REVERT(), null, Bytecode.__default::Revert);
+		register(SELFDESTRUCT(), null, Bytecode.__default::SelfDestruct);
+		// Everything else goes through the generic path.
+		for (int i = 0; i != TABLE.length; ++i) {
+			if (TABLE[i] == null) {
+				final byte opcode = (byte) i;
+				TABLE[i] = new Entry(null, st -> EVM.__default.ExecuteBytecode(opcode, st));
+			}
+		}
+	}
+
+	/**
+	 * The fork for which this table is specialised.
+	 */
+	private final EvmFork.Fork fork;
+	/**
+	 * The specialised table, where <code>null</code> entries indicate opcodes not
+	 * supported by the fork.
+	 */
+	private final Entry[] entries = new Entry[256];
+
+	private Dispatch(EvmFork.Fork fork) {
+		this.fork = fork;
+		for (int i = 0; i != entries.length; ++i) {
+			entries[i] = fork.IsBytecode((byte) i) ? TABLE[i] : null;
+		}
+	}
+
+	/**
+	 * Get the dispatch table for a given fork.
+	 *
+	 * @param fork
+	 * @return
+	 */
+	public static Dispatch of(EvmFork.Fork fork) {
+		Dispatch d = LAST;
+		if (d == null || d.fork != fork) {
+			d = new Dispatch(fork);
+			LAST = d;
+		}
+		return d;
+	}
+
+	/**
+	 * Check whether a given opcode is supported by this fork.
+	 *
+	 * @param opcode
+	 * @return
+	 */
+	public boolean isBytecode(int opcode) {
+		return entries[opcode & 0xff] != null;
+	}
+
+	/**
+	 * Execute a given opcode, which must be supported by this fork (see
+	 * <code>isBytecode()</code>). The result is identical to that of
+	 * <code>EVM.Execute</code> for a state whose current opcode is
+	 * <code>opcode</code>.
+	 *
+	 * @param opcode
+	 * @param st
+	 * @return
+	 */
+	public EvmState.State execute(byte opcode, State_EXECUTING st) {
+		Entry e = entries[opcode & 0xff];
+		EvmState.State nst;
+		// Deduct gas for the given bytecode.
+		if (e.gas != null) {
+			nst = st.UseGas(e.gas);
+		} else {
+			nst = EVM.__default.DeductGas(opcode, st);
+		}
+		// Execute bytecode (if not out-of-gas)
+		if (nst.is_EXECUTING()) {
+			nst = e.handler.apply(nst);
+		}
+		return nst;
+	}
+
+	private static void register(byte opcode, BigInteger gas, UnaryOperator<EvmState.State> handler) {
+		TABLE[opcode & 0xff] = new Entry(gas, handler);
+	}
+
+	/**
+	 * An entry in the dispatch table.
+	 */
+	private static class Entry {
+		/**
+		 * Static gas cost, or <code>null</code> if the cost depends on the state.
+		 */
+		private final BigInteger gas;
+		/**
+		 * Handler for the given bytecode.
+		 */
+		private final UnaryOperator<EvmState.State> handler;
+
+		public Entry(BigInteger gas, UnaryOperator<EvmState.State> handler) {
+			this.gas = gas;
+			this.handler = handler;
+		}
+	}
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2022 ConsenSys Software Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software dis-
+ * tributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package dafnyevm.util;
+
+import java.math.BigInteger;
+import java.util.List;
+
+import evmtools.core.Trace;
+import evmtools.core.Transaction;
+
+/**
+ * <p>
+ * A rolling 64-bit hash over the steps of an execution trace. Each step
+ * contributes its <code>pc</code>, opcode, remaining gas, the word on top of
+ * the stack, and a hash of memory. Likewise, the end of each (non-empty) trace
+ * contributes its outcome and return data. Since the fingerprint is computed
+ * incrementally, a tracer can compute it during execution without retaining
+ * the trace itself. Thus, two traces can be compared (with high probability)
+ * by comparing their fingerprints, and the full traces need only be
+ * constructed when they differ.
+ * </p>
+ * <p>
+ * The fingerprint of a <code>Trace</code> (as computed by <code>of()</code>)
+ * follows the order of execution, such that the steps of a nested call are
+ * included in between those of the enclosing call.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public final class Fingerprint {
+	/**
+	 * Initial value of a fingerprint (the FNV-1a offset basis).
+	 */
+	public static final long SEED = 0xcbf29ce484222325L;
+	/**
+	 * FNV-1a prime used for hashing byte sequences.
+	 */
+	private static final long PRIME = 0x100000001b3L;
+
+	private long hash = SEED;
+
+	/**
+	 * Get the current value of this fingerprint.
+	 *
+	 * @return
+	 */
+	public long get() {
+		return hash;
+	}
+
+	/**
+	 * Include a single execution step in this fingerprint.
+	 *
+	 * @param pc     Program counter of the step.
+	 * @param op     Opcode being executed.
+	 * @param gas    Gas remaining before the step.
+	 * @param stack  Stack before the step, where the top is the last element.
+	 * @param memory Memory before the step.
+	 */
+	public void step(int pc, int op, long gas, BigInteger[] stack, byte[] memory) {
+		long top = stack.length == 0 ? 0 : stack[stack.length - 1].longValue();
+		mix(pc);
+		mix(op);
+		mix(gas);
+		mix(top);
+		mix(hash(memory));
+	}
+
+	/**
+	 * Include the end of a trace (i.e. its outcome and return data) in this
+	 * fingerprint.
+	 *
+	 * @param outcome
+	 * @param data
+	 */
+	public void end(Transaction.Outcome outcome, byte[] data) {
+		mix(outcome.ordinal());
+		mix(hash(data));
+	}
+
+	/**
+	 * Compute the fingerprint of a complete trace, such as one read from a test
+	 * fixture.
+	 *
+	 * @param trace
+	 * @return
+	 */
+	public static long of(Trace trace) {
+		Fingerprint f = new Fingerprint();
+		f.include(trace);
+		return f.get();
+	}
+
+	private void include(Trace trace) {
+		List<Trace.Element> elements = trace.getElements();
+		for (Trace.Element e : elements) {
+			if (e instanceof Trace.SubTrace) {
+				include(((Trace.SubTrace) e).getTrace());
+			} else {
+				Trace.Step s = (Trace.Step) e;
+				step(s.pc, s.op, s.gas, s.stack, s.memory);
+			}
+		}
+		end(trace.getOutcome(), trace.getData());
+	}
+
+	/**
+	 * Mix a single word into this fingerprint. This uses the finaliser from
+	 * SplitMix64 so that every bit of the word affects every bit of the result.
+	 *
+	 * @param word
+	 */
+	private void mix(long word) {
+		long z = (hash ^ word) + 0x9e3779b97f4a7c15L;
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		hash = z ^ (z >>> 31);
+	}
+
+	/**
+	 * Compute a 64-bit hash of a byte sequence (using FNV-1a).
+	 *
+	 * @param bytes
+	 * @return
+	 */
+	private static long hash(byte[] bytes) {
+		long h = SEED;
+		if (bytes != null) {
+			for (int i = 0; i != bytes.length; ++i) {
+				h = (h ^ (bytes[i] & 0xff)) * PRIME;
+			}
+		}
+		return h;
+	}
+}
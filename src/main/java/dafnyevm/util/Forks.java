@@ -0,0 +1,55 @@
+/*
+ * Copyright 2022 ConsenSys Software Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software dis-
+ * tributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package dafnyevm.util;
+
+import EvmFork.Fork;
+
+/**
+ * Provides the forks supported by the Dafny EVM, each constructed exactly once.
+ * Module-level constants (such as <code>EvmFork.BERLIN</code>) are recomputed by
+ * the generated code every time they are accessed and, since constructing a
+ * fork involves building its opcode bitmap and EIP feature vector, this is not
+ * cheap. Sharing one instance per fork also means <code>Dispatch.of()</code>
+ * (which compares forks by identity) almost always hits.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class Forks {
+	public static final Fork BERLIN = EvmFork.__default.BERLIN();
+	public static final Fork LONDON = EvmFork.__default.LONDON();
+	public static final Fork SHANGHAI = EvmFork.__default.SHANGHAI();
+	public static final Fork CANCUN = EvmFork.__default.CANCUN();
+
+	/**
+	 * Determine the fork with a given name (ignoring case).
+	 *
+	 * @param name
+	 * @return
+	 */
+	public static Fork of(String name) {
+		switch (name.toUpperCase()) {
+		case "BERLIN":
+			return BERLIN;
+		case "CANCUN":
+			return CANCUN;
+		case "LONDON":
+			return LONDON;
+		case "SHANGHAI":
+			return SHANGHAI;
+		default:
+			throw new IllegalArgumentException("invalid fork: \"" + name + "\"");
+		}
+	}
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright 2022 ConsenSys Software Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software dis-
+ * tributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package dafnyevm.util;
+
+import java.math.BigInteger;
+
+import dafnyevm.crypto.Secp256k1;
+
+/**
+ * The built-in native implementations of precompiled contracts. Each follows
+ * the corresponding Dafny model (see <code>precompiled.dfy</code>), including
+ * its sanity checks on the input data.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class NativePrecompiles {
+
+    // ========================================================================
+    // (1) ECDSA Recover
+    // ========================================================================
+
+    public static class EcdsaRecover implements Precompile {
+        @Override
+        public int address() {
+            return 1;
+        }
+
+        @Override
+        public String name() {
+            return "ecrecover";
+        }
+
+        @Override
+        public byte[] call(byte[] input) {
+            byte[] h = slice(input, 0, 32);
+            BigInteger v = word(input, 32);
+            BigInteger r = word(input, 64);
+            BigInteger s = word(input, 96);
+            // Sanity checks
+            if (v.bitLength() > 8 || !(v.intValue() == 27 || v.intValue() == 28) || !inRange(r) || !inRange(s)) {
+                return new byte[0];
+            }
+            return Precompiles.ecdsaRecover(h, v.byteValue(), r, s);
+        }
+
+        private static boolean inRange(BigInteger w) {
+            return w.signum() != 0 && w.compareTo(Secp256k1.N) < 0;
+        }
+    }
+
+    // ========================================================================
+    // (2) SHA256
+    // ========================================================================
+
+    public static class Sha256 implements Precompile {
+        @Override
+        public int address() {
+            return 2;
+        }
+
+        @Override
+        public String name() {
+            return "sha256";
+        }
+
+        @Override
+        public byte[] call(byte[] input) {
+            return Precompiles.sha256(input);
+        }
+    }
+
+    // ========================================================================
+    // (3) RIPEMD160
+    // ========================================================================
+
+    public static class RipEmd160 implements Precompile {
+        @Override
+        public int address() {
+            return 3;
+        }
+
+        @Override
+        public String name() {
+            return "ripemd160";
+        }
+
+        @Override
+        public byte[] call(byte[] input) {
+            return Precompiles.ripEmd160(input);
+        }
+    }
+
+    // ========================================================================
+    // (4) Identity
+    // ========================================================================
+
+    public static class Identity implements Precompile {
+        @Override
+        public int address() {
+            return 4;
+        }
+
+        @Override
+        public String name() {
+            return "identity";
+        }
+
+        @Override
+        public byte[] call(byte[] input) {
+            return input.clone();
+        }
+    }
+
+    // ========================================================================
+    // (5) ModExp
+    // ========================================================================
+
+    public static class ModExp implements Precompile {
+        @Override
+        public int address() {
+            return 5;
+        }
+
+        @Override
+        public String name() {
+            return "modexp";
+        }
+
+        @Override
+        public byte[] call(byte[] input) {
+            BigInteger lB = word(input, 0);
+            BigInteger lE = word(input, 32);
+            BigInteger lM = word(input, 64);
+            if (lB.signum() == 0 && lM.signum() == 0) {
+                return new byte[0];
+            } else if (lM.bitLength() > 31) {
+                // NOTE: the output cannot be allocated, although the gas required to
+                // get here far exceeds any realistic gas limit.
+                return null;
+            }
+            int m = lM.intValue();
+            // Lengths are unbounded and, hence, M may start beyond the input (in
+            // which case it is zero).
+            BigInteger offset = lB.add(lE).add(BigInteger.valueOf(96));
+            BigInteger M = BigInteger.ZERO;
+            if (offset.compareTo(BigInteger.valueOf(input.length)) < 0) {
+                M = new BigInteger(1, slice(input, offset.longValue(), m));
+            }
+            if (M.signum() == 0) {
+                // To handle case where modulus is zero, the Yellow Paper specifies
+                // that we return zero.
+                return new byte[m];
+            }
+            // Since M starts within the input, both B and E lie within it and,
+            // hence, their lengths are bounded by its length.
+            int b = lB.intValue();
+            int e = lE.intValue();
+            BigInteger B = new BigInteger(1, slice(input, 96, b));
+            BigInteger E = new BigInteger(1, slice(input, 96L + b, e));
+            byte[] bytes = B.modPow(E, M).toByteArray();
+            // Left pad to the length of the modulus (which may strip a sign byte)
+            byte[] output = new byte[m];
+            int n = Math.min(m, bytes.length);
+            System.arraycopy(bytes, bytes.length - n, output, m - n, n);
+            return output;
+        }
+    }
+
+    // ========================================================================
+    // (9) BLAKE2f
+    // ========================================================================
+
+    public static class Blake2f implements Precompile {
+        @Override
+        public int address() {
+            return 9;
+        }
+
+        @Override
+        public String name() {
+            return "blake2f";
+        }
+
+        @Override
+        public byte[] call(byte[] input) {
+            byte[] output = Precompiles.blake2f(input);
+            return output.length == 0 ? null : output;
+        }
+    }
+
+    // ========================================================================
+    // (10) Point Evaluation
+    // ========================================================================
+
+    public static class PointEvaluation implements Precompile {
+        @Override
+        public int address() {
+            return 10;
+        }
+
+        @Override
+        public String name() {
+            return "pointevaluation";
+        }
+
+        @Override
+        public byte[] call(byte[] input) {
+            byte[] output = Precompiles.pointEvaluation(input);
+            return output.length == 0 ? null : output;
+        }
+    }
+
+    // ========================================================================
+    // Helpers
+    // ========================================================================
+
+    /**
+     * Extract a slice of the input data, which is padded with zeros beyond the
+     * end of the input.
+     *
+     * @param input
+     * @param offset
+     * @param length
+     * @return
+     */
+    private static byte[] slice(byte[] input, long offset, int length) {
+        byte[] bytes = new byte[length];
+        if (offset < input.length) {
+            int n = (int) Math.min(length, input.length - offset);
+            System.arraycopy(input, (int) offset, bytes, 0, n);
+        }
+        return bytes;
+    }
+
+    /**
+     * Read a (32 byte) word from the input data, which is padded with zeros
+     * beyond the end of the input.
+     *
+     * @param input
+     * @param offset
+     * @return
+     */
+    private static BigInteger word(byte[] input, int offset) {
+        return new BigInteger(1, slice(input, offset, 32));
+    }
+}
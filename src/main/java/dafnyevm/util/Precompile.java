@@ -0,0 +1,70 @@
+/*
+ * Copyright 2022 ConsenSys Software Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software dis-
+ * tributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package dafnyevm.util;
+
+import EvmFork.Fork;
+
+/**
+ * <p>
+ * A native implementation of a precompiled contract, which can be used in
+ * place of its Dafny model. Implementations are discovered using a
+ * <code>ServiceLoader</code> (see <code>PrecompileRegistry</code>). Hence, they
+ * must have a public constructor which takes no arguments, and be listed in
+ * <code>META-INF/services/dafnyevm.util.Precompile</code>.
+ * </p>
+ * <p>
+ * A native implementation only replaces the model when the contract is
+ * called. Its gas cost is always determined by the model, and is checked
+ * before the native implementation is called.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public interface Precompile {
+    /**
+     * The address of the precompiled contract this implements.
+     *
+     * @return
+     */
+    public int address();
+
+    /**
+     * A unique name by which this implementation can be selected (e.g. when
+     * several implementations exist for the same address).
+     *
+     * @return
+     */
+    public String name();
+
+    /**
+     * Determine whether this implementation can be used in a given fork. This
+     * is useful when the semantics of a contract differ between forks.
+     *
+     * @param fork
+     * @return
+     */
+    public default boolean isActive(Fork fork) {
+        return true;
+    }
+
+    /**
+     * Call this precompiled contract with some input data.
+     *
+     * @param input
+     * @return The output data, or <code>null</code> if the call failed (in
+     *         which case all gas is consumed).
+     */
+    public byte[] call(byte[] input);
+}
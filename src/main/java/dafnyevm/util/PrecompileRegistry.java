@@ -0,0 +1,393 @@
+/*
+ * Copyright 2022 ConsenSys Software Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software dis-
+ * tributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package dafnyevm.util;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
+
+import EvmFork.Fork;
+import dafny.DafnySequence;
+import dafny.Tuple2;
+import dafnyevm.DafnyEvm;
+import evmtools.util.Hex;
+
+/**
+ * <p>
+ * A registry of native implementations for precompiled contracts, which
+ * determines for each contract whether its Dafny model or a native
+ * implementation is used. Native implementations are discovered using a
+ * <code>ServiceLoader</code> (see <code>Precompile</code>), and each contract
+ * can be run in one of three modes:
+ * </p>
+ * <ul>
+ * <li><b>MODEL.</b> The Dafny model is used.</li>
+ * <li><b>NATIVE.</b> The native implementation is used (if one is available
+ * and active in the given fork).</li>
+ * <li><b>DIFFERENTIAL.</b> Both the model and the native implementation are
+ * run, and any difference between them is reported. The result of the model
+ * is always used.</li>
+ * </ul>
+ * <p>
+ * By default, every contract uses its Dafny model, and native implementations
+ * must be enabled explicitly. Modes can be set for all contracts, for
+ * individual contracts, or for individual contracts in a given fork (where
+ * more specific settings take precedence). Such settings can also be given as a comma-separated
+ * specification (see <code>configure()</code>), and the default registry (see
+ * <code>getDefault()</code>) is configured from the
+ * <code>dafnyevm.precompiles</code> system property. For example,
+ * <code>-Ddafnyevm.precompiles=5=native,Cancun:10=differential</code> uses
+ * the model for everything except ModExp, and checks point evaluation against
+ * the model in Cancun.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class PrecompileRegistry {
+    public enum Mode {
+        MODEL, NATIVE, DIFFERENTIAL
+    }
+
+    /**
+     * Receives any differences found between a native implementation and the
+     * model in differential mode.
+     *
+     * @author David J. Pearce
+     *
+     */
+    @FunctionalInterface
+    public interface Listener {
+        /**
+         * Report a difference between the model and a native implementation,
+         * where a <code>null</code> output indicates failure.
+         *
+         * @param precompile Native implementation being checked.
+         * @param input      Input data for the call.
+         * @param expected   Output of the model.
+         * @param actual     Output of the native implementation.
+         */
+        public void mismatch(Precompile precompile, byte[] input, byte[] expected, byte[] actual);
+    }
+
+    /**
+     * The default listener simply throws an exception.
+     */
+    public static final Listener FAIL = (p, input, expected, actual) -> {
+        throw new IllegalStateException("precompile " + p.name() + " (" + p.address() + ") returned "
+                + toString(actual) + " instead of " + toString(expected) + " for " + Hex.toHexString(input));
+    };
+
+    /**
+     * Output of a failed call.
+     */
+    private static final Tuple2<Boolean, DafnySequence<? extends Byte>> FAILURE = new Tuple2<>(false,
+            DafnySequence.fromBytes(new byte[0]));
+
+    /**
+     * Dispatcher which uses the model for every contract.
+     */
+    private static final Precompiled.T MODEL = Precompiled.T.create(Precompiles::ecdsaRecover, Precompiles::sha256,
+            Precompiles::ripEmd160, Precompiles::blake2f, Precompiles::pointEvaluation, Precompiles::sha3,
+            address -> false, (address, data) -> FAILURE);
+
+    /**
+     * All available implementations, indexed by name.
+     */
+    private final LinkedHashMap<String, Precompile> available = new LinkedHashMap<>();
+    /**
+     * The implementation selected for each address.
+     */
+    private final HashMap<Integer, Precompile> selected = new HashMap<>();
+    /**
+     * Modes for each address, and for each address in each fork (keyed by fork
+     * identifier).
+     */
+    private final HashMap<Integer, Mode> modes = new HashMap<>();
+    private final HashMap<BigInteger, Map<Integer, Mode>> forkModes = new HashMap<>();
+    /**
+     * Mode for any address not otherwise given. By default, the verified model
+     * is used and native implementations must be enabled explicitly.
+     */
+    private Mode mode = Mode.MODEL;
+    private Listener listener = FAIL;
+    /**
+     * Cache of dispatchers for each fork, which is cleared whenever the
+     * configuration changes.
+     */
+    private final ConcurrentHashMap<BigInteger, Precompiled.T> dispatchers = new ConcurrentHashMap<>();
+
+    /**
+     * Construct a registry with a given set of implementations, where the first
+     * implementation for each address is initially selected.
+     *
+     * @param implementations
+     */
+    public PrecompileRegistry(Iterable<? extends Precompile> implementations) {
+        for (Precompile p : implementations) {
+            if (available.putIfAbsent(p.name(), p) != null) {
+                throw new IllegalArgumentException("duplicate precompile \"" + p.name() + "\"");
+            }
+            selected.putIfAbsent(p.address(), p);
+        }
+    }
+
+    /**
+     * Construct a registry from all implementations visible to a
+     * <code>ServiceLoader</code>.
+     *
+     * @return
+     */
+    public static PrecompileRegistry load() {
+        return new PrecompileRegistry(ServiceLoader.load(Precompile.class));
+    }
+
+    /**
+     * Get the registry used by default, which is loaded on first use and
+     * configured from the <code>dafnyevm.precompiles</code> system property.
+     *
+     * @return
+     */
+    public static PrecompileRegistry getDefault() {
+        return Default.INSTANCE;
+    }
+
+    /**
+     * Get all available implementations.
+     *
+     * @return
+     */
+    public List<Precompile> available() {
+        return new ArrayList<>(available.values());
+    }
+
+    /**
+     * Select a given implementation (by name) for its address.
+     *
+     * @param name
+     * @return
+     */
+    public synchronized PrecompileRegistry select(String name) {
+        Precompile p = available.get(name);
+        if (p == null) {
+            throw new IllegalArgumentException("unknown precompile \"" + name + "\"");
+        }
+        selected.put(p.address(), p);
+        dispatchers.clear();
+        return this;
+    }
+
+    /**
+     * Set the mode for all addresses (unless otherwise given).
+     *
+     * @param mode
+     * @return
+     */
+    public synchronized PrecompileRegistry mode(Mode mode) {
+        this.mode = mode;
+        dispatchers.clear();
+        return this;
+    }
+
+    /**
+     * Set the mode for a given address (unless otherwise given for a specific
+     * fork).
+     *
+     * @param address
+     * @param mode
+     * @return
+     */
+    public synchronized PrecompileRegistry mode(int address, Mode mode) {
+        modes.put(address, mode);
+        dispatchers.clear();
+        return this;
+    }
+
+    /**
+     * Set the mode for a given address in a given fork.
+     *
+     * @param fork
+     * @param address
+     * @param mode
+     * @return
+     */
+    public synchronized PrecompileRegistry mode(Fork fork, int address, Mode mode) {
+        forkModes.computeIfAbsent(fork.dtor_id(), k -> new HashMap<>()).put(address, mode);
+        dispatchers.clear();
+        return this;
+    }
+
+    /**
+     * Set the listener which receives any differences found in differential
+     * mode.
+     *
+     * @param listener
+     * @return
+     */
+    public synchronized PrecompileRegistry listener(Listener listener) {
+        this.listener = listener;
+        dispatchers.clear();
+        return this;
+    }
+
+    /**
+     * Configure this registry from a comma-separated specification, where each
+     * item is either a mode (for all addresses), <code>address=mode</code>,
+     * <code>fork:address=mode</code> or <code>address=name</code> (which selects
+     * a given implementation, and uses it natively). For example,
+     * <code>model,5=native,Cancun:10=differential</code>.
+     *
+     * @param spec
+     * @return
+     */
+    public synchronized PrecompileRegistry configure(String spec) {
+        for (String item : spec.split(",")) {
+            item = item.trim();
+            if (item.isEmpty()) {
+                continue;
+            }
+            int eq = item.indexOf('=');
+            if (eq < 0) {
+                mode(parseMode(item));
+                continue;
+            }
+            String lhs = item.substring(0, eq).trim();
+            String rhs = item.substring(eq + 1).trim();
+            int colon = lhs.indexOf(':');
+            int address = Integer.decode(lhs.substring(colon + 1).trim());
+            if (colon >= 0) {
+                mode(DafnyEvm.toFork(lhs.substring(0, colon).trim()), address, parseMode(rhs));
+            } else if (isMode(rhs)) {
+                mode(address, parseMode(rhs));
+            } else {
+                select(rhs);
+                if (selected.get(address) != available.get(rhs)) {
+                    throw new IllegalArgumentException("precompile \"" + rhs + "\" is not for address " + address);
+                }
+                mode(address, Mode.NATIVE);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Determine the mode used for a given address in a given fork. This is
+     * always <code>MODEL</code> when no active native implementation exists.
+     *
+     * @param fork
+     * @param address
+     * @return
+     */
+    public synchronized Mode modeOf(Fork fork, int address) {
+        Precompile p = selected.get(address);
+        if (p == null || !p.isActive(fork)) {
+            return Mode.MODEL;
+        }
+        Map<Integer, Mode> m = forkModes.get(fork.dtor_id());
+        if (m != null && m.containsKey(address)) {
+            return m.get(address);
+        }
+        return modes.getOrDefault(address, mode);
+    }
+
+    /**
+     * Get the dispatcher for a given fork, which calls each precompiled
+     * contract according to its mode.
+     *
+     * @param fork
+     * @return
+     */
+    public Precompiled.T dispatcher(Fork fork) {
+        Precompiled.T d = dispatchers.get(fork.dtor_id());
+        if (d == null) {
+            d = build(fork);
+            dispatchers.put(fork.dtor_id(), d);
+        }
+        return d;
+    }
+
+    private synchronized Precompiled.T build(Fork fork) {
+        HashMap<BigInteger, Precompile> natives = new HashMap<>();
+        HashMap<BigInteger, Mode> nativeModes = new HashMap<>();
+        for (Map.Entry<Integer, Precompile> e : selected.entrySet()) {
+            Mode m = modeOf(fork, e.getKey());
+            if (m != Mode.MODEL) {
+                BigInteger address = BigInteger.valueOf(e.getKey());
+                natives.put(address, e.getValue());
+                nativeModes.put(address, m);
+            }
+        }
+        if (natives.isEmpty()) {
+            return MODEL;
+        }
+        Listener l = listener;
+        return Precompiled.T.create(Precompiles::ecdsaRecover, Precompiles::sha256, Precompiles::ripEmd160,
+                Precompiles::blake2f, Precompiles::pointEvaluation, Precompiles::sha3, natives::containsKey,
+                (address, data) -> call(natives.get(address), nativeModes.get(address), l, address, data));
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static Tuple2<Boolean, DafnySequence<? extends Byte>> call(Precompile p, Mode mode, Listener listener,
+            BigInteger address, DafnySequence<? extends Byte> data) {
+        // NOTE: the input is a fresh copy, hence cannot be modified by the call.
+        byte[] input = DafnySequence.toByteArray((DafnySequence) data);
+        byte[] output = p.call(input);
+        if (mode == Mode.DIFFERENTIAL) {
+            Tuple2<Boolean, DafnySequence<? extends Byte>> reference = MODEL.Reference(address, data);
+            byte[] expected = reference.dtor__0() ? DafnySequence.toByteArray((DafnySequence) reference.dtor__1())
+                    : null;
+            if (!Arrays.equals(expected, output)) {
+                listener.mismatch(p, input, expected, output);
+            }
+            return reference;
+        } else if (output == null) {
+            return FAILURE;
+        } else {
+            // NOTE: the output is never shared, hence it does not need to be copied.
+            return new Tuple2<>(true, DafnySequence.unsafeWrapBytes(output));
+        }
+    }
+
+    private static boolean isMode(String s) {
+        for (Mode m : Mode.values()) {
+            if (m.name().equalsIgnoreCase(s)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Mode parseMode(String s) {
+        return Mode.valueOf(s.toUpperCase());
+    }
+
+    private static String toString(byte[] output) {
+        return output == null ? "failure" : Hex.toHexString(output);
+    }
+
+    /**
+     * Holds the default registry, such that it is only loaded when first
+     * needed.
+     */
+    private static class Default {
+        private static final PrecompileRegistry INSTANCE = load()
+                .configure(System.getProperty("dafnyevm.precompiles", ""));
+    }
+}
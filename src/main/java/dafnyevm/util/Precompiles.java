@@ -14,18 +14,53 @@
 package dafnyevm.util;
 
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import org.bouncycastle.crypto.digests.RIPEMD160Digest;
-import org.web3j.crypto.ECDSASignature;
 import org.web3j.crypto.Hash;
-import org.web3j.crypto.Sign;
 
 import dafny.DafnySequence;
 import dafnyevm.crypto.Blake2b;
+import dafnyevm.crypto.Bls12381;
+import dafnyevm.crypto.Kzg;
+import dafnyevm.crypto.Secp256k1;
 
 public class Precompiles {
 
+    /**
+     * A precompile which operates over a window of some (larger) byte array,
+     * and writes its result into a caller-provided output buffer. This avoids
+     * copying the input or output (e.g. to slice it from memory) beyond what the
+     * precompile itself requires.
+     *
+     * @author David J. Pearce
+     *
+     */
+    @FunctionalInterface
+    public interface Window {
+        /**
+         * Apply this precompile to the bytes
+         * <code>input[offset..offset+length)</code>, writing the result into
+         * <code>output</code> starting at <code>outputOffset</code>. The output
+         * buffer must be large enough to hold the result.
+         *
+         * @param input        Backing array holding the input.
+         * @param offset       Offset into the backing array where the input starts.
+         * @param length       Number of bytes of input.
+         * @param output       Buffer into which the result is written.
+         * @param outputOffset Offset into the output buffer where the result starts.
+         * @return Number of bytes written (which is <code>0</code> if the
+         *         precompile failed).
+         */
+        public int apply(byte[] input, int offset, int length, byte[] output, int outputOffset);
+    }
+
     // ========================================================================
     // (1) ECDSA Recover
     // ========================================================================
@@ -34,11 +69,47 @@ public class Precompiles {
     @SuppressWarnings({"unchecked","rawtypes"})
     public static DafnySequence<Byte> ecdsaRecover(DafnySequence<? extends Byte> _h, byte v, BigInteger r, BigInteger s) {
         byte[] h = DafnySequence.toByteArray((DafnySequence) _h);
-        return DafnySequence.fromBytes(ecdsaRecover(h, v, r, s));
+        // NOTE: the result is never shared, hence it does not need to be copied.
+        return DafnySequence.unsafeWrapBytes(ecdsaRecover(h, v, r, s));
+    }
+
+    /**
+     * Maximum number of recovered addresses to cache (or <code>0</code> if
+     * caching is disabled). This can be set using the
+     * <code>dafnyevm.ecrecover.cache</code> system property, and is useful when
+     * the same signatures are recovered repeatedly (e.g. when replaying blocks).
+     */
+    private static int ecdsaCacheSize = Integer.getInteger("dafnyevm.ecrecover.cache", 0);
+
+    /**
+     * Cache of recovered addresses keyed on <code>(h,v,r,s)</code>, where the
+     * least recently used entries are evicted first.
+     */
+    private static final LinkedHashMap<ByteBuffer, byte[]> ecdsaCache = new LinkedHashMap<>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ByteBuffer, byte[]> eldest) {
+            return size() > ecdsaCacheSize;
+        }
+    };
+
+    /**
+     * Set the maximum number of recovered addresses to cache, where
+     * <code>0</code> disables caching altogether.
+     *
+     * @param size
+     */
+    public static void ecdsaRecoverCache(int size) {
+        synchronized (ecdsaCache) {
+            ecdsaCacheSize = size;
+            ecdsaCache.clear();
+        }
     }
 
     /**
-     * Compute the ECDSA key recovery procedure for a given byte sequence.
+     * Compute the ECDSA key recovery procedure for a given byte sequence. If
+     * caching is enabled, previously recovered addresses are reused.
      *
      * @param h Hash of transaction
      * @param v recovery identifier (assumed to be one byte)
@@ -47,34 +118,46 @@ public class Precompiles {
      * @return
      */
     public static byte[] ecdsaRecover(byte[] h, byte v, BigInteger r, BigInteger s) {
-        ECDSASignature sig = new ECDSASignature(r, s);
-        // Recover Key
-        try {
-            BigInteger key = Sign.recoverFromSignature(v - 27, sig, h);
-            // Sanity checks
-            if (key != null && !key.equals(BigInteger.ZERO)) {
-                // Compute KEC
-                byte[] hash = Hash.sha3(key.toByteArray());
-                // Split out bytes 12--31
-                hash = Arrays.copyOfRange(hash, 12, hash.length);
-                // Done
-                return leftPad(hash, 32);
+        if (ecdsaCacheSize <= 0) {
+            return recoverAddress(h, v, r, s);
+        }
+        ByteBuffer key = ByteBuffer.allocate(h.length + 65);
+        key.put(h).put(v).put(toBytes32(r)).put(toBytes32(s)).flip();
+        byte[] address;
+        synchronized (ecdsaCache) {
+            address = ecdsaCache.get(key);
+        }
+        if (address == null) {
+            address = recoverAddress(h, v, r, s);
+            synchronized (ecdsaCache) {
+                ecdsaCache.put(key, address);
             }
-        } catch (IllegalArgumentException e) {
+        }
+        return address.clone();
+    }
+
+    private static byte[] recoverAddress(byte[] h, byte v, BigInteger r, BigInteger s) {
+        // Recover Key (as the 64 bytes of its x and y coordinates)
+        byte[] key = Secp256k1.recover(h, v - 27, r, s);
+        if (key == null) {
             // This indicates key recovery was impossible. Therefore, according to the
             // Yellow Paper, we simply return the empty byte sequence.
+            return new byte[0];
         }
-        return new byte[0];
+        // Compute KEC
+        byte[] hash = Hash.sha3(key);
+        // Split out bytes 12--31
+        hash = Arrays.copyOfRange(hash, 12, hash.length);
+        // Done
+        return leftPad(hash, 32);
     }
 
     // ========================================================================
     // (2) SHA256
     // ========================================================================
 
-    @SuppressWarnings({"unchecked","rawtypes"})
     public static DafnySequence<Byte> sha256(DafnySequence<? extends Byte> bytes) {
-        byte[] hash = sha256(DafnySequence.toByteArray((DafnySequence) bytes));
-        return DafnySequence.fromBytes(hash);
+        return apply(Precompiles::sha256, 32, bytes);
     }
 
     /**
@@ -84,18 +167,36 @@ public class Precompiles {
      * @return
      */
     public static byte[] sha256(byte[] bytes) {
-        // Compute the hash
-        return Hash.sha256(bytes);
+        return apply(Precompiles::sha256, 32, bytes, 0, bytes.length);
+    }
+
+    /**
+     * Compute the Sha256 hash of a window of a byte array, writing the (32 byte)
+     * hash into a given output buffer.
+     *
+     * @param input
+     * @param offset
+     * @param length
+     * @param output
+     * @param outputOffset
+     * @return
+     */
+    public static int sha256(byte[] input, int offset, int length, byte[] output, int outputOffset) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(input, offset, length);
+            return digest.digest(output, outputOffset, 32);
+        } catch (NoSuchAlgorithmException | DigestException e) {
+            throw new IllegalStateException(e);
+        }
     }
 
     // ========================================================================
     // (3) RIPEMD160
     // ========================================================================
 
-    @SuppressWarnings({"unchecked","rawtypes"})
     public static DafnySequence<Byte> ripEmd160(DafnySequence<? extends Byte> bytes) {
-        byte[] tmp = ripEmd160(DafnySequence.toByteArray((DafnySequence) bytes));
-        return DafnySequence.fromBytes(tmp);
+        return apply(Precompiles::ripEmd160, 32, bytes);
     }
 
     /**
@@ -105,23 +206,35 @@ public class Precompiles {
      * @return
      */
     public static byte[] ripEmd160(byte[] bytes) {
-        // Compute the hash
+        return apply(Precompiles::ripEmd160, 32, bytes, 0, bytes.length);
+    }
+
+    /**
+     * Compute the RIPEMD160 digest of a window of a byte array, writing it into
+     * a given output buffer as a (32 byte) word. That is, the digest is padded
+     * to the left with zeros.
+     *
+     * @param input
+     * @param offset
+     * @param length
+     * @param output
+     * @param outputOffset
+     * @return
+     */
+    public static int ripEmd160(byte[] input, int offset, int length, byte[] output, int outputOffset) {
         RIPEMD160Digest digest = new RIPEMD160Digest();
-        digest.update(bytes, 0, bytes.length);
-        byte[] out = new byte[32];
-        digest.doFinal(out, 12);
-        // Construct an (unsigned) bigint.
-        return out;
+        digest.update(input, offset, length);
+        Arrays.fill(output, outputOffset, outputOffset + 12, (byte) 0);
+        digest.doFinal(output, outputOffset + 12);
+        return 32;
     }
 
     // ========================================================================
     // (9) BLAKE2f
     // ========================================================================
 
-    public static DafnySequence<Byte> blake2f(DafnySequence<? extends Byte> _bytes) {
-        @SuppressWarnings({"unchecked","rawtypes"})
-        byte[] bytes = DafnySequence.toByteArray((DafnySequence) _bytes);
-        return DafnySequence.fromBytes(blake2f(bytes));
+    public static DafnySequence<Byte> blake2f(DafnySequence<? extends Byte> bytes) {
+        return apply(Precompiles::blake2f, 64, bytes);
     }
 
     /**
@@ -132,25 +245,84 @@ public class Precompiles {
      * @return
      */
     public static byte[] blake2f(byte[] bytes) {
+        return apply(Precompiles::blake2f, 64, bytes, 0, bytes.length);
+    }
+
+    /**
+     * Compute function F from Blake2 compression algorithm over a window of a
+     * byte array, writing the (64 byte) result into a given output buffer.
+     *
+     * @param input
+     * @param offset
+     * @param length
+     * @param output
+     * @param outputOffset
+     * @return
+     */
+    public static int blake2f(byte[] input, int offset, int length, byte[] output, int outputOffset) {
         // Initial sanity checks as determined by yellow paper.
-        if(bytes.length == 213) {
+        if(length == 213) {
             // (f)inal block indicator flag
-            byte f = bytes[212];
+            byte f = input[offset + 212];
             //
             if(f == 0 || f == 1) {
                 // Determine number of rounds.
-                long r = Bytes.fromBigEndian32(bytes, 0) & 0xFFFFFFFFL;
-                long[] h = Bytes.fromLittleEndian64s(bytes, 4, 8);
-                long[] m = Bytes.fromLittleEndian64s(bytes, 68, 16);
-                long[] t = Bytes.fromLittleEndian64s(bytes, 196, 2);
+                long r = Bytes.fromBigEndian32(input, offset) & 0xFFFFFFFFL;
+                long[] h = Bytes.fromLittleEndian64s(input, offset + 4, 8);
+                long[] m = Bytes.fromLittleEndian64s(input, offset + 68, 16);
+                long[] t = Bytes.fromLittleEndian64s(input, offset + 196, 2);
                 //
                 h = Blake2b.F(r, h, m, t, f == 1);
                 //
-                return Bytes.toLittleEndianBytes(h);
+                for (int i = 0; i != h.length; ++i) {
+                    Bytes.toLittleEndianBytes(h[i], outputOffset + (i * 8), output);
+                }
+                return 64;
             }
         }
         // Failure case
-        return new byte[0];
+        return 0;
+    }
+
+    // ========================================================================
+    // (10) Point Evaluation
+    // ========================================================================
+
+    public static DafnySequence<Byte> pointEvaluation(DafnySequence<? extends Byte> bytes) {
+        return apply(Precompiles::pointEvaluation, 64, bytes);
+    }
+
+    /**
+     * Verify a KZG proof that some blob (identified by its versioned hash)
+     * evaluates to a given value at a given point. See EIP-4844.
+     *
+     * @param bytes
+     * @return
+     */
+    public static byte[] pointEvaluation(byte[] bytes) {
+        return apply(Precompiles::pointEvaluation, 64, bytes, 0, bytes.length);
+    }
+
+    /**
+     * Verify a KZG proof over a window of a byte array. If successful, this
+     * writes the number of field elements per blob and the modulus of the
+     * field (both as 32 byte words) into a given output buffer.
+     *
+     * @param input
+     * @param offset
+     * @param length
+     * @param output
+     * @param outputOffset
+     * @return
+     */
+    public static int pointEvaluation(byte[] input, int offset, int length, byte[] output, int outputOffset) {
+        if (!Kzg.getInstance().verifyPointEvaluation(input, offset, length)) {
+            // Failure case
+            return 0;
+        }
+        System.arraycopy(toBytes32(BigInteger.valueOf(Kzg.FIELD_ELEMENTS_PER_BLOB)), 0, output, outputOffset, 32);
+        System.arraycopy(toBytes32(Bls12381.R), 0, output, outputOffset + 32, 32);
+        return 64;
     }
 
     // ========================================================================
@@ -169,8 +341,20 @@ public class Precompiles {
      * @return
      */
     public static BigInteger sha3(byte[] bytes) {
+        return sha3(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Compute the Keccak256 hash of a window of a byte array.
+     *
+     * @param input
+     * @param offset
+     * @param length
+     * @return
+     */
+    public static BigInteger sha3(byte[] input, int offset, int length) {
         // Compute the hash
-        byte[] hash = Hash.sha3(bytes);
+        byte[] hash = Hash.sha3(input, offset, length);
         // Construct an (unsigned) bigint.
         return new BigInteger(1, hash);
     }
@@ -179,6 +363,55 @@ public class Precompiles {
     // Helpers
     // ========================================================================
 
+    /**
+     * Apply a windowed precompile to a Dafny sequence. The input is extracted
+     * once, and the output is handed back to Dafny without being copied (since
+     * it is never shared).
+     *
+     * @param fn    Precompile to apply.
+     * @param size  Maximum number of bytes the precompile can produce.
+     * @param input Input sequence.
+     * @return
+     */
+    @SuppressWarnings({"unchecked","rawtypes"})
+    private static DafnySequence<Byte> apply(Window fn, int size, DafnySequence<? extends Byte> input) {
+        byte[] bytes = DafnySequence.toByteArray((DafnySequence) input);
+        return DafnySequence.unsafeWrapBytes(apply(fn, size, bytes, 0, bytes.length));
+    }
+
+    /**
+     * Apply a windowed precompile, returning a fresh array holding exactly the
+     * bytes it produced.
+     *
+     * @param fn     Precompile to apply.
+     * @param size   Maximum number of bytes the precompile can produce.
+     * @param input
+     * @param offset
+     * @param length
+     * @return
+     */
+    private static byte[] apply(Window fn, int size, byte[] input, int offset, int length) {
+        byte[] output = new byte[size];
+        int n = fn.apply(input, offset, length, output, 0);
+        return n == size ? output : Arrays.copyOf(output, n);
+    }
+
+    /**
+     * Convert a (non-negative) 256-bit word into exactly 32 bytes in big endian
+     * form.
+     *
+     * @param w
+     * @return
+     */
+    private static byte[] toBytes32(BigInteger w) {
+        byte[] bytes = w.toByteArray();
+        if (bytes.length > 32) {
+            // Strip leading sign byte
+            return Arrays.copyOfRange(bytes, bytes.length - 32, bytes.length);
+        }
+        return leftPad(bytes, 32);
+    }
+
     /**
      * Pad out a given byte sequence with zeros (to the left) upto a given length.
      *
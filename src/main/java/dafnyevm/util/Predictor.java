@@ -0,0 +1,688 @@
+/*
+ * Copyright 2022 ConsenSys Software Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software dis-
+ * tributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package dafnyevm.util;
+
+import static Opcode.__default.*;
+
+import java.math.BigInteger;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+import org.web3j.crypto.Hash;
+
+/**
+ * <p>
+ * Predicts the storage keys and account addresses which a contract is likely to
+ * touch, given its code and the calldata it will be called with. This is used
+ * to prefetch state ahead of execution. Many contracts compute storage keys
+ * either from constants (e.g. <code>PUSH32 k SLOAD</code>) or by hashing
+ * calldata with a constant (e.g. for Solidity mappings), both of which can be
+ * determined without executing the contract.
+ * </p>
+ * <p>
+ * The analysis is a simple abstract interpretation over the basic blocks of the
+ * contract, where each stack item (and each word of memory) is either a known
+ * constant or unknown. Control flow is followed through jumps whose target is
+ * known, and states are joined where control flow meets. Since predictions are
+ * only used as hints, the analysis makes no attempt to be sound. For example,
+ * it ignores any stack items below those it has seen pushed.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class Predictor {
+	/**
+	 * Upper bound on the number of blocks visited, which ensures the analysis
+	 * remains cheap regardless of the contract.
+	 */
+	private static final int MAX_VISITS = 4096;
+	private static final BigInteger TWO_160 = BigInteger.ONE.shiftLeft(160);
+	private static final BigInteger TWO_256 = BigInteger.ONE.shiftLeft(256);
+	private static final BigInteger MAX_U256 = TWO_256.subtract(BigInteger.ONE);
+	// Kinds of bytecode
+	private static final int HALT = 0;
+	private static final int OTHER = 1;
+	private static final int FOLD = 2;
+	private static final int PUSH = 3;
+	private static final int DUP = 4;
+	private static final int SWAP = 5;
+	private static final int ADDRESS = 6;
+	private static final int CALLER = 7;
+	private static final int CALLDATALOAD = 8;
+	private static final int CALLDATASIZE = 9;
+	private static final int MLOAD = 10;
+	private static final int MSTORE = 11;
+	private static final int KECCAK256 = 12;
+	private static final int SLOAD = 13;
+	private static final int SSTORE = 14;
+	private static final int ACCOUNT = 15;
+	private static final int CALL = 16;
+	private static final int JUMP = 17;
+	private static final int JUMPI = 18;
+	private static final int JUMPDEST = 19;
+	/**
+	 * Kind of each bytecode, where undefined bytecodes are treated as halting.
+	 */
+	private static final int[] KINDS = new int[256];
+	/**
+	 * Number of operands popped by each bytecode.
+	 */
+	private static final int[] POPS = new int[256];
+	/**
+	 * Number of operands pushed by each bytecode.
+	 */
+	private static final int[] PUSHES = new int[256];
+	/**
+	 * Constant folding function for those bytecodes which support it.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static final Function<BigInteger[], BigInteger>[] FOLDS = new Function[256];
+
+	static {
+		// 0s: Stop and Arithmetic Operations
+		register(STOP(), HALT, 0, 0);
+		fold(ADD(), 2, xs -> xs[0].add(xs[1]));
+		fold(MUL(), 2, xs -> xs[0].multiply(xs[1]));
+		fold(SUB(), 2, xs -> xs[0].subtract(xs[1]));
+		fold(DIV(), 2, xs -> xs[1].signum() == 0 ? BigInteger.ZERO : xs[0].divide(xs[1]));
+		register(SDIV(), OTHER, 2, 1);
+		register(MOD(), OTHER, 2, 1);
+		register(SMOD(), OTHER, 2, 1);
+		register(ADDMOD(), OTHER, 3, 1);
+		register(MULMOD(), OTHER, 3, 1);
+		register(EXP(), OTHER, 2, 1);
+		register(SIGNEXTEND(), OTHER, 2, 1);
+		// 10s: Comparison & Bitwise Logic
+		fold(LT(), 2, xs -> bool(xs[0].compareTo(xs[1]) < 0));
+		fold(GT(), 2, xs -> bool(xs[0].compareTo(xs[1]) > 0));
+		register(SLT(), OTHER, 2, 1);
+		register(SGT(), OTHER, 2, 1);
+		fold(EQ(), 2, xs -> bool(xs[0].equals(xs[1])));
+		fold(ISZERO(), 1, xs -> bool(xs[0].signum() == 0));
+		fold(AND(), 2, xs -> xs[0].and(xs[1]));
+		fold(OR(), 2, xs -> xs[0].or(xs[1]));
+		fold(XOR(), 2, xs -> xs[0].xor(xs[1]));
+		fold(NOT(), 1, xs -> xs[0].xor(MAX_U256));
+		register(BYTE(), OTHER, 2, 1);
+		fold(SHL(), 2, xs -> xs[0].compareTo(BigInteger.valueOf(256)) >= 0 ? BigInteger.ZERO : xs[1].shiftLeft(xs[0].intValue()));
+		fold(SHR(), 2, xs -> xs[0].compareTo(BigInteger.valueOf(256)) >= 0 ? BigInteger.ZERO : xs[1].shiftRight(xs[0].intValue()));
+		register(SAR(), OTHER, 2, 1);
+		// 20s
+		register(KECCAK256(), KECCAK256, 2, 1);
+		// 30s: Environment Information
+		register(ADDRESS(), ADDRESS, 0, 1);
+		register(BALANCE(), ACCOUNT, 1, 1);
+		register(ORIGIN(), CALLER, 0, 1);
+		register(CALLER(), CALLER, 0, 1);
+		register(CALLVALUE(), OTHER, 0, 1);
+		register(CALLDATALOAD(), CALLDATALOAD, 1, 1);
+		register(CALLDATASIZE(), CALLDATASIZE, 0, 1);
+		register(CALLDATACOPY(), OTHER, 3, 0);
+		register(CODESIZE(), OTHER, 0, 1);
+		register(CODECOPY(), OTHER, 3, 0);
+		register(GASPRICE(), OTHER, 0, 1);
+		register(EXTCODESIZE(), ACCOUNT, 1, 1);
+		register(EXTCODECOPY(), ACCOUNT, 4, 0);
+		register(RETURNDATASIZE(), OTHER, 0, 1);
+		register(RETURNDATACOPY(), OTHER, 3, 0);
+		register(EXTCODEHASH(), ACCOUNT, 1, 1);
+		// 40s: Block Information
+		register(BLOCKHASH(), OTHER, 1, 1);
+		register(COINBASE(), OTHER, 0, 1);
+		register(TIMESTAMP(), OTHER, 0, 1);
+		register(NUMBER(), OTHER, 0, 1);
+		register(DIFFICULTY(), OTHER, 0, 1);
+		register(GASLIMIT(), OTHER, 0, 1);
+		register(CHAINID(), OTHER, 0, 1);
+		register(SELFBALANCE(), OTHER, 0, 1);
+		register(BASEFEE(), OTHER, 0, 1);
+		// 50s: Stack, Memory, Storage and Flow
+		register(POP(), OTHER, 1, 0);
+		register(MLOAD(), MLOAD, 1, 1);
+		register(MSTORE(), MSTORE, 2, 0);
+		register(MSTORE8(), MSTORE, 2, 0);
+		register(SLOAD(), SLOAD, 1, 1);
+		register(SSTORE(), SSTORE, 2, 0);
+		register(JUMP(), JUMP, 1, 0);
+		register(JUMPI(), JUMPI, 2, 0);
+		register(PC(), OTHER, 0, 1);
+		register(MSIZE(), OTHER, 0, 1);
+		register(GAS(), OTHER, 0, 1);
+		register(JUMPDEST(), JUMPDEST, 0, 0);
+		register(TLOAD(), OTHER, 1, 1);
+		register(TSTORE(), OTHER, 2, 0);
+		register(MCOPY(), MSTORE, 3, 0);
+		register(PUSH0(), PUSH, 0, 1);
+		// 60s & 70s: Push operations
+		for (int k = 1; k <= 32; ++k) {
+			register((byte) (PUSH1() + k - 1), PUSH, 0, 1);
+		}
+		// 80s: Duplicate operations
+		for (int k = 1; k <= 16; ++k) {
+			register((byte) (DUP1() + k - 1), DUP, 0, 1);
+		}
+		// 90s: Exchange operations
+		for (int k = 1; k <= 16; ++k) {
+			register((byte) (SWAP1() + k - 1), SWAP, 0, 0);
+		}
+		// a0s: Log operations
+		for (int k = 0; k <= 4; ++k) {
+			register((byte) (LOG0() + k), OTHER, k + 2, 0);
+		}
+		// f0s: System operations
+		register(CREATE(), OTHER, 3, 1);
+		register(CALL(), CALL, 7, 1);
+		register(CALLCODE(), CALL, 7, 1);
+		register(RETURN(), HALT, 2, 0);
+		register(DELEGATECALL(), CALL, 6, 1);
+		register(CREATE2(), OTHER, 4, 1);
+		register(STATICCALL(), CALL, 6, 1);
+		register(REVERT(), HALT, 2, 0);
+		register(INVALID(), HALT, 0, 0);
+		register(SELFDESTRUCT(), ACCOUNT, 1, 0);
+	}
+
+	/**
+	 * Predict the storage keys and account addresses touched by a given contract
+	 * when called with given calldata.
+	 *
+	 * @param code     The contract code.
+	 * @param address  The address of the contract.
+	 * @param caller   The caller of the contract.
+	 * @param callData The calldata for the call.
+	 * @return
+	 */
+	public static Prediction predict(byte[] code, BigInteger address, BigInteger caller, byte[] callData) {
+		Predictor p = new Predictor(code, address, caller, callData);
+		p.run();
+		return new Prediction(address, p.keys, p.accounts);
+	}
+
+	private final byte[] code;
+	private final BigInteger address;
+	private final BigInteger caller;
+	private final byte[] callData;
+	/**
+	 * Identifies which positions in the code are valid jump destinations.
+	 */
+	private final boolean[] jumpdests;
+	/**
+	 * The abstract state on entry to each block visited so far.
+	 */
+	private final HashMap<Integer, Frame> blocks = new HashMap<>();
+	private final ArrayDeque<Integer> worklist = new ArrayDeque<>();
+	private final HashSet<BigInteger> keys = new HashSet<>();
+	private final HashSet<BigInteger> accounts = new HashSet<>();
+
+	private Predictor(byte[] code, BigInteger address, BigInteger caller, byte[] callData) {
+		this.code = code;
+		this.address = address;
+		this.caller = caller;
+		this.callData = callData;
+		this.jumpdests = new boolean[code.length];
+		for (int pc = 0; pc < code.length; pc = next(pc)) {
+			jumpdests[pc] = KINDS[code[pc] & 0xff] == JUMPDEST;
+		}
+	}
+
+	private void run() {
+		join(0, new Frame());
+		for (int visits = 0; !worklist.isEmpty() && visits < MAX_VISITS; ++visits) {
+			int pc = worklist.pop();
+			execute(pc, blocks.get(pc).copy());
+		}
+	}
+
+	/**
+	 * Execute a single block from a given position, with a given abstract state
+	 * on entry.
+	 *
+	 * @param pc
+	 * @param frame
+	 */
+	private void execute(int pc, Frame frame) {
+		while (pc < code.length) {
+			final int opcode = code[pc] & 0xff;
+			final int npc = next(pc);
+			switch (KINDS[opcode]) {
+			case HALT:
+				return;
+			case FOLD: {
+				BigInteger[] operands = frame.pop(POPS[opcode]);
+				frame.push(operands == null ? null : FOLDS[opcode].apply(operands).mod(TWO_256));
+				break;
+			}
+			case PUSH: {
+				// NOTE: bytes beyond the end of the code are padded with zeros.
+				byte[] bytes = Arrays.copyOfRange(code, pc + 1, npc);
+				frame.push(new BigInteger(1, bytes));
+				break;
+			}
+			case DUP:
+				frame.push(frame.peek(opcode - (DUP1() & 0xff)));
+				break;
+			case SWAP:
+				frame.swap(opcode - (SWAP1() & 0xff) + 1);
+				break;
+			case ADDRESS:
+				frame.push(address);
+				break;
+			case CALLER:
+				frame.push(caller);
+				break;
+			case CALLDATALOAD: {
+				BigInteger offset = frame.pop();
+				frame.push(offset == null ? null : word(callData, offset));
+				break;
+			}
+			case CALLDATASIZE:
+				frame.push(BigInteger.valueOf(callData.length));
+				break;
+			case MLOAD: {
+				BigInteger offset = frame.pop();
+				frame.push(offset == null ? null : frame.memory.get(offset));
+				break;
+			}
+			case MSTORE: {
+				BigInteger[] operands = frame.pop(POPS[opcode]);
+				if (opcode == (MSTORE() & 0xff) && operands != null) {
+					frame.store(operands[0], operands[1]);
+				} else {
+					// Give up on memory
+					frame.memory.clear();
+				}
+				break;
+			}
+			case KECCAK256: {
+				BigInteger[] operands = frame.pop(2);
+				frame.push(operands == null ? null : frame.hash(operands[0], operands[1]));
+				break;
+			}
+			case SLOAD:
+			case SSTORE: {
+				BigInteger key = frame.peek(0);
+				if (key != null) {
+					keys.add(key);
+				}
+				frame.pop(POPS[opcode]);
+				frame.push(PUSHES[opcode]);
+				break;
+			}
+			case ACCOUNT:
+			case CALL: {
+				BigInteger target = frame.peek(KINDS[opcode] == CALL ? 1 : 0);
+				if (target != null) {
+					accounts.add(target.mod(TWO_160));
+				}
+				frame.pop(POPS[opcode]);
+				frame.push(PUSHES[opcode]);
+				break;
+			}
+			case JUMP: {
+				BigInteger target = frame.pop();
+				branch(target, frame);
+				return;
+			}
+			case JUMPI: {
+				BigInteger target = frame.pop();
+				frame.pop();
+				branch(target, frame);
+				break;
+			}
+			default:
+				frame.pop(POPS[opcode]);
+				frame.push(PUSHES[opcode]);
+			}
+			// Determine whether block continues after this instruction.
+			if (npc < code.length && jumpdests[npc]) {
+				join(npc, frame);
+				return;
+			}
+			pc = npc;
+		}
+	}
+
+	private void branch(BigInteger target, Frame frame) {
+		if (target != null && target.compareTo(BigInteger.valueOf(code.length)) < 0 && jumpdests[target.intValue()]) {
+			join(target.intValue(), frame);
+		}
+	}
+
+	/**
+	 * Join a given abstract state into the entry state for a given block, adding
+	 * the block to the worklist if its entry state has changed.
+	 *
+	 * @param pc
+	 * @param frame
+	 */
+	private void join(int pc, Frame frame) {
+		Frame before = blocks.get(pc);
+		Frame after = (before == null) ? frame.copy() : before.join(frame);
+		if (before == null || !after.equals(before)) {
+			blocks.put(pc, after);
+			worklist.push(pc);
+		}
+	}
+
+	/**
+	 * Determine the position of the instruction following that at a given
+	 * position.
+	 *
+	 * @param pc
+	 * @return
+	 */
+	private int next(int pc) {
+		int opcode = code[pc] & 0xff;
+		return (KINDS[opcode] == PUSH) ? pc + 1 + (opcode - (PUSH0() & 0xff)) : pc + 1;
+	}
+
+	/**
+	 * Read a word from a given offset in a byte array (padding with zeros as
+	 * necessary).
+	 *
+	 * @param bytes
+	 * @param offset
+	 * @return
+	 */
+	private static BigInteger word(byte[] bytes, BigInteger offset) {
+		byte[] word = new byte[32];
+		if (offset.compareTo(BigInteger.valueOf(bytes.length)) < 0) {
+			int start = offset.intValue();
+			System.arraycopy(bytes, start, word, 0, Math.min(32, bytes.length - start));
+		}
+		return new BigInteger(1, word);
+	}
+
+	private static BigInteger bool(boolean b) {
+		return b ? BigInteger.ONE : BigInteger.ZERO;
+	}
+
+	private static void register(byte opcode, int kind, int pops, int pushes) {
+		KINDS[opcode & 0xff] = kind;
+		POPS[opcode & 0xff] = pops;
+		PUSHES[opcode & 0xff] = pushes;
+	}
+
+	private static void fold(byte opcode, int pops, Function<BigInteger[], BigInteger> fn) {
+		register(opcode, FOLD, pops, 1);
+		FOLDS[opcode & 0xff] = fn;
+	}
+
+	/**
+	 * The abstract state of the machine at a given point, where
+	 * <code>null</code> represents an unknown value.
+	 */
+	private static final class Frame {
+		/**
+		 * Stack items seen pushed, where the last item is the topmost.
+		 */
+		private final ArrayList<BigInteger> stack;
+		/**
+		 * Words of memory which are known, keyed on their offset.
+		 */
+		private final HashMap<BigInteger, BigInteger> memory;
+
+		public Frame() {
+			this(new ArrayList<>(), new HashMap<>());
+		}
+
+		private Frame(ArrayList<BigInteger> stack, HashMap<BigInteger, BigInteger> memory) {
+			this.stack = stack;
+			this.memory = memory;
+		}
+
+		public BigInteger peek(int k) {
+			int i = stack.size() - 1 - k;
+			return (i >= 0) ? stack.get(i) : null;
+		}
+
+		public BigInteger pop() {
+			return stack.isEmpty() ? null : stack.remove(stack.size() - 1);
+		}
+
+		/**
+		 * Pop a given number of items, returning them only if they are all known.
+		 *
+		 * @param n
+		 * @return
+		 */
+		public BigInteger[] pop(int n) {
+			BigInteger[] items = new BigInteger[n];
+			boolean known = true;
+			for (int i = 0; i != n; ++i) {
+				items[i] = pop();
+				known &= items[i] != null;
+			}
+			return known ? items : null;
+		}
+
+		public void push(BigInteger item) {
+			if (stack.size() < 1024) {
+				stack.add(item);
+			}
+		}
+
+		public void push(int n) {
+			for (int i = 0; i != n; ++i) {
+				push(null);
+			}
+		}
+
+		public void swap(int k) {
+			int i = stack.size() - 1;
+			if (i - k >= 0) {
+				Collections.swap(stack, i, i - k);
+			} else if (i >= 0) {
+				// Swapped with something unknown
+				stack.set(i, null);
+			}
+		}
+
+		/**
+		 * Write a word to memory, invalidating any known words it overlaps.
+		 *
+		 * @param offset
+		 * @param word
+		 */
+		public void store(BigInteger offset, BigInteger word) {
+			BigInteger lower = offset.subtract(BigInteger.valueOf(32));
+			BigInteger upper = offset.add(BigInteger.valueOf(32));
+			memory.keySet().removeIf(o -> o.compareTo(lower) > 0 && o.compareTo(upper) < 0);
+			memory.put(offset, word);
+		}
+
+		/**
+		 * Hash a given region of memory, provided it is made up entirely of known
+		 * words.
+		 *
+		 * @param offset
+		 * @param length
+		 * @return
+		 */
+		public BigInteger hash(BigInteger offset, BigInteger length) {
+			if (length.signum() == 0 || length.bitLength() > 16 || length.intValue() % 32 != 0) {
+				return null;
+			}
+			int n = length.intValue() / 32;
+			byte[] bytes = new byte[length.intValue()];
+			for (int i = 0; i != n; ++i) {
+				BigInteger w = memory.get(offset.add(BigInteger.valueOf(32 * i)));
+				if (w == null) {
+					return null;
+				}
+				byte[] wb = w.toByteArray();
+				int len = Math.min(32, wb.length);
+				System.arraycopy(wb, wb.length - len, bytes, (32 * i) + 32 - len, len);
+			}
+			return new BigInteger(1, Hash.sha3(bytes));
+		}
+
+		/**
+		 * Join this state with another, such that the result holds only what is
+		 * known in both. Stacks are aligned from the top.
+		 *
+		 * @param other
+		 * @return
+		 */
+		public Frame join(Frame other) {
+			int n = Math.min(stack.size(), other.stack.size());
+			ArrayList<BigInteger> nstack = new ArrayList<>();
+			for (int i = n - 1; i >= 0; --i) {
+				BigInteger x = peek(i);
+				nstack.add(x != null && x.equals(other.peek(i)) ? x : null);
+			}
+			HashMap<BigInteger, BigInteger> nmemory = new HashMap<>();
+			for (Map.Entry<BigInteger, BigInteger> e : memory.entrySet()) {
+				if (e.getValue().equals(other.memory.get(e.getKey()))) {
+					nmemory.put(e.getKey(), e.getValue());
+				}
+			}
+			return new Frame(nstack, nmemory);
+		}
+
+		public Frame copy() {
+			return new Frame(new ArrayList<>(stack), new HashMap<>(memory));
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (o instanceof Frame) {
+				Frame f = (Frame) o;
+				return stack.equals(f.stack) && memory.equals(f.memory);
+			}
+			return false;
+		}
+
+		@Override
+		public int hashCode() {
+			return stack.hashCode() ^ memory.hashCode();
+		}
+	}
+
+	/**
+	 * The result of predicting the state touched by a contract. Accesses to state
+	 * during execution can be recorded against a prediction, thus allowing its
+	 * accuracy to be determined. Each distinct account (or storage key) counts
+	 * as a hit if it was predicted, and a miss otherwise.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public static final class Prediction {
+		private final BigInteger address;
+		private final Set<BigInteger> keys;
+		private final Set<BigInteger> accounts;
+		private final HashSet<BigInteger> touchedKeys = new HashSet<>();
+		private final HashSet<BigInteger> touchedAccounts = new HashSet<>();
+		private int hits;
+		private int misses;
+
+		public Prediction(BigInteger address, Set<BigInteger> keys, Set<BigInteger> accounts) {
+			this.address = address;
+			this.keys = Collections.unmodifiableSet(keys);
+			this.accounts = Collections.unmodifiableSet(accounts);
+		}
+
+		/**
+		 * Get the address of the contract for which this prediction was made.
+		 *
+		 * @return
+		 */
+		public BigInteger getAddress() {
+			return address;
+		}
+
+		/**
+		 * Get the storage keys of the contract itself which are likely to be read
+		 * or written.
+		 *
+		 * @return
+		 */
+		public Set<BigInteger> getStorageKeys() {
+			return keys;
+		}
+
+		/**
+		 * Get the addresses of accounts which are likely to be touched (e.g. by
+		 * <code>CALL</code> or <code>BALANCE</code>).
+		 *
+		 * @return
+		 */
+		public Set<BigInteger> getAccounts() {
+			return accounts;
+		}
+
+		/**
+		 * Record that a given storage key of the contract was accessed.
+		 *
+		 * @param key
+		 */
+		public synchronized void touchStorage(BigInteger key) {
+			if (touchedKeys.add(key)) {
+				record(keys.contains(key));
+			}
+		}
+
+		/**
+		 * Record that a given account was accessed.
+		 *
+		 * @param account
+		 */
+		public synchronized void touchAccount(BigInteger account) {
+			if (touchedAccounts.add(account)) {
+				record(accounts.contains(account));
+			}
+		}
+
+		/**
+		 * Get the number of distinct accesses which were predicted.
+		 *
+		 * @return
+		 */
+		public synchronized int getHits() {
+			return hits;
+		}
+
+		/**
+		 * Get the number of distinct accesses which were not predicted.
+		 *
+		 * @return
+		 */
+		public synchronized int getMisses() {
+			return misses;
+		}
+
+		private void record(boolean hit) {
+			if (hit) {
+				hits++;
+			} else {
+				misses++;
+			}
+		}
+
+		@Override
+		public synchronized String toString() {
+			return "Prediction(" + (keys.size() + accounts.size()) + " predicted, " + hits + " hits, " + misses
+					+ " misses)";
+		}
+	}
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2022 ConsenSys Software Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software dis-
+ * tributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package dafnyevm.util;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.web3j.rlp.RlpEncoder;
+import org.web3j.rlp.RlpList;
+import org.web3j.rlp.RlpString;
+import org.web3j.rlp.RlpType;
+
+import dafnyevm.util.Word.Uint160;
+import dafnyevm.util.Word.Uint256;
+
+/**
+ * The receipt of a transaction executed as part of a block, as defined in
+ * Section 4.4.1 of the Yellow Paper. This records whether the transaction
+ * succeeded, the gas used by the block so far, and the log entries (and their
+ * bloom) it produced. See <code>Receipts</code> for how these are constructed.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class Receipt {
+	/**
+	 * Transaction type (e.g. <code>0</code> for legacy transactions, or
+	 * <code>2</code> for EIP1559 transactions).
+	 */
+	public final int type;
+	/**
+	 * Indicates whether the transaction succeeded or not.
+	 */
+	public final boolean status;
+	/**
+	 * Gas used by the block up to, and including, this transaction.
+	 */
+	public final BigInteger cumulativeGasUsed;
+	/**
+	 * Log entries produced by this transaction.
+	 */
+	public final List<Log> logs;
+	/**
+	 * Bloom of the log entries produced by this transaction.
+	 */
+	private final Bloom bloom;
+
+	public Receipt(int type, boolean status, BigInteger cumulativeGasUsed, List<Log> logs, Bloom bloom) {
+		this.type = type;
+		this.status = status;
+		this.cumulativeGasUsed = cumulativeGasUsed;
+		this.logs = Collections.unmodifiableList(new ArrayList<>(logs));
+		this.bloom = bloom;
+	}
+
+	/**
+	 * Get the bloom of the log entries produced by this transaction.
+	 *
+	 * @return
+	 */
+	public byte[] getBloom() {
+		return bloom.getBytes();
+	}
+
+	/**
+	 * Get the encoding of this receipt, as stored in the receipts trie. For
+	 * typed transactions (EIP2718) this is the type followed by the RLP encoding,
+	 * otherwise it is just the RLP encoding.
+	 *
+	 * @return
+	 */
+	public byte[] encode() {
+		ArrayList<RlpType> entries = new ArrayList<>();
+		for (Log log : logs) {
+			entries.add(log.toRlp());
+		}
+		byte[] bytes = RlpEncoder.encode(new RlpList(RlpString.create(status ? BigInteger.ONE : BigInteger.ZERO),
+				RlpString.create(cumulativeGasUsed), RlpString.create(bloom.getBytes()), new RlpList(entries)));
+		if (type == 0) {
+			return bytes;
+		}
+		byte[] typed = new byte[bytes.length + 1];
+		typed[0] = (byte) type;
+		System.arraycopy(bytes, 0, typed, 1, bytes.length);
+		return typed;
+	}
+
+	/**
+	 * Add the bloom of this receipt into a given (block) bloom.
+	 *
+	 * @param block
+	 */
+	public void addTo(Bloom block) {
+		block.or(bloom);
+	}
+
+	/**
+	 * A log entry produced by a transaction.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public static class Log {
+		/**
+		 * Address of the contract which produced this entry.
+		 */
+		public final BigInteger address;
+		/**
+		 * Between zero and four topics.
+		 */
+		public final BigInteger[] topics;
+		/**
+		 * Data associated with this entry.
+		 */
+		public final byte[] data;
+
+		public Log(BigInteger address, BigInteger[] topics, byte[] data) {
+			if (topics.length > 4) {
+				throw new IllegalArgumentException("too many topics");
+			}
+			this.address = address;
+			this.topics = topics;
+			this.data = data;
+		}
+
+		private RlpList toRlp() {
+			ArrayList<RlpType> ts = new ArrayList<>();
+			for (BigInteger topic : topics) {
+				ts.add(RlpString.create(new Uint256(topic).getBytes()));
+			}
+			return new RlpList(RlpString.create(new Uint160(address).getBytes()), new RlpList(ts),
+					RlpString.create(data));
+		}
+	}
+}
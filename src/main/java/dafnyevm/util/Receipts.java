@@ -0,0 +1,139 @@
+/*
+ * Copyright 2022 ConsenSys Software Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software dis-
+ * tributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package dafnyevm.util;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.web3j.rlp.RlpEncoder;
+import org.web3j.rlp.RlpString;
+
+import dafnyevm.DafnyEvm;
+import evmtools.core.Eip1559Transaction;
+import evmtools.core.Transaction;
+
+/**
+ * Accumulates the receipts of the transactions in a block, in the order they
+ * were executed. This tracks the cumulative gas used, the bloom of the block
+ * (i.e. the union of the blooms of its receipts) and the receipts trie, from
+ * which the receipts root is obtained.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class Receipts {
+	private final ArrayList<Receipt> receipts = new ArrayList<>();
+	/**
+	 * Trie mapping the (RLP encoded) index of each receipt to its encoding.
+	 */
+	private final Trie trie = new Trie();
+	/**
+	 * Bloom of all log entries in the block.
+	 */
+	private final Bloom bloom = new Bloom();
+	/**
+	 * Gas used by all transactions in the block so far.
+	 */
+	private BigInteger gasUsed = BigInteger.ZERO;
+
+	/**
+	 * Add the receipt for a transaction which has been executed.
+	 *
+	 * @param tx      The transaction executed.
+	 * @param st      The final state of its execution.
+	 * @param gasUsed The gas used by the transaction (see
+	 *                <code>DafnyEvm.gasUsed()</code>).
+	 * @return
+	 */
+	public Receipt add(Transaction tx, DafnyEvm.State<?> st, BigInteger gasUsed) {
+		if (st instanceof DafnyEvm.State.Invalid) {
+			throw new IllegalArgumentException("invalid transaction has no receipt");
+		}
+		return add(typeOf(tx), st instanceof DafnyEvm.State.Return, gasUsed, st.getLogs(), st.getBloom());
+	}
+
+	/**
+	 * Add the receipt for a transaction of a given type.
+	 *
+	 * @param type    The transaction type.
+	 * @param status  Indicates whether the transaction succeeded.
+	 * @param gasUsed The gas used by the transaction.
+	 * @param logs    The log entries produced by the transaction.
+	 * @param bloom   The bloom of those log entries.
+	 * @return
+	 */
+	public Receipt add(int type, boolean status, BigInteger gasUsed, List<Receipt.Log> logs, Bloom bloom) {
+		this.gasUsed = this.gasUsed.add(gasUsed);
+		Receipt r = new Receipt(type, status, this.gasUsed, logs, bloom);
+		byte[] key = RlpEncoder.encode(RlpString.create(BigInteger.valueOf(receipts.size())));
+		trie.put(key, r.encode());
+		r.addTo(this.bloom);
+		receipts.add(r);
+		return r;
+	}
+
+	/**
+	 * Get the receipts added so far.
+	 *
+	 * @return
+	 */
+	public List<Receipt> getReceipts() {
+		return Collections.unmodifiableList(receipts);
+	}
+
+	/**
+	 * Get the gas used by all transactions added so far.
+	 *
+	 * @return
+	 */
+	public BigInteger getGasUsed() {
+		return gasUsed;
+	}
+
+	/**
+	 * Get the bloom of all log entries produced by transactions added so far.
+	 *
+	 * @return
+	 */
+	public byte[] getBloom() {
+		return bloom.getBytes();
+	}
+
+	/**
+	 * Get the root of the receipts trie.
+	 *
+	 * @return
+	 */
+	public BigInteger root() {
+		return new BigInteger(1, trie.hash());
+	}
+
+	/**
+	 * Determine the (EIP2718) type of a given transaction.
+	 *
+	 * @param tx
+	 * @return
+	 */
+	private static int typeOf(Transaction tx) {
+		if (tx instanceof Eip1559Transaction) {
+			return 2;
+		} else if (tx.accessList() != null) {
+			return 1;
+		} else {
+			return 0;
+		}
+	}
+}
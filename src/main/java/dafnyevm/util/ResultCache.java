@@ -0,0 +1,206 @@
+/*
+ * Copyright 2022 ConsenSys Software Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software dis-
+ * tributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package dafnyevm.util;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigInteger;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * <p>
+ * Records which test instances have passed, such that they can be skipped on
+ * subsequent runs provided nothing relevant has changed. Each result is keyed
+ * on the content hash of the test file, the instance name, the fork, the "mode"
+ * in which tests are run (e.g. whether traces are compared in full) and a hash
+ * of the "engine" (i.e. the compiled Dafny EVM, the classes which wrap it and
+ * the tools used to check it). Thus, any change to the engine invalidates all
+ * results, whilst a change to a test file invalidates only the results for that
+ * file. Results recorded in one mode are not used in another.
+ * </p>
+ * <p>
+ * Results are stored in a file named after the engine hash within a given
+ * directory, and results for any other engine hash are discarded (though any
+ * other files in the directory are left alone). Only passing results are
+ * recorded, such that failing instances are always run again.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class ResultCache {
+	/**
+	 * Matches the name of a results file (i.e. an engine hash).
+	 */
+	private static final Pattern RESULTS_FILE = Pattern.compile("[0-9a-f]{64}\\.txt");
+	/**
+	 * File to which new results are appended.
+	 */
+	private final Path file;
+	/**
+	 * Mode in which tests are run.
+	 */
+	private final String mode;
+	/**
+	 * Set of keys for instances known to have passed.
+	 */
+	private final Set<String> passed;
+	/**
+	 * Content hashes of test files encountered so far.
+	 */
+	private final ConcurrentHashMap<Path, String> hashes = new ConcurrentHashMap<>();
+
+	private ResultCache(Path file, String mode, Set<String> passed) {
+		this.file = file;
+		this.mode = mode;
+		this.passed = passed;
+	}
+
+	/**
+	 * Open a result cache within a given directory for an engine comprised of a
+	 * given set of files (or directories), running in a given mode. Since the
+	 * mode is part of each key (rather than the engine hash), runs in different
+	 * modes can share the same directory without discarding each other's results.
+	 *
+	 * @param dir    Directory in which results are stored.
+	 * @param force  Ignore any existing results (i.e. forcing everything to be
+	 *               run).
+	 * @param mode   Identifies the mode in which tests are run (e.g. the engine
+	 *               selected, or the shard being run).
+	 * @param engine Files (or directories) which make up the engine.
+	 * @return
+	 * @throws IOException
+	 */
+	public static ResultCache open(Path dir, boolean force, String mode, List<Path> engine) throws IOException {
+		if (mode.contains(" ") || mode.contains("\n")) {
+			throw new IllegalArgumentException("invalid mode: " + mode);
+		}
+		String hash = hash(engine);
+		Path file = dir.resolve(hash + ".txt");
+		Files.createDirectories(dir);
+		// Discard results for any other engine (leaving anything else alone)
+		try (Stream<Path> files = Files.list(dir)) {
+			for (Path f : files.collect(Collectors.toList())) {
+				if (!f.equals(file) && RESULTS_FILE.matcher(f.getFileName().toString()).matches()
+						&& Files.isRegularFile(f)) {
+					Files.delete(f);
+				}
+			}
+		}
+		Set<String> passed = ConcurrentHashMap.newKeySet();
+		if (force) {
+			Files.deleteIfExists(file);
+		} else if (Files.exists(file)) {
+			passed.addAll(Files.readAllLines(file));
+		}
+		return new ResultCache(file, mode, passed);
+	}
+
+	/**
+	 * Determine the location (i.e. jar file or directory) from which a given
+	 * class was loaded.
+	 *
+	 * @param c
+	 * @return
+	 */
+	public static Path locationOf(Class<?> c) {
+		try {
+			return Path.of(c.getProtectionDomain().getCodeSource().getLocation().toURI());
+		} catch (URISyntaxException e) {
+			throw new IllegalArgumentException(e);
+		}
+	}
+
+	/**
+	 * Check whether a given instance is known to have passed.
+	 *
+	 * @param test     File containing the instance.
+	 * @param instance Name of the instance.
+	 * @param fork     Fork on which the instance runs.
+	 * @return
+	 */
+	public boolean passed(Path test, String instance, String fork) {
+		return passed.contains(key(test, instance, fork));
+	}
+
+	/**
+	 * Record that a given instance has passed.
+	 *
+	 * @param test     File containing the instance.
+	 * @param instance Name of the instance.
+	 * @param fork     Fork on which the instance runs.
+	 */
+	public void pass(Path test, String instance, String fork) {
+		String key = key(test, instance, fork);
+		if (passed.add(key)) {
+			synchronized (this) {
+				try {
+					Files.writeString(file, key + "\n", StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+		}
+	}
+
+	private String key(Path test, String instance, String fork) {
+		String hash = hashes.computeIfAbsent(test, f -> hash(List.of(f)));
+		return hash + " " + mode + " " + instance + " " + fork;
+	}
+
+	/**
+	 * Compute a single hash over the contents of a given set of files. For
+	 * directories, all files contained within (recursively) are included, along
+	 * with their relative names. Missing files are simply ignored.
+	 *
+	 * @param files
+	 * @return
+	 */
+	private static String hash(List<Path> files) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			for (Path root : files) {
+				if (Files.isDirectory(root)) {
+					List<Path> contents;
+					try (Stream<Path> s = Files.walk(root)) {
+						contents = s.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+					}
+					for (Path f : contents) {
+						digest.update(root.relativize(f).toString().getBytes(StandardCharsets.UTF_8));
+						digest.update(Files.readAllBytes(f));
+					}
+				} else if (Files.exists(root)) {
+					digest.update(Files.readAllBytes(root));
+				}
+			}
+			return String.format("%064x", new BigInteger(1, digest.digest()));
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -27,6 +27,8 @@
 package dafnyevm.util;
 
 import java.math.BigInteger;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 import dafnyevm.DafnyEvm;
@@ -44,6 +46,26 @@ import evmtools.core.WorldState;
  *
  */
 public class StateTests {
+    /**
+     * Maximum number of converted prestates retained at any one time. Since
+     * test instances are generated one file at a time, only a small number need
+     * be retained to ensure all instances of a given test share the same
+     * prestate.
+     */
+    private static final int PRESTATE_CACHE_SIZE = 64;
+
+    /**
+     * Cache of converted prestates, in least-recently used order. Since the
+     * Dafny representation of a world state is immutable, the same prestate can
+     * be reused for every instance of a given test (i.e. across forks and
+     * data/gas/value indices).
+     */
+    private static final LinkedHashMap<Object, DafnyEvm.Prestate> prestates = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Object, DafnyEvm.Prestate> eldest) {
+            return size() > PRESTATE_CACHE_SIZE;
+        }
+    };
 
     /**
      * Run a specific state test instance.
@@ -91,10 +113,47 @@ public class StateTests {
      * @return
      */
     public static void configureWorldState(DafnyEvm evm, WorldState ws) {
-        // Initialise world statew
+        // Initialise world state (in bulk)
+        evm.worldState(toPrestate(ws));
+    }
+
+    /**
+     * Configure a DafnyEVM with the world state for a given test, where the
+     * converted world state is cached against a given key (e.g. the test file
+     * and name). Thus, all instances of the same test share a single prestate
+     * which is converted only once.
+     *
+     * @param evm
+     * @param key
+     * @param ws
+     */
+    public static void configureWorldState(DafnyEvm evm, Object key, WorldState ws) {
+        DafnyEvm.Prestate prestate;
+        synchronized (prestates) {
+            prestate = prestates.get(key);
+        }
+        if (prestate == null) {
+            // NOTE: conversion happens outside the lock, hence two threads may
+            // occasionally convert the same prestate. This is harmless.
+            prestate = toPrestate(ws);
+            synchronized (prestates) {
+                prestates.put(key, prestate);
+            }
+        }
+        evm.worldState(prestate);
+    }
+
+    /**
+     * Convert a world state into a form suitable for the Dafny EVM.
+     *
+     * @param ws
+     * @return
+     */
+    public static DafnyEvm.Prestate toPrestate(WorldState ws) {
+        HashMap<BigInteger, evmtools.core.Account> accounts = new HashMap<>();
         for (Map.Entry<BigInteger, evmtools.core.Account> e : ws.entrySet()) {
-            evmtools.core.Account acct = e.getValue();
-            evm.create(e.getKey(), acct.nonce, acct.balance, acct.storage, acct.code);
+            accounts.put(e.getKey(), e.getValue());
         }
+        return DafnyEvm.Prestate.of(accounts);
     }
 }
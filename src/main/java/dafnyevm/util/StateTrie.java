@@ -0,0 +1,206 @@
+/*
+ * Copyright 2022 ConsenSys Software Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software dis-
+ * tributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package dafnyevm.util;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import org.web3j.crypto.Hash;
+import org.web3j.rlp.RlpEncoder;
+import org.web3j.rlp.RlpList;
+import org.web3j.rlp.RlpString;
+
+import WorldState.Account;
+import dafny.DafnyMap;
+import dafnyevm.util.Word.Uint160;
+import dafnyevm.util.Word.Uint256;
+
+/**
+ * <p>
+ * Computes the state root of a world state, by maintaining the account trie
+ * and the storage trie of every account (see <code>Trie</code>). This is
+ * updated incrementally from a sequence of world states (e.g. those produced
+ * by successive transactions in a block). Since Dafny world states are
+ * immutable, any account which is the same object as in the previous world
+ * state is unchanged and can be skipped. Likewise, for any account whose
+ * storage is the same object as before. Otherwise, only those storage slots
+ * (and accounts) which actually differ are written to the tries and, hence,
+ * only their paths are rehashed.
+ * </p>
+ * <p>
+ * The storage tries of changed accounts are independent of each other and,
+ * hence, are updated and hashed in parallel using a given
+ * <code>ForkJoinPool</code>. The account trie is then updated with the
+ * resulting storage roots.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class StateTrie {
+	/**
+	 * Minimum number of changed accounts for which storage tries are hashed in
+	 * parallel.
+	 */
+	private static final int PARALLEL_THRESHOLD = 4;
+	/**
+	 * Pool used for hashing storage tries in parallel.
+	 */
+	private final ForkJoinPool pool;
+	/**
+	 * Trie mapping the hash of each account address to its (RLP encoded) state.
+	 */
+	private final Trie accounts = new Trie();
+	/**
+	 * Storage trie for every account in the last world state.
+	 */
+	private final HashMap<BigInteger, Storage> storage = new HashMap<>();
+	/**
+	 * The last world state applied to this trie.
+	 */
+	private DafnyMap<? extends BigInteger, ? extends Account> last = new DafnyMap<>();
+
+	public StateTrie() {
+		this(ForkJoinPool.commonPool());
+	}
+
+	public StateTrie(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * Update this trie to reflect a given world state, and return its state root.
+	 *
+	 * @param world
+	 * @return
+	 */
+	public synchronized BigInteger root(WorldState.T world) {
+		update(world.dtor_accounts());
+		return root();
+	}
+
+	/**
+	 * Get the state root of the last world state applied to this trie.
+	 *
+	 * @return
+	 */
+	public synchronized BigInteger root() {
+		return new BigInteger(1, accounts.hash());
+	}
+
+	/**
+	 * Update this trie to reflect a given set of accounts, by comparing them
+	 * against those last applied.
+	 *
+	 * @param world
+	 */
+	public synchronized void update(DafnyMap<? extends BigInteger, ? extends Account> world) {
+		final DafnyMap<? extends BigInteger, ? extends Account> previous = last;
+		final List<Update> updates = new ArrayList<>();
+		// Determine accounts which have been added or changed
+		world.forEach((address, account) -> {
+			if (previous.get(address) != account) {
+				Storage s = storage.computeIfAbsent(address, k -> new Storage());
+				updates.add(new Update(address, account, s));
+			}
+		});
+		// Determine accounts which have been removed
+		previous.forEach((address, account) -> {
+			if (world.get(address) == null) {
+				storage.remove(address);
+				accounts.remove(key(address));
+			}
+		});
+		// Update storage tries (in parallel if worthwhile)
+		if (updates.size() >= PARALLEL_THRESHOLD) {
+			pool.submit(() -> updates.parallelStream().forEach(Update::apply)).join();
+		} else {
+			updates.forEach(Update::apply);
+		}
+		// Update the account trie
+		for (Update u : updates) {
+			Account a = u.account;
+			accounts.put(key(u.address), RlpEncoder.encode(new RlpList(RlpString.create(a.dtor_nonce()),
+					RlpString.create(a.dtor_balance()), RlpString.create(u.root),
+					RlpString.create(new Uint256(a.dtor_hash()).getBytes()))));
+		}
+		last = world;
+	}
+
+	private static byte[] key(BigInteger address) {
+		return Hash.sha3(new Uint160(address).getBytes());
+	}
+
+	/**
+	 * The storage trie of a given account, along with the storage it reflects.
+	 */
+	private static final class Storage {
+		private final Trie trie = new Trie();
+		private DafnyMap<? extends BigInteger, ? extends BigInteger> last = new DafnyMap<>();
+
+		/**
+		 * Update this trie to reflect the given storage, and return its root.
+		 */
+		public byte[] update(DafnyMap<? extends BigInteger, ? extends BigInteger> contents) {
+			if (contents != last) {
+				final DafnyMap<? extends BigInteger, ? extends BigInteger> previous = last;
+				contents.forEach((k, v) -> {
+					if (!v.equals(previous.get(k))) {
+						put(k, v);
+					}
+				});
+				previous.forEach((k, v) -> {
+					if (contents.get(k) == null) {
+						put(k, BigInteger.ZERO);
+					}
+				});
+				last = contents;
+			}
+			return trie.hash();
+		}
+
+		private void put(BigInteger slot, BigInteger value) {
+			byte[] key = Hash.sha3(new Uint256(slot).getBytes());
+			// NOTE: zero values are not stored in the trie.
+			if (value.signum() == 0) {
+				trie.remove(key);
+			} else {
+				trie.put(key, RlpEncoder.encode(RlpString.create(value)));
+			}
+		}
+	}
+
+	/**
+	 * An account which has changed since the last world state.
+	 */
+	private static final class Update {
+		private final BigInteger address;
+		private final Account account;
+		private final Storage storage;
+		private byte[] root;
+
+		public Update(BigInteger address, Account account, Storage storage) {
+			this.address = address;
+			this.account = account;
+			this.storage = storage;
+		}
+
+		public void apply() {
+			root = storage.update(account.dtor_storage());
+		}
+	}
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2022 ConsenSys Software Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software dis-
+ * tributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package dafnyevm.util;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Supplier;
+
+import dafnyevm.DafnyEvm;
+
+/**
+ * Records performance measurements for individual test instances (wall time,
+ * number of steps executed and gas used), and produces a report which ranks
+ * them from slowest to fastest. This is safe to use from multiple threads.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class Timings {
+	private final ArrayList<Entry> entries = new ArrayList<>();
+
+	/**
+	 * Execute a transaction whilst measuring its wall time. The number of steps
+	 * executed is determined by a given counter, which should have been
+	 * installed in the EVM (see <code>DafnyEvm.counter()</code>). Since this is
+	 * not a tracer, it does not affect how bytecodes are executed.
+	 *
+	 * @param name      Name of the instance being measured.
+	 * @param gasLimit  Gas limit of the transaction being executed.
+	 * @param counter   Counts the steps executed by the transaction.
+	 * @param execution Executes the transaction.
+	 * @return
+	 */
+	public DafnyEvm.State<?> measure(String name, BigInteger gasLimit, DafnyEvm.Counter counter,
+			Supplier<DafnyEvm.State<?>> execution) {
+		long steps = counter.getSteps();
+		long start = System.nanoTime();
+		DafnyEvm.State<?> outcome = execution.get();
+		long time = System.nanoTime() - start;
+		long gas = gasLimit.subtract(outcome.getGas()).longValue();
+		record(new Entry(name, time, counter.getSteps() - steps, gas));
+		return outcome;
+	}
+
+	/**
+	 * Record a single measurement.
+	 *
+	 * @param entry
+	 */
+	public synchronized void record(Entry entry) {
+		entries.add(entry);
+	}
+
+	/**
+	 * Get all measurements recorded so far, ordered from slowest to fastest.
+	 *
+	 * @return
+	 */
+	public synchronized List<Entry> ranked() {
+		ArrayList<Entry> es = new ArrayList<>(entries);
+		es.sort((a, b) -> Long.compare(b.nanos, a.nanos));
+		return es;
+	}
+
+	/**
+	 * Write all measurements recorded so far as a CSV file, ordered from slowest
+	 * to fastest.
+	 *
+	 * @param file
+	 * @throws IOException
+	 */
+	public void write(Path file) throws IOException {
+		if (file.getParent() != null) {
+			Files.createDirectories(file.getParent());
+		}
+		try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file))) {
+			out.println("name,time_ms,steps,gas,gas_per_sec");
+			for (Entry e : ranked()) {
+				out.println(String.format(Locale.ROOT, "%s,%.3f,%d,%d,%d", e.name, e.nanos / 1e6, e.steps, e.gas, e.getGasPerSecond()));
+			}
+		}
+	}
+
+	/**
+	 * Read measurements from a CSV file (as written by <code>write()</code>),
+	 * such as when merging the reports from several test runs.
+	 *
+	 * @param file
+	 * @throws IOException
+	 */
+	public void read(Path file) throws IOException {
+		List<String> lines = Files.readAllLines(file);
+		for (int i = 1; i < lines.size(); ++i) {
+			String[] fields = lines.get(i).split(",");
+			long nanos = (long) (Double.parseDouble(fields[1]) * 1e6);
+			record(new Entry(fields[0], nanos, Long.parseLong(fields[2]), Long.parseLong(fields[3])));
+		}
+	}
+
+	/**
+	 * A single measurement.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public static class Entry {
+		public final String name;
+		public final long nanos;
+		public final long steps;
+		public final long gas;
+
+		public Entry(String name, long nanos, long steps, long gas) {
+			this.name = name;
+			this.nanos = nanos;
+			this.steps = steps;
+			this.gas = gas;
+		}
+
+		/**
+		 * Get the number of units of gas consumed per second of execution.
+		 *
+		 * @return
+		 */
+		public long getGasPerSecond() {
+			return nanos == 0 ? 0 : (long) (gas * 1e9 / nanos);
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s: %.3fms, %d steps, %d gas/s", name, nanos / 1e6, steps, getGasPerSecond());
+		}
+	}
+}
@@ -0,0 +1,433 @@
+/*
+ * Copyright 2022 ConsenSys Software Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software dis-
+ * tributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package dafnyevm.util;
+
+import java.util.Arrays;
+
+import org.web3j.crypto.Hash;
+
+/**
+ * <p>
+ * A (mutable) Modified Merkle-Patricia Trie, as defined in Appendix D of the
+ * Yellow Paper. Keys and values are arbitrary byte sequences, though keys are
+ * typically hashed first (i.e. for a "secure" trie). A value of zero length is
+ * not permitted, since this is indistinguishable from the key being absent.
+ * </p>
+ * <p>
+ * Each node caches its reference (i.e. either its RLP encoding, or the hash of
+ * its encoding). Updating the trie discards the cached reference for every
+ * node on the path to the key being updated (i.e. the "dirty" path), and
+ * nothing else. Hence, computing the root hash after a small number of updates
+ * rehashes only the nodes on those paths.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class Trie {
+	/**
+	 * The RLP encoding of the empty string.
+	 */
+	private static final byte[] EMPTY_STRING = { (byte) 0x80 };
+	/**
+	 * The root hash of the empty trie (i.e. <code>KEC(RLP(""))</code>).
+	 */
+	public static final byte[] EMPTY_ROOT = Hash.sha3(EMPTY_STRING);
+	/**
+	 * The root node, which is <code>null</code> for the empty trie.
+	 */
+	private Node root;
+	/**
+	 * Number of keys in this trie.
+	 */
+	private int size;
+
+	/**
+	 * Get the number of keys in this trie.
+	 *
+	 * @return
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Get the value associated with a given key, or <code>null</code> if there
+	 * is no such value.
+	 *
+	 * @param key
+	 * @return
+	 */
+	public byte[] get(byte[] key) {
+		byte[] path = toNibbles(key);
+		Node node = root;
+		int i = 0;
+		while (node != null) {
+			if (node instanceof Leaf) {
+				Leaf l = (Leaf) node;
+				return matches(l.path, path, i) == l.path.length && i + l.path.length == path.length ? l.value
+						: null;
+			} else if (node instanceof Extension) {
+				Extension e = (Extension) node;
+				if (matches(e.path, path, i) != e.path.length) {
+					return null;
+				}
+				i += e.path.length;
+				node = e.child;
+			} else {
+				Branch b = (Branch) node;
+				if (i == path.length) {
+					return b.value;
+				}
+				node = b.children[path[i++]];
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Associate a given key with a given value, replacing any existing value.
+	 *
+	 * @param key
+	 * @param value
+	 */
+	public void put(byte[] key, byte[] value) {
+		if (value.length == 0) {
+			throw new IllegalArgumentException("empty value");
+		} else if (get(key) == null) {
+			size = size + 1;
+		}
+		root = insert(root, toNibbles(key), 0, value);
+	}
+
+	/**
+	 * Remove a given key (and its value) from this trie, if present.
+	 *
+	 * @param key
+	 */
+	public void remove(byte[] key) {
+		// NOTE: checking the key is present first ensures only paths which
+		// actually change are marked dirty.
+		if (get(key) != null) {
+			size = size - 1;
+			root = delete(root, toNibbles(key), 0);
+		}
+	}
+
+	/**
+	 * Compute the root hash of this trie. This reuses the cached reference of
+	 * any node not updated since the last time this was called.
+	 *
+	 * @return
+	 */
+	public byte[] hash() {
+		if (root == null) {
+			return EMPTY_ROOT.clone();
+		}
+		byte[] ref = root.reference();
+		// NOTE: the root is always hashed, even when its encoding is short.
+		return ref.length < 32 ? Hash.sha3(ref) : Arrays.copyOfRange(ref, 1, ref.length);
+	}
+
+	// ========================================================================
+	// Updates
+	// ========================================================================
+
+	private static Node insert(Node node, byte[] key, int i, byte[] value) {
+		if (node == null) {
+			return new Leaf(Arrays.copyOfRange(key, i, key.length), value);
+		} else if (node instanceof Leaf) {
+			Leaf l = (Leaf) node;
+			int c = matches(l.path, key, i);
+			if (c == l.path.length && i + c == key.length) {
+				l.value = value;
+				l.ref = null;
+				return l;
+			}
+			Branch b = new Branch();
+			b.put(l.path, c, l.value);
+			b.put(key, i + c, value);
+			return c == 0 ? b : new Extension(Arrays.copyOfRange(key, i, i + c), b);
+		} else if (node instanceof Extension) {
+			Extension e = (Extension) node;
+			int c = matches(e.path, key, i);
+			if (c == e.path.length) {
+				e.child = insert(e.child, key, i + c, value);
+				e.ref = null;
+				return e;
+			}
+			// Split the extension at the point of divergence
+			Branch b = new Branch();
+			byte[] rest = Arrays.copyOfRange(e.path, c + 1, e.path.length);
+			b.children[e.path[c]] = rest.length == 0 ? e.child : new Extension(rest, e.child);
+			b.put(key, i + c, value);
+			return c == 0 ? b : new Extension(Arrays.copyOf(e.path, c), b);
+		} else {
+			Branch b = (Branch) node;
+			if (i == key.length) {
+				b.value = value;
+			} else {
+				b.children[key[i]] = insert(b.children[key[i]], key, i + 1, value);
+			}
+			b.ref = null;
+			return b;
+		}
+	}
+
+	/**
+	 * Delete a given key from the trie rooted at a given node, where the key is
+	 * known to be present. This maintains the invariant that no branch has
+	 * fewer than two entries, and no extension is followed by anything other
+	 * than a branch.
+	 */
+	private static Node delete(Node node, byte[] key, int i) {
+		if (node instanceof Leaf) {
+			return null;
+		} else if (node instanceof Extension) {
+			Extension e = (Extension) node;
+			Node child = delete(e.child, key, i + e.path.length);
+			if (child instanceof Leaf) {
+				Leaf l = (Leaf) child;
+				return new Leaf(concat(e.path, l.path), l.value);
+			} else if (child instanceof Extension) {
+				Extension x = (Extension) child;
+				return new Extension(concat(e.path, x.path), x.child);
+			}
+			e.child = child;
+			e.ref = null;
+			return e;
+		} else {
+			Branch b = (Branch) node;
+			if (i == key.length) {
+				b.value = null;
+			} else {
+				b.children[key[i]] = delete(b.children[key[i]], key, i + 1);
+			}
+			b.ref = null;
+			return b.normalise();
+		}
+	}
+
+	// ========================================================================
+	// Nodes
+	// ========================================================================
+
+	private static abstract class Node {
+		/**
+		 * Cached reference to this node, or <code>null</code> if this node is
+		 * dirty.
+		 */
+		protected byte[] ref;
+
+		/**
+		 * Get the reference to this node which is embedded in its parent. This is
+		 * the RLP encoding of the node if that is shorter than 32 bytes, or the
+		 * (RLP encoded) hash of that otherwise.
+		 *
+		 * @return
+		 */
+		public byte[] reference() {
+			if (ref == null) {
+				byte[] bytes = encode();
+				ref = bytes.length < 32 ? bytes : encodeString(Hash.sha3(bytes));
+			}
+			return ref;
+		}
+
+		/**
+		 * Get the RLP encoding of this node.
+		 *
+		 * @return
+		 */
+		protected abstract byte[] encode();
+	}
+
+	private static final class Leaf extends Node {
+		private final byte[] path;
+		private byte[] value;
+
+		public Leaf(byte[] path, byte[] value) {
+			this.path = path;
+			this.value = value;
+		}
+
+		@Override
+		protected byte[] encode() {
+			return encodeList(encodeString(hexPrefix(path, true)), encodeString(value));
+		}
+	}
+
+	private static final class Extension extends Node {
+		private final byte[] path;
+		private Node child;
+
+		public Extension(byte[] path, Node child) {
+			this.path = path;
+			this.child = child;
+		}
+
+		@Override
+		protected byte[] encode() {
+			return encodeList(encodeString(hexPrefix(path, false)), child.reference());
+		}
+	}
+
+	private static final class Branch extends Node {
+		private final Node[] children = new Node[16];
+		private byte[] value;
+
+		/**
+		 * Put a value into this (freshly created) branch, at a given position in a
+		 * given path.
+		 */
+		public void put(byte[] path, int i, byte[] value) {
+			if (i == path.length) {
+				this.value = value;
+			} else {
+				children[path[i]] = new Leaf(Arrays.copyOfRange(path, i + 1, path.length), value);
+			}
+		}
+
+		/**
+		 * Collapse this branch (following a deletion) if it has fewer than two
+		 * entries.
+		 */
+		public Node normalise() {
+			int count = 0, index = -1;
+			for (int i = 0; i != 16; ++i) {
+				if (children[i] != null) {
+					count++;
+					index = i;
+				}
+			}
+			if (count == 0) {
+				return value == null ? null : new Leaf(new byte[0], value);
+			} else if (count > 1 || value != null) {
+				return this;
+			}
+			// Exactly one child remains, so merge it into its parent.
+			Node child = children[index];
+			byte[] prefix = { (byte) index };
+			if (child instanceof Leaf) {
+				Leaf l = (Leaf) child;
+				return new Leaf(concat(prefix, l.path), l.value);
+			} else if (child instanceof Extension) {
+				Extension e = (Extension) child;
+				return new Extension(concat(prefix, e.path), e.child);
+			} else {
+				return new Extension(prefix, child);
+			}
+		}
+
+		@Override
+		protected byte[] encode() {
+			byte[][] items = new byte[17][];
+			for (int i = 0; i != 16; ++i) {
+				Node child = children[i];
+				items[i] = child == null ? EMPTY_STRING : child.reference();
+			}
+			items[16] = value == null ? EMPTY_STRING : encodeString(value);
+			return encodeList(items);
+		}
+	}
+
+	// ========================================================================
+	// Helpers
+	// ========================================================================
+
+	/**
+	 * Determine the length of the common prefix of a given path, and a key
+	 * starting from a given position.
+	 */
+	private static int matches(byte[] path, byte[] key, int i) {
+		int n = Math.min(path.length, key.length - i);
+		for (int j = 0; j != n; ++j) {
+			if (path[j] != key[i + j]) {
+				return j;
+			}
+		}
+		return n;
+	}
+
+	private static byte[] toNibbles(byte[] key) {
+		byte[] nibbles = new byte[key.length * 2];
+		for (int i = 0; i != key.length; ++i) {
+			nibbles[2 * i] = (byte) ((key[i] >> 4) & 0xF);
+			nibbles[2 * i + 1] = (byte) (key[i] & 0xF);
+		}
+		return nibbles;
+	}
+
+	/**
+	 * Hex-prefix encode a sequence of nibbles (see Appendix C of the Yellow
+	 * Paper).
+	 */
+	private static byte[] hexPrefix(byte[] nibbles, boolean leaf) {
+		int flag = leaf ? 2 : 0;
+		boolean odd = (nibbles.length & 1) == 1;
+		byte[] bytes = new byte[nibbles.length / 2 + 1];
+		int j = 0;
+		if (odd) {
+			bytes[0] = (byte) (((flag + 1) << 4) | nibbles[0]);
+			j = 1;
+		} else {
+			bytes[0] = (byte) (flag << 4);
+		}
+		for (int i = 1; i != bytes.length; ++i, j += 2) {
+			bytes[i] = (byte) ((nibbles[j] << 4) | nibbles[j + 1]);
+		}
+		return bytes;
+	}
+
+	private static byte[] encodeString(byte[] bytes) {
+		if (bytes.length == 1 && (bytes[0] & 0xFF) < 0x80) {
+			return bytes;
+		}
+		return concat(encodeLength(bytes.length, 0x80), bytes);
+	}
+
+	private static byte[] encodeList(byte[]... items) {
+		int n = 0;
+		for (byte[] item : items) {
+			n += item.length;
+		}
+		byte[] header = encodeLength(n, 0xc0);
+		byte[] result = Arrays.copyOf(header, header.length + n);
+		int index = header.length;
+		for (byte[] item : items) {
+			System.arraycopy(item, 0, result, index, item.length);
+			index += item.length;
+		}
+		return result;
+	}
+
+	private static byte[] encodeLength(int length, int offset) {
+		if (length < 56) {
+			return new byte[] { (byte) (offset + length) };
+		}
+		int n = 4 - Integer.numberOfLeadingZeros(length) / 8;
+		byte[] bytes = new byte[n + 1];
+		bytes[0] = (byte) (offset + 55 + n);
+		for (int i = n; i > 0; --i, length >>>= 8) {
+			bytes[i] = (byte) length;
+		}
+		return bytes;
+	}
+
+	private static byte[] concat(byte[] lhs, byte[] rhs) {
+		byte[] result = Arrays.copyOf(lhs, lhs.length + rhs.length);
+		System.arraycopy(rhs, 0, result, lhs.length, rhs.length);
+		return result;
+	}
+}
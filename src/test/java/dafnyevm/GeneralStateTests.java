@@ -19,6 +19,7 @@ import static org.junit.jupiter.api.Assertions.assertEquals;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.math.BigInteger;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -30,14 +31,19 @@ import java.util.Map;
 import java.util.Objects;
 import java.util.stream.Stream;
 
+import org.apache.commons.lang3.tuple.Pair;
 import org.apache.commons.lang3.tuple.Triple;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.MethodSource;
 
 import dafnyevm.DafnyEvm.State;
+import dafnyevm.util.Fingerprint;
+import dafnyevm.util.ResultCache;
 import dafnyevm.util.StateTests;
+import dafnyevm.util.Timings;
 import evmtools.core.LegacyTransaction;
 import evmtools.core.Trace;
 import evmtools.core.TraceTest;
@@ -85,6 +91,56 @@ public class GeneralStateTests {
      */
     private final static int STACK_LIMIT = 10;
 
+    /**
+     * Determines whether traces are compared by fingerprint (see
+     * <code>Fingerprint</code>) rather than element by element. In this mode,
+     * full traces are only constructed for instances whose fingerprint differs
+     * from that expected. This is enabled by setting the
+     * <code>dafnyevm.fingerprint</code> system property.
+     */
+    private final static boolean FINGERPRINT = Boolean.getBoolean("dafnyevm.fingerprint");
+
+    /**
+     * File to which a timing report is written (see <code>Timings</code>), or
+     * <code>null</code> if timings are not being recorded. This is set using the
+     * <code>dafnyevm.timings</code> system property.
+     */
+    private final static String TIMINGS_FILE = System.getProperty("dafnyevm.timings");
+
+    /**
+     * Records the time taken by each instance (when enabled).
+     */
+    private final static Timings TIMINGS = new Timings();
+
+    /**
+     * Number of shards into which the test files are partitioned, and the shard
+     * to run (see <code>ShardedRunner</code>). By default, there is one shard
+     * containing all test files. These are set using the
+     * <code>dafnyevm.shards</code> and <code>dafnyevm.shard</code> system
+     * properties.
+     */
+    private final static int SHARDS = Integer.getInteger("dafnyevm.shards", 1);
+    private final static int SHARD = Integer.getInteger("dafnyevm.shard", 0);
+
+    /**
+     * Engine used to execute bytecodes (see <code>DafnyEvm.Engine</code>). By
+     * default, this is the functional engine. This is set using the
+     * <code>dafnyevm.engine</code> system property (e.g. to
+     * <code>IMPERATIVE</code>).
+     */
+    private final static DafnyEvm.Engine ENGINE = DafnyEvm.Engine
+            .valueOf(System.getProperty("dafnyevm.engine", "FUNCTIONAL"));
+
+    /**
+     * Records which instances have passed, such that they are not run again
+     * unless either their test file or the EVM itself has changed (see
+     * <code>ResultCache</code>). This is enabled by setting the
+     * <code>dafnyevm.results</code> system property to the directory in which
+     * results are stored, and a full run can be forced by setting
+     * <code>dafnyevm.force</code>.
+     */
+    private final static ResultCache RESULTS = openResultCache(System.getProperty("dafnyevm.results"));
+
     /**
      * The set of tests which are considered "impossible" by the execution specs
      * and, therefore, can be safely ignored.
@@ -104,6 +160,18 @@ public class GeneralStateTests {
     	//"stEIP1559/[a-zA-Z]*.json" // example include
     );
     		
+    /**
+     * Identifies test instances which are ignored because they take too long to
+     * run as part of the main test suite. These are instead run by
+     * <code>PerformanceTests</code>, which measures them against a time budget.
+     */
+    public final static List<String> PERFORMANCE_INSTANCES = Arrays.asList( //
+            "exp_.*_0_(1|2|9)_0",
+            "expPower256Of256_.*_0_0_0",
+            "randomStatetest(52|64|320|354|367|650)_.*_0_0_0",
+            "gasCostExp_.*_0_8_0",
+            "modexp_modsize0_returndatasize_.*_0_4_0");
+
     /**
      * Identifies test instances which (for various reasons) should be ignored. For
      * example, because the test does not currently pass. Each line in the list is a
@@ -136,12 +204,6 @@ public class GeneralStateTests {
             "multiOwnedConstructionNotEnoughGas_.*_0_0_0",
             "walletConstructionOOG_.*_0_0_0",
             "dayLimitConstructionOOG_.*_0_0_0",
-            // Performance
-            "exp_.*_0_(1|2|9)_0",
-            "expPower256Of256_.*_0_0_0",
-            "randomStatetest(52|64|320|354|367|650)_.*_0_0_0",
-            "gasCostExp_.*_0_8_0",
-            "modexp_modsize0_returndatasize_.*_0_4_0",
             // #622
             "CreateAddressWarmAfterFail_.*",
             // #623
@@ -158,9 +220,6 @@ public class GeneralStateTests {
             "randomStatetest353_.*_0_0_0",
             //"eip1559_.*_0_0_0",
             "badOpcodes_Berlin_0_23_0", // weird?
-            // EIP4844 (PointEval Precompile)
-            "precompsEIP2929Cancun_Cancun_.*",
-            "idPrecomps_Cancun_0_9_0",
             // EIP6780?
             "suicideSendEtherPostDeath_Cancun_0_0_0",
             "SelfDestruct_Cancun_.*",
@@ -177,40 +236,177 @@ public class GeneralStateTests {
         if (isIgnoredInstance(instance)) {
             // Force test to be ignored.
             assumeTrue(false);
+        } else if (RESULTS != null && RESULTS.passed(tuple.getLeft(), instance.toString(), fork)) {
+            // Instance passed previously, and nothing has changed since.
+            return;
         } else {
-            TraceTest.Tx tx = instance.getTransaction();
-            // Construct environment
-            DafnyEvm.BlockInfo env = StateTests.toBlockInfo(instance.getEnvironment());
-            // Construct EVM
-            StructuredTracer tracer = new StructuredTracer();
-            DafnyEvm evm = new DafnyEvm().tracer(tracer).blockInfo(env).fork(fork);
-            // Configure world state
-            StateTests.configureWorldState(evm, instance.getWorldState());
-            // Run the call or create
-            DafnyEvm.State<?> outcome = evm.execute(tx.getTransaction());
-            Trace actual = tracer.toTrace();
-            Trace expected = tx.getTrace();
-            //
-            if (!Objects.equals(expected,actual)) {
-                // NOTE: the following is really just to help provide additional debugging
-                // support when running tests from e.g. gradle on the command line.
-                System.err.println(tuple + " ==> " + outcome);
-                printTraceDiff(0, expected, actual);
+            check(tuple);
+            if (RESULTS != null) {
+                RESULTS.pass(tuple.getLeft(), instance.toString(), fork);
             }
-            // Finally check for equality.
-            assertEquals(expected, actual);
-            // Check outcome matches
-            if (tx.getOutcome() == Transaction.Outcome.UNKNOWN && outcome.getOutcome() != Transaction.Outcome.RETURN) {
-                // NOTE: we ignore the case here where the expected outcome is an unknown error,
-                // and we have an error being reported. This is just a workaround for Geth
-                // which, in some cases, does not provide accurate error reporting for reasons
-                // unknown.
-            } else {
-                assertEquals(tx.getOutcome(), outcome.getOutcome());
+        }
+    }
+
+    /**
+     * Execute a given test instance, and check its trace and outcome match those
+     * expected.
+     *
+     * @param tuple
+     */
+    private static void check(Triple<Path, String, TraceTest.Instance> tuple) {
+        final String fork = tuple.getMiddle();
+        final TraceTest.Instance instance = tuple.getRight();
+        //
+        TraceTest.Tx tx = instance.getTransaction();
+        Trace expected = tx.getTrace();
+        Pair<Path, String> key = Pair.of(tuple.getLeft(), testName(fork, instance));
+        //
+        if (FINGERPRINT && expected != null) {
+            FingerprintTracer fingerprinter = new FingerprintTracer();
+            DafnyEvm.State<?> outcome = run(fork, key, instance, fingerprinter);
+            if (fingerprinter.get() == Fingerprint.of(expected) && outcomeMatches(tx, outcome)) {
+                // Sanity check return data matches as well
+                assertArrayEquals(tx.getData(),outcome.getReturnData());
+                return;
             }
-            // Sanity check return data matches as well
-            assertArrayEquals(tx.getData(),outcome.getReturnData());
+            // Otherwise, fall through and construct the full trace.
+        }
+        StructuredTracer tracer = new StructuredTracer();
+        DafnyEvm.State<?> outcome = run(fork, key, instance, tracer);
+        Trace actual = tracer.toTrace();
+        //
+        if (!Objects.equals(expected,actual)) {
+            // NOTE: the following is really just to help provide additional debugging
+            // support when running tests from e.g. gradle on the command line.
+            System.err.println(tuple + " ==> " + outcome);
+            printTraceDiff(0, expected, actual);
+        }
+        // Finally check for equality.
+        assertEquals(expected, actual);
+        // Check outcome matches
+        if (!outcomeMatches(tx, outcome)) {
+            assertEquals(tx.getOutcome(), outcome.getOutcome());
+        }
+        // Sanity check return data matches as well
+        assertArrayEquals(tx.getData(),outcome.getReturnData());
+    }
+
+    /**
+     * Open the result cache in a given directory, or return <code>null</code> if
+     * no directory is given. The cache is keyed on the compiled Dafny EVM, the
+     * classes which wrap it (and run these tests) and the tools used to parse and
+     * check them. Results are also keyed on the mode in which tests are run
+     * (i.e. the engine, whether traces are compared by fingerprint and the shard
+     * being run), since a pass in one mode says nothing about another.
+     *
+     * @param dir
+     * @return
+     */
+    private static ResultCache openResultCache(String dir) {
+        if (dir == null) {
+            return null;
+        }
+        List<Path> engine = Arrays.asList(Path.of("build", "libs", "evm.jar"),
+                ResultCache.locationOf(DafnyEvm.class), ResultCache.locationOf(GeneralStateTests.class),
+                ResultCache.locationOf(TraceTest.class));
+        String mode = ENGINE + "/" + (FINGERPRINT ? "fingerprint" : "full") + "/" + SHARD + "of" + SHARDS;
+        try {
+            return ResultCache.open(Path.of(dir), Boolean.getBoolean("dafnyevm.force"), mode, engine);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Execute a given test instance using a given tracer.
+     *
+     * @param fork     Fork to execute on.
+     * @param key      Identifies the test for caching its prestate.
+     * @param instance Instance to execute.
+     * @param tracer   Tracer to use.
+     * @return
+     */
+    private static DafnyEvm.State<?> run(String fork, Object key, TraceTest.Instance instance, DafnyEvm.Tracer tracer) {
+        if (TIMINGS_FILE != null) {
+            return run(fork, key, instance, tracer, TIMINGS, new DafnyEvm.Counter());
         }
+        // Construct environment
+        DafnyEvm.BlockInfo env = StateTests.toBlockInfo(instance.getEnvironment());
+        // Construct EVM
+        DafnyEvm evm = new DafnyEvm().engine(ENGINE).tracer(tracer).blockInfo(env).fork(fork);
+        // Configure world state (which is shared by all instances of this test)
+        StateTests.configureWorldState(evm, key, instance.getWorldState());
+        // Run the call or create
+        return evm.execute(instance.getTransaction().getTransaction());
+    }
+
+    /**
+     * Execute a given test instance using a given tracer, whilst recording the
+     * time taken.
+     *
+     * @param fork     Fork to execute on.
+     * @param key      Identifies the test for caching its prestate.
+     * @param instance Instance to execute.
+     * @param tracer   Tracer to use.
+     * @param timings  Records the time taken.
+     * @param counter  Counts the bytecodes executed.
+     * @return
+     */
+    public static DafnyEvm.State<?> run(String fork, Object key, TraceTest.Instance instance, DafnyEvm.Tracer tracer,
+            Timings timings, DafnyEvm.Counter counter) {
+        Transaction tx = instance.getTransaction().getTransaction();
+        // Construct environment
+        DafnyEvm.BlockInfo env = StateTests.toBlockInfo(instance.getEnvironment());
+        // Construct EVM
+        DafnyEvm evm = new DafnyEvm().engine(ENGINE).tracer(tracer).counter(counter).blockInfo(env).fork(fork);
+        // Configure world state (which is shared by all instances of this test)
+        StateTests.configureWorldState(evm, key, instance.getWorldState());
+        // Run the call or create
+        return timings.measure(instance.toString(), tx.gasLimit(), counter, () -> evm.execute(tx));
+    }
+
+    /**
+     * Write the timing report (when enabled) once all tests have run.
+     *
+     * @throws IOException
+     */
+    @AfterAll
+    public static void writeTimings() throws IOException {
+        if (TIMINGS_FILE != null) {
+            TIMINGS.write(Path.of(TIMINGS_FILE));
+        }
+    }
+
+    /**
+     * Check whether the outcome of executing a transaction matches that expected.
+     *
+     * @param tx
+     * @param outcome
+     * @return
+     */
+    static boolean outcomeMatches(TraceTest.Tx tx, DafnyEvm.State<?> outcome) {
+        if (tx.getOutcome() == Transaction.Outcome.UNKNOWN && outcome.getOutcome() != Transaction.Outcome.RETURN) {
+            // NOTE: we ignore the case here where the expected outcome is an unknown error,
+            // and we have an error being reported. This is just a workaround for Geth
+            // which, in some cases, does not provide accurate error reporting for reasons
+            // unknown.
+            return true;
+        } else {
+            return tx.getOutcome() == outcome.getOutcome();
+        }
+    }
+
+    /**
+     * Determine the name of the test from which a given instance was generated.
+     * Instances are named after their test, fork and data/gas/value indices
+     * (e.g. <code>add_Berlin_0_1_0</code>).
+     *
+     * @param fork
+     * @param instance
+     * @return
+     */
+    static String testName(String fork, TraceTest.Instance instance) {
+        return instance.toString().replaceFirst("_" + fork + "_\\d+_\\d+_\\d+$", "");
     }
 
     /**
@@ -259,9 +455,21 @@ public class GeneralStateTests {
      * @return
      */
    private static boolean isIgnoredInstance(TraceTest.Instance instance) {
+        return matches(instance, IGNORED_INSTANCES) || matches(instance, PERFORMANCE_INSTANCES);
+    }
+
+    /**
+     * Determine whether the name of a particular test instance matches any of a
+     * given list of regular expressions.
+     *
+     * @param instance
+     * @param regexes
+     * @return
+     */
+    public static boolean matches(TraceTest.Instance instance, List<String> regexes) {
         String name = instance.toString();
-        for (int i = 0; i != IGNORED_INSTANCES.size(); ++i) {
-            String regex = IGNORED_INSTANCES.get(i);
+        for (int i = 0; i != regexes.size(); ++i) {
+            String regex = regexes.get(i);
             if(name.matches(regex)) {
                 return true;
             }
@@ -314,11 +522,26 @@ public class GeneralStateTests {
     // Data sources
     // ======================================================================
 
+    /**
+     * Determine the shard to which a given test file belongs, where the test
+     * files are partitioned into a given number of shards. This is determined by
+     * a hash of the file's path (relative to the tests directory) and, hence, is
+     * the same across all machines.
+     *
+     * @param file
+     * @param shards
+     * @return
+     */
+    public static int shardOf(Path file, int shards) {
+        String name = file.toString().replace(File.separatorChar, '/');
+        return Math.floorMod(name.hashCode(), shards);
+    }
+
     public static Stream<Triple<Path, String, TraceTest.Instance>> readTestFiles(Path dir) throws IOException {
         ArrayList<Path> testfiles = new ArrayList<>();
         //
         Files.walk(dir).forEach(f -> {
-            if (f.toString().endsWith(".json")) {
+            if (f.toString().endsWith(".json") && shardOf(dir.relativize(f), SHARDS) == SHARD) {
                 testfiles.add(f);
             }
         });
@@ -441,4 +664,65 @@ public class GeneralStateTests {
             }
         }
     }
+
+    /**
+     * A tracer which computes the fingerprint of an execution trace (see
+     * <code>Fingerprint</code>) without constructing the trace itself. This
+     * mirrors <code>StructuredTracer</code>, such that the fingerprint it
+     * computes matches that of the trace which would have been constructed.
+     */
+    public static class FingerprintTracer extends DafnyEvm.TraceAdaptor {
+        private final Fingerprint fingerprint = new Fingerprint();
+        /**
+         * Number of steps executed in each active call frame, including those in
+         * nested calls.
+         */
+        private final ArrayList<Integer> frames = new ArrayList<>();
+
+        public long get() {
+            return fingerprint.get();
+        }
+
+        @Override
+        public void enter() {
+            frames.add(0);
+        }
+
+        @Override
+        public void step(DafnyEvm.State.Executing state) {
+            int pc = state.getPC().intValueExact();
+            int op = state.getOpcode();
+            long gas = state.getGas().longValueExact();
+            byte[] memory = state.getMemory();
+            BigInteger[] stack = (BigInteger[]) state.getStack();
+            // Trim the stack (as for StructuredTracer)
+            BigInteger[] trimmed = evmtools.util.Arrays.trimFront(STACK_LIMIT, stack);
+            //
+            fingerprint.step(pc, op, gas, trimmed, memory);
+            int last = frames.size() - 1;
+            frames.set(last, frames.get(last) + 1);
+        }
+
+        @Override
+        public void end(State.Return state) {
+            done(Transaction.Outcome.RETURN,state.getReturnData());
+        }
+
+        @Override
+        public void exception(State.Exception state) {
+            done(state.getOutcome(),state.getReturnData());
+        }
+
+        private void done(Transaction.Outcome outcome, byte[] data) {
+            int steps = frames.remove(frames.size() - 1);
+            // As for StructuredTracer, nested traces without any steps are dropped.
+            if (frames.size() == 0 || steps > 0) {
+                fingerprint.end(outcome, data);
+            }
+            if (frames.size() > 0) {
+                int last = frames.size() - 1;
+                frames.set(last, frames.get(last) + steps);
+            }
+        }
+    }
 }
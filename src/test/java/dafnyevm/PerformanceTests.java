@@ -0,0 +1,102 @@
+/*
+ * Copyright 2022 ConsenSys Software Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software dis-
+ * tributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package dafnyevm;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.apache.commons.lang3.tuple.Triple;
+import org.json.JSONException;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.MethodSource;
+
+import dafnyevm.util.Timings;
+import evmtools.core.TraceTest;
+
+/**
+ * A test suite for those instances of the <code>GeneralStateTests</code> which
+ * are too slow to be included in the main test suite (see
+ * <code>GeneralStateTests.PERFORMANCE_INSTANCES</code>). Each instance is
+ * executed without a tracer (i.e. through the same paths as outside of
+ * testing), and must complete within a given time budget. The time taken by
+ * each instance is written to a report (ranked from slowest to fastest), such
+ * that regressions and improvements can be tracked over time.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class PerformanceTests {
+    /**
+     * Maximum time (in milliseconds) permitted for any one instance. This can be
+     * set using the <code>dafnyevm.budget</code> system property.
+     */
+    private final static long BUDGET = Long.getLong("dafnyevm.budget", 60_000);
+
+    /**
+     * File to which the timing report is written. This can be set using the
+     * <code>dafnyevm.timings</code> system property.
+     */
+    private final static Path REPORT = Path.of(System.getProperty("dafnyevm.timings", "build/reports/performance.csv"));
+
+    /**
+     * Records the time taken by each instance.
+     */
+    private final static Timings TIMINGS = new Timings();
+
+    @ParameterizedTest
+    @MethodSource("allTestFiles")
+    public void tests(Triple<Path, String, TraceTest.Instance> tuple) throws IOException, JSONException {
+        final String fork = tuple.getMiddle();
+        final TraceTest.Instance instance = tuple.getRight();
+        final TraceTest.Tx tx = instance.getTransaction();
+        Pair<Path, String> key = Pair.of(tuple.getLeft(), GeneralStateTests.testName(fork, instance));
+        // Run instance whilst recording the time taken.
+        Timings timings = new Timings();
+        DafnyEvm.Counter counter = new DafnyEvm.Counter();
+        DafnyEvm.State<?> outcome = GeneralStateTests.run(fork, key, instance, DafnyEvm.DEFAULT_TRACER, timings, counter);
+        Timings.Entry entry = timings.ranked().get(0);
+        TIMINGS.record(entry);
+        // Check every bytecode was executed without a tracer (i.e. as it would be
+        // outside of testing), otherwise we are not measuring the right thing.
+        assertTrue(counter.getSteps() > 0, instance + " executed no bytecodes");
+        assertEquals(counter.getSteps(), counter.getUntracedSteps(), instance + " was executed with a tracer");
+        // Check outcome matches
+        if (!GeneralStateTests.outcomeMatches(tx, outcome)) {
+            assertEquals(tx.getOutcome(), outcome.getOutcome());
+        }
+        assertArrayEquals(tx.getData(), outcome.getReturnData());
+        // Check within budget
+        long millis = entry.nanos / 1_000_000;
+        assertTrue(millis <= BUDGET, instance + " took " + millis + "ms (budget " + BUDGET + "ms)");
+    }
+
+    @AfterAll
+    public static void writeTimings() throws IOException {
+        TIMINGS.write(REPORT);
+    }
+
+    // Here we enumerate all performance instances.
+    private static Stream<Triple<Path, String, TraceTest.Instance>> allTestFiles() throws IOException {
+        return GeneralStateTests.readTestFiles(GeneralStateTests.TESTS_DIR)
+                .filter(t -> GeneralStateTests.matches(t.getRight(), GeneralStateTests.PERFORMANCE_INSTANCES)
+                        && !GeneralStateTests.matches(t.getRight(), GeneralStateTests.IGNORED_INSTANCES));
+    }
+}
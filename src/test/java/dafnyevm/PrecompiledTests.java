@@ -15,16 +15,229 @@ package dafnyevm;
 
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.math.BigInteger;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
 
 import org.junit.jupiter.api.Test;
+import org.web3j.crypto.ECDSASignature;
+import org.web3j.crypto.ECKeyPair;
+import org.web3j.crypto.Hash;
+import org.web3j.crypto.Sign;
+import org.web3j.utils.Numeric;
 
+import dafny.DafnySequence;
+import dafny.Tuple2;
+import dafnyevm.crypto.Blake2b;
+import dafnyevm.crypto.Bls12381;
+import dafnyevm.crypto.Bls12381.Fp;
+import dafnyevm.crypto.Bls12381.Point;
+import dafnyevm.crypto.Kzg;
+import dafnyevm.crypto.Secp256k1;
 import dafnyevm.util.Bytes;
+import dafnyevm.util.NativePrecompiles;
+import dafnyevm.util.Precompile;
+import dafnyevm.util.PrecompileRegistry;
 import dafnyevm.util.Precompiles;
 import evmtools.util.Hex;
 
 public class PrecompiledTests {
+    // ==============================================================
+    // ECDSA Recover
+    // ==============================================================
+
+    private static final byte[] ECDSA_HASH = Hex.toBytes("0x38d18acb67d25c8bb9942764b62f18e17054f66a817bd4295423adf9ed98873e");
+    private static final BigInteger ECDSA_R = new BigInteger("38d18acb67d25c8bb9942764b62f18e17054f66a817bd4295423adf9ed98873e", 16);
+    private static final BigInteger ECDSA_S = new BigInteger("789d1dd423d25f0772d2748d60f7e4b81bb14d086eba8e8e8efb6dcff8a4ae02", 16);
+    private static final byte[] ECDSA_ADDRESS = Hex.toBytes("0x000000000000000000000000ceaccac640adf55b2028469bd36ba501f28b699d");
+
+    @Test
+    public void test_ecdsa_01() {
+        assertArrayEquals(ECDSA_ADDRESS, Precompiles.ecdsaRecover(ECDSA_HASH, (byte) 27, ECDSA_R, ECDSA_S));
+    }
+
+    @Test
+    public void test_ecdsa_02() {
+        // Recovers a different key
+        byte[] output = Precompiles.ecdsaRecover(ECDSA_HASH, (byte) 28, ECDSA_R, ECDSA_S);
+        assertEquals(32, output.length);
+        assertFalse(Arrays.equals(ECDSA_ADDRESS, output));
+    }
+
+    @Test
+    public void test_ecdsa_03() {
+        // Invalid recovery identifier
+        assertArrayEquals(new byte[0], Precompiles.ecdsaRecover(ECDSA_HASH, (byte) 29, ECDSA_R, ECDSA_S));
+    }
+
+    @Test
+    public void test_ecdsa_04() {
+        // Cached results must match uncached results
+        try {
+            Precompiles.ecdsaRecoverCache(2);
+            for (int i = 0; i != 3; ++i) {
+                assertArrayEquals(ECDSA_ADDRESS, Precompiles.ecdsaRecover(ECDSA_HASH, (byte) 27, ECDSA_R, ECDSA_S));
+                assertArrayEquals(new byte[0], Precompiles.ecdsaRecover(ECDSA_HASH, (byte) 29, ECDSA_R, ECDSA_S));
+            }
+        } finally {
+            Precompiles.ecdsaRecoverCache(0);
+        }
+    }
+
+    @Test
+    public void test_ecdsa_05() {
+        // Differential test against web3j, using random keys and hashes.
+        Random rand = new Random(1);
+        for (int i = 0; i != 200; ++i) {
+            ECKeyPair pair = ECKeyPair.create(new BigInteger(256, rand).mod(Secp256k1.N.subtract(BigInteger.ONE)).add(BigInteger.ONE));
+            byte[] hash = new byte[32];
+            rand.nextBytes(hash);
+            Sign.SignatureData sig = Sign.signMessage(hash, pair, false);
+            BigInteger r = new BigInteger(1, sig.getR());
+            BigInteger s = new BigInteger(1, sig.getS());
+            byte[] expected = toAddress(pair.getPublicKey());
+            assertArrayEquals(expected, Precompiles.ecdsaRecover(hash, sig.getV()[0], r, s));
+            // The other recovery identifier must agree with web3j as well
+            int other = 1 - (sig.getV()[0] - 27);
+            assertArrayEquals(recover(hash, other, r, s), Precompiles.ecdsaRecover(hash, (byte) (27 + other), r, s));
+        }
+    }
+
+    @Test
+    public void test_ecdsa_06() {
+        // Differential test against web3j, using random (i.e. mostly invalid) signatures.
+        Random rand = new Random(2);
+        for (int i = 0; i != 200; ++i) {
+            byte[] hash = new byte[32];
+            rand.nextBytes(hash);
+            BigInteger r = new BigInteger(256, rand).mod(Secp256k1.N);
+            BigInteger s = new BigInteger(256, rand).mod(Secp256k1.N);
+            int recid = rand.nextInt(2);
+            if (r.signum() == 0 || s.signum() == 0) {
+                continue;
+            }
+            assertArrayEquals(recover(hash, recid, r, s), Precompiles.ecdsaRecover(hash, (byte) (27 + recid), r, s));
+        }
+    }
+
+    @Test
+    public void test_ecdsa_07() {
+        // r or s out of range
+        BigInteger[] invalid = { BigInteger.ZERO, Secp256k1.N, Secp256k1.N.add(BigInteger.ONE),
+                BigInteger.ONE.shiftLeft(256).subtract(BigInteger.ONE) };
+        for (BigInteger w : invalid) {
+            assertArrayEquals(new byte[0], Precompiles.ecdsaRecover(ECDSA_HASH, (byte) 27, w, ECDSA_S));
+            assertArrayEquals(new byte[0], Precompiles.ecdsaRecover(ECDSA_HASH, (byte) 27, ECDSA_R, w));
+        }
+    }
+
+    @Test
+    public void test_ecdsa_08() {
+        // No point on the curve has x == 5.
+        BigInteger r = BigInteger.valueOf(5);
+        assertArrayEquals(new byte[0], recover(ECDSA_HASH, 0, r, ECDSA_S));
+        assertArrayEquals(new byte[0], Precompiles.ecdsaRecover(ECDSA_HASH, (byte) 27, r, ECDSA_S));
+        assertArrayEquals(new byte[0], Precompiles.ecdsaRecover(ECDSA_HASH, (byte) 28, r, ECDSA_S));
+    }
+
+    @Test
+    public void test_ecdsa_09() {
+        // A zero hash is recovered like any other.
+        byte[] hash = new byte[32];
+        ECKeyPair pair = ECKeyPair.create(BigInteger.valueOf(0xdeadbeefL));
+        Sign.SignatureData sig = Sign.signMessage(hash, pair, false);
+        assertArrayEquals(toAddress(pair.getPublicKey()), Precompiles.ecdsaRecover(hash, sig.getV()[0],
+                new BigInteger(1, sig.getR()), new BigInteger(1, sig.getS())));
+    }
+
+    @Test
+    public void test_ecdsa_10() {
+        // High s values are accepted, recovering the same key using the other
+        // recovery identifier.
+        Random rand = new Random(3);
+        for (int i = 0; i != 20; ++i) {
+            ECKeyPair pair = ECKeyPair.create(new BigInteger(255, rand).add(BigInteger.ONE));
+            byte[] hash = new byte[32];
+            rand.nextBytes(hash);
+            Sign.SignatureData sig = Sign.signMessage(hash, pair, false);
+            BigInteger s = Secp256k1.N.subtract(new BigInteger(1, sig.getS()));
+            byte v = (byte) (55 - sig.getV()[0]);
+            assertArrayEquals(toAddress(pair.getPublicKey()),
+                    Precompiles.ecdsaRecover(hash, v, new BigInteger(1, sig.getR()), s));
+        }
+    }
+
+    @Test
+    public void test_ecdsa_11() {
+        // Regression test for a public key whose x coordinate has a leading zero byte,
+        // which must still be hashed as 64 bytes.
+        ECKeyPair pair = ECKeyPair.create(BigInteger.valueOf(153));
+        assertTrue(pair.getPublicKey().bitLength() <= 504);
+        byte[] hash = Hash.sha3(new byte[] { 1, 2, 3 });
+        Sign.SignatureData sig = Sign.signMessage(hash, pair, false);
+        assertArrayEquals(toAddress(pair.getPublicKey()), Precompiles.ecdsaRecover(hash, sig.getV()[0],
+                new BigInteger(1, sig.getR()), new BigInteger(1, sig.getS())));
+    }
+
+    /**
+     * Recover the (32 byte) output of the precompile using web3j, returning an
+     * empty array if recovery fails.
+     *
+     * @param h
+     * @param recid
+     * @param r
+     * @param s
+     * @return
+     */
+    private static byte[] recover(byte[] h, int recid, BigInteger r, BigInteger s) {
+        try {
+            BigInteger key = Sign.recoverFromSignature(recid, new ECDSASignature(r, s), h);
+            return key == null ? new byte[0] : toAddress(key);
+        } catch (IllegalArgumentException e) {
+            // Thrown by web3j when r is not the x coordinate of a point on the curve
+            return new byte[0];
+        }
+    }
+
+    /**
+     * Determine the (32 byte) output of the precompile for a given public key.
+     *
+     * @param key
+     * @return
+     */
+    private static byte[] toAddress(BigInteger key) {
+        byte[] hash = Hash.sha3(Numeric.toBytesPadded(key, 64));
+        byte[] output = new byte[32];
+        System.arraycopy(hash, 12, output, 12, 20);
+        return output;
+    }
+
+    // ==============================================================
+    // Windows
+    // ==============================================================
+
+    @Test
+    public void test_window_01() {
+        // Windowed hashes must match those of the equivalent slice.
+        byte[] input = new byte[300];
+        for (int i = 0; i != input.length; ++i) {
+            input[i] = (byte) (i * 31);
+        }
+        byte[] slice = Arrays.copyOfRange(input, 17, 250);
+        byte[] output = new byte[40];
+        assertEquals(32, Precompiles.sha256(input, 17, 233, output, 8));
+        assertArrayEquals(Precompiles.sha256(slice), Arrays.copyOfRange(output, 8, 40));
+        assertEquals(32, Precompiles.ripEmd160(input, 17, 233, output, 8));
+        assertArrayEquals(Precompiles.ripEmd160(slice), Arrays.copyOfRange(output, 8, 40));
+        assertEquals(Precompiles.sha3(slice), Precompiles.sha3(input, 17, 233));
+    }
+
     // ==============================================================
     // Blake2bf
     // ==============================================================
@@ -112,6 +325,238 @@ public class PrecompiledTests {
         assertArrayEquals(output, Precompiles.blake2f(input));
     }
 
+    @Test
+    public void test_blake_rounds() {
+        // Any implementation selected for many rounds must match the scalar one.
+        Random random = new Random(152);
+        long[] h = new long[8], m = new long[16], t = { random.nextLong(), random.nextLong() };
+        for (int i = 0; i != h.length; ++i) {
+            h[i] = random.nextLong();
+        }
+        for (int i = 0; i != m.length; ++i) {
+            m[i] = random.nextLong();
+        }
+        for (long r : new long[] { 63, 64, 65, 1000, 12345 }) {
+            assertArrayEquals(Blake2b.scalarF(r, h.clone(), m, t, true), Blake2b.F(r, h.clone(), m, t, true));
+        }
+    }
+
+    // ==============================================================
+    // Point Evaluation
+    // ==============================================================
+
+    private static final byte[] G1_INFINITY = Hex.toBytes("0xc00000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000");
+    private static final byte[] G1_GENERATOR = Hex.toBytes("0x97f1d3a73197d7942695638c4fa9ac0fc3688c4f9774b905a14e3a3f171bac586c55e83ff97a1aeffb3af00adb22c6bb");
+
+    @Test
+    public void test_point_evaluation_01() {
+        // Zero polynomial evaluates to zero everywhere
+        byte[] input = pointEvaluationInput(G1_INFINITY, BigInteger.valueOf(12345), BigInteger.ZERO, G1_INFINITY);
+        byte[] output = Hex.toBytes("0x000000000000000000000000000000000000000000000000000000000000100073eda753299d7d483339d80809a1d80553bda402fffe5bfeffffffff00000001");
+        assertArrayEquals(output, Precompiles.pointEvaluation(input));
+        // But not to one
+        input = pointEvaluationInput(G1_INFINITY, BigInteger.valueOf(12345), BigInteger.ONE, G1_INFINITY);
+        assertArrayEquals(new byte[0], Precompiles.pointEvaluation(input));
+    }
+
+    @Test
+    public void test_point_evaluation_02() {
+        // Constant polynomial (whose commitment is the generator) evaluates to one
+        // everywhere.
+        byte[] input = pointEvaluationInput(G1_GENERATOR, BigInteger.valueOf(12345), BigInteger.ONE, G1_INFINITY);
+        assertEquals(64, Precompiles.pointEvaluation(input).length);
+        input = pointEvaluationInput(G1_GENERATOR, BigInteger.valueOf(12345), BigInteger.TWO, G1_INFINITY);
+        assertArrayEquals(new byte[0], Precompiles.pointEvaluation(input));
+    }
+
+    @Test
+    public void test_point_evaluation_03() {
+        byte[] input = pointEvaluationInput(G1_INFINITY, BigInteger.ONE, BigInteger.ZERO, G1_INFINITY);
+        // Versioned hash doesn't match
+        input[0] = 0x02;
+        assertArrayEquals(new byte[0], Precompiles.pointEvaluation(input));
+        // Evaluation point not in field
+        input = pointEvaluationInput(G1_INFINITY, Bls12381.R, BigInteger.ZERO, G1_INFINITY);
+        assertArrayEquals(new byte[0], Precompiles.pointEvaluation(input));
+        // Commitment not on curve
+        byte[] commitment = G1_GENERATOR.clone();
+        commitment[47] ^= 1;
+        input = pointEvaluationInput(commitment, BigInteger.ONE, BigInteger.ONE, G1_INFINITY);
+        assertArrayEquals(new byte[0], Precompiles.pointEvaluation(input));
+        // Wrong length
+        assertArrayEquals(new byte[0], Precompiles.pointEvaluation(Arrays.copyOf(input, 191)));
+    }
+
+    @Test
+    public void test_point_evaluation_04() {
+        // Valid proof for a real blob (taken from the EIP-4844 test vectors).
+        byte[] input = Hex.toBytes("0x01e798154708fe7789429634053cbf9f99b619f9f084048927333fce637f549b"
+                + "564c0a11a0f704f4fc3e8acfe0f8245f0ad1347b378fbf96e206da11a5d36306"
+                + "24d25032e67a7e6a4910df5834b8fe70e6bcfeeac0352434196bdf4b2485d5a1"
+                + "8f59a8d2a1a625a17f3fea0fe5eb8c896db3764f3185481bc22f91b4aaffcca25f26936857bc3a7c2539ea8ec3a952b7"
+                + "873033e038326e87ed3e1276fd140253fa08e9fc25fb2d9a98527fc22a2c9612fbeafdad446cbc7bcdbdcd780af2c16a");
+        byte[] output = Hex.toBytes("0x000000000000000000000000000000000000000000000000000000000000100073eda753299d7d483339d80809a1d80553bda402fffe5bfeffffffff00000001");
+        assertArrayEquals(output, Precompiles.pointEvaluation(input));
+        // Claimed value is wrong
+        byte[] tampered = input.clone();
+        tampered[95] ^= 1;
+        assertArrayEquals(new byte[0], Precompiles.pointEvaluation(tampered));
+        // Evaluation point is wrong
+        tampered = input.clone();
+        tampered[63] ^= 1;
+        assertArrayEquals(new byte[0], Precompiles.pointEvaluation(tampered));
+        // Proof is wrong (i.e. the negation of the actual proof)
+        tampered = input.clone();
+        tampered[144] ^= 0x20;
+        assertArrayEquals(new byte[0], Precompiles.pointEvaluation(tampered));
+    }
+
+    @Test
+    public void test_kzg_01() {
+        // Linear polynomial f(X) = a + bX with a known setup, where the proof for
+        // f(z) is simply [b]G1.
+        BigInteger tau = new BigInteger("1234567890123456789");
+        BigInteger a = BigInteger.valueOf(42), b = BigInteger.valueOf(7), z = BigInteger.valueOf(3);
+        Kzg kzg = new Kzg(Bls12381.G2.multiply(tau));
+        Point<Fp> commitment = Bls12381.G1.multiply(a.add(b.multiply(tau)));
+        Point<Fp> proof = Bls12381.G1.multiply(b);
+        assertTrue(kzg.verifyProof(commitment, z, a.add(b.multiply(z)), proof));
+        assertFalse(kzg.verifyProof(commitment, z, a.add(b.multiply(z)).add(BigInteger.ONE), proof));
+        assertFalse(kzg.verifyProof(commitment, z.add(BigInteger.ONE), a.add(b.multiply(z)), proof));
+    }
+
+    @Test
+    public void test_fp_01() {
+        // Field arithmetic (in Montgomery form) agrees with BigInteger arithmetic
+        BigInteger[] values = { BigInteger.ZERO, BigInteger.ONE, BigInteger.TWO, Bls12381.P.subtract(BigInteger.ONE),
+                Bls12381.P.shiftRight(1), Bls12381.R, BigInteger.ONE.shiftLeft(380).add(BigInteger.valueOf(12345)) };
+        for (BigInteger x : values) {
+            Fp fx = Fp.of(x);
+            assertEquals(x, fx.toBigInteger());
+            assertEquals(x.negate().mod(Bls12381.P), fx.neg().toBigInteger());
+            if (x.signum() != 0) {
+                assertEquals(x.modInverse(Bls12381.P), fx.inverse().toBigInteger());
+            }
+            for (BigInteger y : values) {
+                Fp fy = Fp.of(y);
+                assertEquals(x.add(y).mod(Bls12381.P), fx.add(fy).toBigInteger());
+                assertEquals(x.subtract(y).mod(Bls12381.P), fx.sub(fy).toBigInteger());
+                assertEquals(x.multiply(y).mod(Bls12381.P), fx.mul(fy).toBigInteger());
+                assertEquals(x.equals(y), fx.equals(fy));
+            }
+        }
+    }
+
+    private static byte[] pointEvaluationInput(byte[] commitment, BigInteger z, BigInteger y, byte[] proof) {
+        byte[] input = new byte[192];
+        System.arraycopy(Kzg.versionedHash(commitment, 0), 0, input, 0, 32);
+        // NOTE: both z and y fit in 255 bits, hence have no sign byte
+        byte[] zs = z.toByteArray(), ys = y.toByteArray();
+        System.arraycopy(zs, 0, input, 64 - zs.length, zs.length);
+        System.arraycopy(ys, 0, input, 96 - ys.length, ys.length);
+        System.arraycopy(commitment, 0, input, 96, 48);
+        System.arraycopy(proof, 0, input, 144, 48);
+        return input;
+    }
+
+    // ==============================================================
+    // Native Implementations
+    // ==============================================================
+
+    @Test
+    public void test_modexp_01() {
+        // 3^5 % 7 == 5
+        byte[] input = modexpInput(1, 1, 1, "030507");
+        assertArrayEquals(Hex.toBytes("0x05"), new NativePrecompiles.ModExp().call(input));
+    }
+
+    @Test
+    public void test_modexp_02() {
+        // Result is padded to length of modulus, and missing input is zero.
+        byte[] input = modexpInput(1, 1, 3, "0305000007");
+        assertArrayEquals(Hex.toBytes("0x000005"), new NativePrecompiles.ModExp().call(input));
+        // Zero modulus
+        input = modexpInput(1, 1, 2, "0305");
+        assertArrayEquals(new byte[2], new NativePrecompiles.ModExp().call(input));
+        // Empty base and modulus
+        input = modexpInput(0, 1, 0, "05");
+        assertArrayEquals(new byte[0], new NativePrecompiles.ModExp().call(input));
+    }
+
+    @Test
+    public void test_modexp_03() {
+        // Lengths which do not fit in an int (e.g. given a large enough gas
+        // limit) fail cleanly, rather than throwing an exception.
+        byte[] input = new byte[98];
+        input[31] = 1;
+        input[59] = 1; // lE = 2^32
+        input[95] = 1;
+        input[96] = 3;
+        input[97] = 2;
+        // Modulus lies beyond the input, hence is zero.
+        assertArrayEquals(new byte[1], new NativePrecompiles.ModExp().call(input));
+        // Same for a large base.
+        input[59] = 0;
+        input[63] = 1;
+        input[27] = 1; // lB = 2^32 + 1
+        assertArrayEquals(new byte[1], new NativePrecompiles.ModExp().call(input));
+        // Output too large to allocate.
+        input[91] = 1; // lM = 2^32 + 1
+        assertNull(new NativePrecompiles.ModExp().call(input));
+    }
+
+    @Test
+    public void test_registry_01() {
+        EvmFork.Fork berlin = DafnyEvm.toFork("Berlin");
+        EvmFork.Fork cancun = DafnyEvm.toFork("Cancun");
+        // Model is used unless natives are explicitly enabled
+        assertEquals(PrecompileRegistry.Mode.MODEL, PrecompileRegistry.load().modeOf(cancun, 5));
+        PrecompileRegistry registry = PrecompileRegistry.load().configure("5=native,Cancun:5=differential");
+        assertEquals(PrecompileRegistry.Mode.MODEL, registry.modeOf(cancun, 4));
+        assertEquals(PrecompileRegistry.Mode.NATIVE, registry.modeOf(berlin, 5));
+        assertEquals(PrecompileRegistry.Mode.DIFFERENTIAL, registry.modeOf(cancun, 5));
+        // No native implementation of BN add
+        registry.mode(PrecompileRegistry.Mode.NATIVE);
+        assertEquals(PrecompileRegistry.Mode.MODEL, registry.modeOf(cancun, 6));
+    }
+
+    @Test
+    public void test_registry_02() {
+        // A broken implementation of the identity function is caught in
+        // differential mode, and the model's result is used.
+        Precompile broken = new NativePrecompiles.Identity() {
+            @Override
+            public String name() {
+                return "broken";
+            }
+
+            @Override
+            public byte[] call(byte[] input) {
+                return new byte[input.length];
+            }
+        };
+        ArrayList<byte[]> mismatches = new ArrayList<>();
+        PrecompileRegistry registry = new PrecompileRegistry(List.of(broken))
+                .mode(PrecompileRegistry.Mode.DIFFERENTIAL)
+                .listener((p, input, expected, actual) -> mismatches.add(input));
+        byte[] input = Hex.toBytes("0x0102");
+        Tuple2<Boolean, DafnySequence<? extends Byte>> output = registry.dispatcher(DafnyEvm.toFork("Berlin"))
+                .dtor_callNative().apply(BigInteger.valueOf(4), DafnySequence.fromBytes(input));
+        assertTrue(output.dtor__0());
+        assertEquals(DafnySequence.fromBytes(input), output.dtor__1());
+        assertEquals(1, mismatches.size());
+    }
+
+    private static byte[] modexpInput(int lB, int lE, int lM, String data) {
+        byte[] bytes = Hex.toBytes("0x" + data);
+        byte[] input = new byte[96 + bytes.length];
+        input[31] = (byte) lB;
+        input[63] = (byte) lE;
+        input[95] = (byte) lM;
+        System.arraycopy(bytes, 0, input, 96, bytes.length);
+        return input;
+    }
+
 //    Commented out because it takes a long time to run due to the number of
 //    rounds. However, it should still pass!
 //    @Test
@@ -0,0 +1,286 @@
+/*
+ * Copyright 2022 ConsenSys Software Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software dis-
+ * tributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package dafnyevm;
+
+import static org.junit.platform.engine.discovery.DiscoverySelectors.selectClass;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.junit.platform.launcher.Launcher;
+import org.junit.platform.launcher.LauncherDiscoveryRequest;
+import org.junit.platform.launcher.core.LauncherDiscoveryRequestBuilder;
+import org.junit.platform.launcher.core.LauncherFactory;
+import org.junit.platform.launcher.listeners.SummaryGeneratingListener;
+import org.junit.platform.reporting.legacy.xml.LegacyXmlReportGeneratingListener;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import dafnyevm.util.Timings;
+
+/**
+ * <p>
+ * Runs the <code>GeneralStateTests</code> across several worker JVMs, each
+ * with its own heap. The test files are partitioned into a given number of
+ * shards by a hash of their path (see <code>GeneralStateTests.shardOf()</code>),
+ * and each shard is run by a separate worker. Since the partition is
+ * deterministic, the shards can also be distributed across several machines
+ * (e.g. CI agents) using <code>-only</code>, with the results merged afterwards
+ * using <code>-merge</code>.
+ * </p>
+ * <p>
+ * Each worker writes a JUnit-style XML report, a timing report and its console
+ * output into its own directory (<code>shard-N</code>) under the output
+ * directory. These are then merged into a single JUnit-style report
+ * (<code>TEST-GeneralStateTests.xml</code>) and a single timing report
+ * (<code>timings.csv</code>), ranked from slowest to fastest.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class ShardedRunner {
+	private static final Option[] OPTIONS = new Option[] {
+			new Option("shards", true, "Number of shards to partition tests into (default 4)."),
+			new Option("jobs", true, "Number of workers to run at once (default number of shards)."),
+			new Option("only", true, "Comma-separated list of shards to run (default all)."),
+			new Option("out", true, "Directory in which to write reports (default build/shards)."),
+			new Option("heap", true, "Maximum heap size for each worker (default 2G)."),
+			new Option("merge", false, "Merge existing reports for each shard in the output directory without running anything."),
+			new Option("worker", true, "Run a given shard in this JVM (used internally).")
+	};
+
+	public static void main(String[] args) throws Exception {
+		CommandLine cmd = parseCommandLine(args);
+		int shards = Integer.parseInt(cmd.getOptionValue("shards", "4"));
+		Path out = Path.of(cmd.getOptionValue("out", "build/shards"));
+		//
+		if (cmd.hasOption("worker")) {
+			int shard = Integer.parseInt(cmd.getOptionValue("worker"));
+			System.exit(runWorker(out.resolve("shard-" + shard)) ? 0 : 1);
+		} else if (cmd.hasOption("merge")) {
+			System.exit(merge(out, shards) ? 0 : 1);
+		} else {
+			List<Integer> selected = new ArrayList<>();
+			if (cmd.hasOption("only")) {
+				for (String s : cmd.getOptionValue("only").split(",")) {
+					selected.add(Integer.parseInt(s.trim()));
+				}
+			} else {
+				for (int i = 0; i != shards; ++i) {
+					selected.add(i);
+				}
+			}
+			int jobs = Integer.parseInt(cmd.getOptionValue("jobs", Integer.toString(selected.size())));
+			String heap = cmd.getOptionValue("heap", "2G");
+			boolean ok = runWorkers(shards, selected, jobs, heap, out);
+			System.exit(merge(out, shards) && ok ? 0 : 1);
+		}
+	}
+
+	public static CommandLine parseCommandLine(String[] args) {
+		// Configure command-line options.
+		Options options = new Options();
+		for(Option o : OPTIONS) { options.addOption(o); }
+		CommandLineParser parser = new DefaultParser();
+		HelpFormatter formatter = new HelpFormatter();
+		try {
+			return parser.parse(options, args);
+		} catch (ParseException e) {
+			System.out.println(e.getMessage());
+			formatter.printHelp("ShardedRunner", options);
+			System.exit(1);
+			return null;
+		}
+	}
+
+	/**
+	 * Run a given set of shards, each in its own worker JVM, with at most a given
+	 * number of workers running at any one time.
+	 *
+	 * @param shards   Total number of shards.
+	 * @param selected Shards to run.
+	 * @param jobs     Maximum number of workers to run at once.
+	 * @param heap     Maximum heap size of each worker.
+	 * @param out      Output directory.
+	 * @return True if every shard passed.
+	 * @throws Exception
+	 */
+	private static boolean runWorkers(int shards, List<Integer> selected, int jobs, String heap, Path out)
+			throws Exception {
+		String java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+		String classpath = System.getProperty("java.class.path");
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, jobs));
+		try {
+			List<Future<Integer>> results = new ArrayList<>();
+			for (int shard : selected) {
+				Path dir = out.resolve("shard-" + shard);
+				Files.createDirectories(dir);
+				ArrayList<String> command = new ArrayList<>();
+				command.add(java);
+				command.add("-Xmx" + heap);
+				command.add("-Xss4m");
+				// Enable the Vector API for workers if it's enabled here
+				if (ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+					command.add("--add-modules");
+					command.add("jdk.incubator.vector");
+				}
+				command.add("-Ddafnyevm.shards=" + shards);
+				command.add("-Ddafnyevm.shard=" + shard);
+				command.add("-Ddafnyevm.timings=" + dir.resolve("timings.csv"));
+				// Pass through options for the test harness
+				for (String p : new String[] { "dafnyevm.fingerprint", "dafnyevm.results", "dafnyevm.force" }) {
+					if (System.getProperty(p) != null) {
+						command.add("-D" + p + "=" + System.getProperty(p));
+					}
+				}
+				command.add("-cp");
+				command.add(classpath);
+				command.add(ShardedRunner.class.getName());
+				command.add("-out");
+				command.add(out.toString());
+				command.add("-worker");
+				command.add(Integer.toString(shard));
+				ProcessBuilder builder = new ProcessBuilder(command).redirectErrorStream(true)
+						.redirectOutput(dir.resolve("output.txt").toFile());
+				results.add(executor.submit(() -> {
+					System.out.println("Running shard " + shard + " of " + shards + "...");
+					int code = builder.start().waitFor();
+					System.out.println("Shard " + shard + (code == 0 ? " passed" : " failed (see " + dir + ")"));
+					return code;
+				}));
+			}
+			boolean ok = true;
+			for (Future<Integer> r : results) {
+				ok &= (r.get() == 0);
+			}
+			return ok;
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Run the state tests for the shard given by the system properties of this
+	 * JVM, writing a JUnit-style report into a given directory.
+	 *
+	 * @param dir
+	 * @return True if all tests passed.
+	 * @throws IOException
+	 */
+	private static boolean runWorker(Path dir) throws IOException {
+		Files.createDirectories(dir);
+		LauncherDiscoveryRequest request = LauncherDiscoveryRequestBuilder.request()
+				.selectors(selectClass(GeneralStateTests.class)).build();
+		Launcher launcher = LauncherFactory.create();
+		SummaryGeneratingListener summary = new SummaryGeneratingListener();
+		PrintWriter console = new PrintWriter(System.out);
+		LegacyXmlReportGeneratingListener xml = new LegacyXmlReportGeneratingListener(dir, console);
+		launcher.execute(request, summary, xml);
+		summary.getSummary().printTo(console);
+		summary.getSummary().printFailuresTo(console, 10);
+		console.flush();
+		return summary.getSummary().getTotalFailureCount() == 0;
+	}
+
+	/**
+	 * Merge the reports of shards <code>0</code> to <code>shards-1</code> found
+	 * in a given output directory. Directories for any other shards (e.g. left
+	 * over from an earlier run with more shards) are ignored.
+	 *
+	 * @param out
+	 * @param shards Total number of shards.
+	 * @return True if no failures or errors were reported.
+	 * @throws Exception
+	 */
+	private static boolean merge(Path out, int shards) throws Exception {
+		List<Path> dirs = new ArrayList<>();
+		for (int i = 0; i != shards; ++i) {
+			Path dir = out.resolve("shard-" + i);
+			if (Files.isDirectory(dir)) {
+				dirs.add(dir);
+			} else {
+				System.out.println("Missing report for shard " + i + " (expected " + dir + ")");
+			}
+		}
+		DocumentBuilder builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+		Document merged = builder.newDocument();
+		Element root = merged.createElement("testsuites");
+		merged.appendChild(root);
+		Timings timings = new Timings();
+		long tests = 0, failures = 0, errors = 0, skipped = 0;
+		double time = 0;
+		//
+		for (Path dir : dirs) {
+			List<Path> reports;
+			try (Stream<Path> s = Files.list(dir)) {
+				reports = s.filter(f -> f.getFileName().toString().endsWith(".xml")).collect(Collectors.toList());
+			}
+			for (Path report : reports) {
+				Element suite = builder.parse(report.toFile()).getDocumentElement();
+				suite.setAttribute("name", suite.getAttribute("name") + " (" + dir.getFileName() + ")");
+				tests += Long.parseLong(suite.getAttribute("tests"));
+				failures += Long.parseLong(suite.getAttribute("failures"));
+				errors += Long.parseLong(suite.getAttribute("errors"));
+				skipped += Long.parseLong(suite.getAttribute("skipped"));
+				time += Double.parseDouble(suite.getAttribute("time"));
+				Node copy = merged.importNode(suite, true);
+				root.appendChild(copy);
+			}
+			Path csv = dir.resolve("timings.csv");
+			if (Files.exists(csv)) {
+				timings.read(csv);
+			}
+		}
+		root.setAttribute("tests", Long.toString(tests));
+		root.setAttribute("failures", Long.toString(failures));
+		root.setAttribute("errors", Long.toString(errors));
+		root.setAttribute("skipped", Long.toString(skipped));
+		root.setAttribute("time", Double.toString(time));
+		// Write merged reports
+		Transformer transformer = TransformerFactory.newInstance().newTransformer();
+		transformer.setOutputProperty(OutputKeys.INDENT, "yes");
+		transformer.transform(new DOMSource(merged), new StreamResult(out.resolve("TEST-GeneralStateTests.xml").toFile()));
+		timings.write(out.resolve("timings.csv"));
+		//
+		System.out.println("Merged " + dirs.size() + " shard(s): " + tests + " tests, " + failures + " failures, "
+				+ errors + " errors, " + skipped + " skipped.");
+		return failures == 0 && errors == 0;
+	}
+}
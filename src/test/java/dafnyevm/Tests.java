@@ -13,11 +13,20 @@
  */
 package dafnyevm;
 
+import java.io.IOException;
 import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.lang3.tuple.Pair;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.web3j.crypto.Hash;
 
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
@@ -29,7 +38,17 @@ import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import dafnyevm.DafnyEvm.BlockInfo;
 import dafnyevm.DafnyEvm.State;
+import dafnyevm.util.BlockHashes;
+import dafnyevm.util.Bloom;
+import dafnyevm.util.CodeCache;
+import dafnyevm.util.Predictor;
+import dafnyevm.util.Receipt;
+import dafnyevm.util.Receipts;
+import dafnyevm.util.ResultCache;
+import dafnyevm.util.StateTrie;
+import dafnyevm.util.Trie;
 import evmtools.util.Hex;
+import evmtools.core.Account;
 import evmtools.core.LegacyTransaction;
 import evmtools.core.Trace;
 import evmtools.core.Transaction;
@@ -1171,6 +1190,42 @@ public class Tests {
 		assertArrayEquals(UINT256(0xcccc), output);
 	}
 
+	@Test
+	public void test_blockhash_01() {
+		// Most recent block
+		DafnyEvm tx = defaultDafnyEvm().blockInfo(blockWithHashes(0x300));
+		byte[] output = callWithReturn(21038, tx,
+				new int[] { PUSH2, 0x02, 0xff, BLOCKHASH, PUSH1, 0x00, MSTORE, PUSH1, 0x20, PUSH1, 0x00, RETURN });
+		assertArrayEquals(UINT256(0x2ff), output);
+	}
+
+	@Test
+	public void test_blockhash_02() {
+		// Oldest block in window
+		DafnyEvm tx = defaultDafnyEvm().blockInfo(blockWithHashes(0x300));
+		byte[] output = callWithReturn(21038, tx,
+				new int[] { PUSH2, 0x02, 0x00, BLOCKHASH, PUSH1, 0x00, MSTORE, PUSH1, 0x20, PUSH1, 0x00, RETURN });
+		assertArrayEquals(UINT256(0x200), output);
+	}
+
+	@Test
+	public void test_blockhash_03() {
+		// Block just outside window
+		DafnyEvm tx = defaultDafnyEvm().blockInfo(blockWithHashes(0x300));
+		byte[] output = callWithReturn(21038, tx,
+				new int[] { PUSH2, 0x01, 0xff, BLOCKHASH, PUSH1, 0x00, MSTORE, PUSH1, 0x20, PUSH1, 0x00, RETURN });
+		assertArrayEquals(UINT256(0), output);
+	}
+
+	@Test
+	public void test_blockhash_04() {
+		// Current block
+		DafnyEvm tx = defaultDafnyEvm().blockInfo(blockWithHashes(0x300));
+		byte[] output = callWithReturn(21038, tx,
+				new int[] { PUSH2, 0x03, 0x00, BLOCKHASH, PUSH1, 0x00, MSTORE, PUSH1, 0x20, PUSH1, 0x00, RETURN });
+		assertArrayEquals(UINT256(0), output);
+	}
+
 	@Test
 	public void test_difficulty_01() {
 		DafnyEvm tx = defaultDafnyEvm().blockInfo(new BlockInfo().gasLimit(DEFAULT_BLOCK_GAS).difficulty(0xcccc));
@@ -2160,6 +2215,91 @@ public class Tests {
 		assertArrayEquals(UINT256(0x456), log[1].getRight());
 	}
 
+	@Test
+	public void test_log_12() {
+		// Log entries record the address of the contract which produced them.
+		DafnyEvm tx = defaultDafnyEvm().create(CONTRACT_1,
+				toBytes(PUSH2, 0x4, 0x56, PUSH1, 0x0, MSTORE, PUSH1, 0x20, PUSH1, 0x0, LOG0));
+		List<Receipt.Log> logs = call(24919, defaultTxCall(), tx, new int[] {
+				PUSH2, 0x1, 0x23, PUSH1, 0x0, MSTORE, PUSH1, 0x20, PUSH1, 0x0, LOG0,
+				PUSH1, 0x20, PUSH1, 0x00, DUP1, DUP1, DUP1, PUSH2, 0xc, 0xcc, PUSH2, 0xff, 0xff, CALL }).getLogs();
+		assertEquals(2, logs.size());
+		assertEquals(DEFAULT_RECEIVER, logs.get(0).address);
+		assertEquals(CONTRACT_1, logs.get(1).address);
+	}
+
+	@Test
+	public void test_receipts_01() {
+		Receipts receipts = new Receipts();
+		// First transaction succeeds, producing one log entry.
+		DafnyEvm evm = defaultDafnyEvm().create(DEFAULT_RECEIVER, toBytes(PUSH1, 0xa0, PUSH1, 0x0, PUSH1, 0x0, LOG1));
+		State<?> r1 = evm.execute(defaultTxCall());
+		Receipt first = receipts.add(defaultTxCall(), r1, evm.gasUsed(defaultTxCall(), r1));
+		assertTrue(first.status);
+		assertEquals(BigInteger.valueOf(21759), first.cumulativeGasUsed);
+		assertEquals(1, first.logs.size());
+		// Second transaction reverts, so its log entry is discarded.
+		evm = defaultDafnyEvm().create(DEFAULT_RECEIVER,
+				toBytes(PUSH1, 0xa0, PUSH1, 0x0, PUSH1, 0x0, LOG1, PUSH1, 0x0, DUP1, REVERT));
+		State<?> r2 = evm.execute(defaultTxCall());
+		Receipt second = receipts.add(defaultTxCall(), r2, evm.gasUsed(defaultTxCall(), r2));
+		assertFalse(second.status);
+		assertEquals(0, second.logs.size());
+		assertTrue(second.cumulativeGasUsed.compareTo(first.cumulativeGasUsed) > 0);
+		assertArrayEquals(new byte[Bloom.SIZE], second.getBloom());
+		// Block bloom includes the emitting contract and topic
+		assertArrayEquals(first.getBloom(), receipts.getBloom());
+		Bloom bloom = new Bloom();
+		bloom.add(first.logs.get(0));
+		assertArrayEquals(bloom.getBytes(), receipts.getBloom());
+		assertEquals(2, receipts.getReceipts().size());
+		assertNotEquals(new BigInteger(1, Trie.EMPTY_ROOT), receipts.root());
+	}
+
+	@Test
+	public void test_receipts_02() {
+		// Block bloom is the union of the blooms of all receipts in the block.
+		Receipts receipts = new Receipts();
+		Receipt.Log l1 = new Receipt.Log(BigInteger.valueOf(0xaaa), new BigInteger[] { BigInteger.ONE }, new byte[0]);
+		Receipt.Log l2 = new Receipt.Log(BigInteger.valueOf(0xbbb), new BigInteger[] { BigInteger.TWO }, new byte[0]);
+		Bloom b1 = new Bloom();
+		b1.add(l1);
+		Bloom b2 = new Bloom();
+		b2.add(l2);
+		Receipt first = receipts.add(0, true, BigInteger.valueOf(21000), List.of(l1), b1);
+		Receipt second = receipts.add(0, true, BigInteger.valueOf(21000), List.of(l2), b2);
+		Bloom expected = new Bloom();
+		expected.add(l1);
+		expected.add(l2);
+		assertArrayEquals(expected.getBytes(), receipts.getBloom());
+		assertFalse(Arrays.equals(first.getBloom(), receipts.getBloom()));
+		// Receipt blooms are unaffected by the block bloom
+		assertArrayEquals(b1.getBytes(), first.getBloom());
+		assertArrayEquals(b2.getBytes(), second.getBloom());
+	}
+
+	// ========================================================================
+	// Result Cache
+	// ========================================================================
+
+	@Test
+	public void test_results_01(@TempDir Path dir) throws IOException {
+		// Results for other engines are discarded, but nothing else is.
+		Path stale = dir.resolve(String.format("%064x", 1) + ".txt");
+		Path other = dir.resolve("other.txt");
+		Path sub = dir.resolve("shard-0");
+		Files.writeString(stale, "");
+		Files.writeString(other, "");
+		Files.createDirectories(sub.resolve("nested"));
+		ResultCache cache = ResultCache.open(dir, false, "full", List.of(other));
+		cache.pass(other, "instance", "Cancun");
+		assertFalse(Files.exists(stale));
+		assertTrue(Files.exists(other));
+		assertTrue(Files.isDirectory(sub.resolve("nested")));
+		// Results are kept across runs with the same engine.
+		assertTrue(ResultCache.open(dir, false, "full", List.of(other)).passed(other, "instance", "Cancun"));
+	}
+
 	// ========================================================================
 	// f0s: System Operations
 	// ========================================================================
@@ -2667,6 +2807,524 @@ public class Tests {
 		assertArrayEquals(UINT256(1), output);
 	}
 
+	// ========================================================================
+	// Tiered Execution
+	// ========================================================================
+
+	@Test
+	public void test_tiered_01() {
+		// Simple loop which counts down from 100.
+		CodeCache cache = differentialCall(0, defaultDafnyEvm(), new int[] {
+				PUSH1, 0x64, JUMPDEST, PUSH1, 0x01, SWAP1, SUB, DUP1, PUSH1, 0x02, JUMPI,
+				PUSH1, 0x00, MSTORE, PUSH1, 0x20, PUSH1, 0x00, RETURN });
+		assertEquals(1, cache.getCompiledCount());
+	}
+
+	@Test
+	public void test_tiered_02() {
+		// Contract which increments storage location 0, called five times from a
+		// loop. This becomes hot part way through the transaction.
+		DafnyEvm evm = defaultDafnyEvm().create(CONTRACT_1,
+				toBytes(PUSH1, 0x01, PUSH1, 0x00, SLOAD, ADD, PUSH1, 0x00, SSTORE, STOP));
+		CodeCache cache = differentialCall(3, evm, new int[] {
+				PUSH1, 0x05, JUMPDEST,
+				// Make contract call to 0xccc with gas 0xffff
+				PUSH1, 0x00, DUP1, DUP1, DUP1, DUP1, PUSH2, 0xc, 0xcc, PUSH2, 0xff, 0xff, CALL, POP,
+				// Decrement counter and loop
+				PUSH1, 0x01, SWAP1, SUB, DUP1, PUSH1, 0x02, JUMPI, STOP });
+		assertEquals(1, cache.getCompiledCount());
+	}
+
+	@Test
+	public void test_tiered_03() {
+		// Jump into the middle of a PUSH, which must be handled by the interpreter.
+		differentialCall(0, defaultDafnyEvm(), new int[] { PUSH1, 0x04, JUMP, PUSH1, JUMPDEST, STOP });
+	}
+
+	@Test
+	public void test_tiered_04() {
+		// Out-of-gas part way through a block.
+		differentialCall(0, defaultDafnyEvm(), new int[] {
+				PUSH1, 0x00, PUSH3, 0xff, 0xff, 0xff, MSTORE, STOP });
+	}
+
+	@Test
+	public void test_tiered_05() {
+		// Stack underflow part way through a block.
+		differentialCall(0, defaultDafnyEvm(), new int[] { PUSH1, 0x01, ADD, ADD, STOP });
+	}
+
+	@Test
+	public void test_tiered_06() {
+		// PUSH0 is not supported in the (default) Berlin fork.
+		differentialCall(0, defaultDafnyEvm(), new int[] { PUSH1, 0x01, 0x5f, STOP });
+	}
+
+	@Test
+	public void test_tiered_07() {
+		// Revert with return data.
+		differentialCall(0, defaultDafnyEvm(), new int[] {
+				PUSH1, 0x7b, PUSH1, 0x00, MSTORE, PUSH1, 0x20, PUSH1, 0x00, REVERT });
+	}
+
+	@Test
+	public void test_tiered_08() {
+		// Compiled code is never used whilst tracing.
+		int[] steps = new int[1];
+		DafnyEvm.Tracer tracer = new DafnyEvm.Tracer() {
+			@Override
+			public void enter(EvmState.State st) {}
+
+			@Override
+			public void leave(int depth, EvmState.State st) {}
+
+			@Override
+			public void step(int depth, EvmState.State_EXECUTING st) {
+				steps[0]++;
+			}
+		};
+		CodeCache cache = new CodeCache(0);
+		DafnyEvm evm = defaultDafnyEvm().tracer(tracer).tiered(cache);
+		evm.create(DEFAULT_RECEIVER, toBytes(PUSH1, 0x01, POP, STOP)).execute(defaultTxCall());
+		assertEquals(3, steps[0]);
+		assertEquals(0, cache.getCompiledCount());
+	}
+
+	@Test
+	public void test_tiered_09() {
+		// Mix of bytecodes with static and dynamic gas costs.
+		differentialCall(0, defaultDafnyEvm(), new int[] {
+				PUSH1, 0x02, PUSH1, 0x03, EXP, PUSH1, 0x01, SHL, DUP1, DUP2, MUL, SWAP1, POP,
+				CALLVALUE, CALLDATASIZE, ADD, ADD, PUSH1, 0x00, MSTORE, PUSH1, 0x2a, PUSH1, 0x20,
+				PUSH1, 0x00, LOG1, PUSH1, 0x2a, PUSH1, 0x00, SSTORE,
+				PUSH1, 0x00, SLOAD, PUSH1, 0x00, MSTORE, PUSH1, 0x20, PUSH1, 0x00, RETURN });
+	}
+
+	// ========================================================================
+	// Imperative Engine
+	// ========================================================================
+
+	@Test
+	public void test_imperative_01() {
+		// Simple loop which counts down from 100.
+		differentialEngine(defaultDafnyEvm(), new int[] {
+				PUSH1, 0x64, JUMPDEST, PUSH1, 0x01, SWAP1, SUB, DUP1, PUSH1, 0x02, JUMPI,
+				PUSH1, 0x00, MSTORE, PUSH1, 0x20, PUSH1, 0x00, RETURN });
+	}
+
+	@Test
+	public void test_imperative_02() {
+		// Contract call from within a loop, where the frame is reloaded after each
+		// call returns.
+		DafnyEvm evm = defaultDafnyEvm().create(CONTRACT_1,
+				toBytes(PUSH1, 0x01, PUSH1, 0x00, SLOAD, ADD, PUSH1, 0x00, SSTORE, STOP));
+		differentialEngine(evm, new int[] {
+				PUSH1, 0x05, JUMPDEST,
+				// Make contract call to 0xccc with gas 0xffff
+				PUSH1, 0x00, DUP1, DUP1, DUP1, DUP1, PUSH2, 0xc, 0xcc, PUSH2, 0xff, 0xff, CALL, POP,
+				// Decrement counter and loop
+				PUSH1, 0x01, SWAP1, SUB, DUP1, PUSH1, 0x02, JUMPI, STOP });
+	}
+
+	@Test
+	public void test_imperative_03() {
+		// Invalid jump destination.
+		differentialEngine(defaultDafnyEvm(), new int[] { PUSH1, 0x04, JUMP, PUSH1, JUMPDEST, STOP });
+	}
+
+	@Test
+	public void test_imperative_04() {
+		// Stack underflow and out-of-gas.
+		differentialEngine(defaultDafnyEvm(), new int[] { PUSH1, 0x01, ADD, ADD, STOP });
+		differentialEngine(defaultDafnyEvm(), new int[] { PUSH1, 0x00, PUSH3, 0xff, 0xff, 0xff, MSTORE, STOP });
+	}
+
+	@Test
+	public void test_imperative_05() {
+		// Mix of bytecodes executed directly on the frame, and those which are not.
+		differentialEngine(defaultDafnyEvm(), new int[] {
+				PUSH1, 0x02, PUSH1, 0x03, EXP, PUSH1, 0x01, SHL, DUP1, DUP2, MUL, SWAP1, POP,
+				DUP1, DUP1, EQ, ISZERO, LT, GT, PUSH1, 0x2a, PUSH1, 0x00, SSTORE,
+				PUSH1, 0x00, SLOAD, PUSH1, 0x00, MSTORE, PUSH1, 0x20, PUSH1, 0x00, RETURN });
+	}
+
+	@Test
+	public void test_imperative_06() {
+		// Memory expanded (beyond the initial buffer) and accessed directly on the
+		// frame, along with storage and bitwise operations.
+		differentialEngine(defaultDafnyEvm(), new int[] {
+				PUSH1, 0x7b, PUSH2, 0x8, 0x0, MSTORE8, PUSH2, 0x7, 0xe1, MLOAD, PUSH1, 0xff, AND,
+				PUSH1, 0x0f, OR, PUSH1, 0x03, XOR, PUSH1, 0x04, SHL, PUSH1, 0x02, SHR, NOT, NOT,
+				PUSH1, 0x1f, BYTE, PUSH1, 0x03, SWAP1, DIV, PUSH1, 0x07, SWAP1, MOD,
+				PUSH1, 0x01, SLOAD, ADD, PUSH1, 0x40, MSTORE, MSIZE, PUSH1, 0x00, MSTORE,
+				PUSH1, 0x60, PUSH1, 0x00, RETURN });
+	}
+
+	@Test
+	public void test_imperative_07() {
+		// Loop which writes successive words of memory.
+		differentialEngine(defaultDafnyEvm(), new int[] {
+				PUSH1, 0x00, JUMPDEST, DUP1, DUP1, MSTORE, PUSH1, 0x20, ADD, DUP1, PUSH2, 0x08, 0x00, GT,
+				PUSH1, 0x02, JUMPI, PC, GAS, CALLER, ADDRESS, CALLVALUE, CALLDATASIZE, PUSH1, 0x00, CALLDATALOAD,
+				PUSH2, 0x08, 0x00, PUSH2, 0x04, 0x00, RETURN });
+	}
+
+	// ========================================================================
+	// Step Counting
+	// ========================================================================
+
+	@Test
+	public void test_counter_01() {
+		// Bytecodes are counted on every untraced path (batched, imperative and
+		// compiled), without falling back to the traced interpreter.
+		int[] code = { PUSH1, 0x02, PUSH1, 0x03, ADD, PUSH1, 0x00, MSTORE, PUSH1, 0x20, PUSH1, 0x00, RETURN };
+		for (DafnyEvm.Engine engine : DafnyEvm.Engine.values()) {
+			DafnyEvm.Counter counter = new DafnyEvm.Counter();
+			defaultDafnyEvm().engine(engine).counter(counter).create(DEFAULT_RECEIVER, toBytes(code))
+					.execute(defaultTxCall());
+			assertEquals(8, counter.getSteps());
+			assertEquals(8, counter.getUntracedSteps());
+		}
+		DafnyEvm.Counter counter = new DafnyEvm.Counter();
+		CodeCache cache = new CodeCache(0);
+		defaultDafnyEvm().tiered(cache).counter(counter).create(DEFAULT_RECEIVER, toBytes(code))
+				.execute(defaultTxCall());
+		assertEquals(1, cache.getCompiledCount());
+		assertEquals(8, counter.getSteps());
+		assertEquals(8, counter.getUntracedSteps());
+	}
+
+	@Test
+	public void test_counter_02() {
+		// Bytecodes executed with a tracer are counted, but not as untraced.
+		DafnyEvm.Counter counter = new DafnyEvm.Counter();
+		DafnyEvm.Tracer tracer = new DafnyEvm.Tracer() {
+			@Override
+			public void enter(EvmState.State st) {}
+
+			@Override
+			public void leave(int depth, EvmState.State st) {}
+
+			@Override
+			public void step(int depth, EvmState.State_EXECUTING st) {}
+		};
+		defaultDafnyEvm().tracer(tracer).counter(counter).create(DEFAULT_RECEIVER, toBytes(PUSH1, 0x01, POP, STOP))
+				.execute(defaultTxCall());
+		assertEquals(3, counter.getSteps());
+		assertEquals(0, counter.getUntracedSteps());
+	}
+
+	// ========================================================================
+	// Call Stack
+	// ========================================================================
+
+	@Test
+	public void test_callstack_01() throws InterruptedException {
+		// Contract which repeatedly calls itself until it runs out of gas. This is
+		// executed on a thread with a small stack, which would overflow if nested
+		// calls were executed recursively.
+		DafnyEvm evm = defaultDafnyEvm().create(DEFAULT_RECEIVER,
+				toBytes(PUSH1, 0x00, DUP1, DUP1, DUP1, DUP1, ADDRESS, GAS, CALL, STOP));
+		State<?>[] result = new State<?>[1];
+		Thread t = new Thread(null, () -> result[0] = evm.execute(defaultTxCall()), "callstack", 256 * 1024);
+		t.start();
+		t.join();
+		assertNotNull(result[0]);
+		assertEquals(Transaction.Outcome.RETURN, result[0].getOutcome());
+	}
+
+	// ========================================================================
+	// State Provider
+	// ========================================================================
+
+	@Test
+	public void test_provider_01() {
+		// Read storage of an account which must be fetched.
+		differentialProvider(Map.of(DEFAULT_RECEIVER, account(0, Map.of(0, 0x7b), new int[] {
+				PUSH1, 0x00, SLOAD, PUSH1, 0x00, MSTORE, PUSH1, 0x20, PUSH1, 0x00, RETURN })));
+	}
+
+	@Test
+	public void test_provider_02() {
+		// Write storage of an account which must be fetched, where the original value
+		// affects the gas charged.
+		differentialProvider(Map.of(DEFAULT_RECEIVER, account(0, Map.of(0, 0x7b, 1, 0x01), new int[] {
+				PUSH1, 0x00, PUSH1, 0x01, SSTORE, PUSH1, 0x01, PUSH1, 0x00, SLOAD, ADD, PUSH1, 0x00, SSTORE,
+				PUSH1, 0x02, SLOAD, PUSH1, 0x00, MSTORE, PUSH1, 0x20, PUSH1, 0x00, RETURN })));
+	}
+
+	@Test
+	public void test_provider_03() {
+		// Balance of accounts which do (and do not) exist.
+		differentialProvider(Map.of(DEFAULT_RECEIVER, account(0, Map.of(), new int[] {
+				PUSH2, 0xc, 0xcc, BALANCE, PUSH2, 0xd, 0xdd, BALANCE, ADD,
+				PUSH1, 0x00, MSTORE, PUSH1, 0x20, PUSH1, 0x00, RETURN }),
+				CONTRACT_1, account(0x100, Map.of(), new int[0])));
+	}
+
+	@Test
+	public void test_provider_04() {
+		// Contract call to an account which must be fetched, which reads its storage
+		// and then reverts. The fetched state must survive the revert.
+		differentialProvider(Map.of(DEFAULT_RECEIVER, account(0, Map.of(), new int[] {
+				PUSH1, 0x00, DUP1, DUP1, DUP1, DUP1, PUSH2, 0xc, 0xcc, PUSH2, 0xff, 0xff, CALL,
+				PUSH2, 0xc, 0xcc, BALANCE, ADD, PUSH1, 0x00, MSTORE, PUSH1, 0x20, PUSH1, 0x00, RETURN }),
+				CONTRACT_1, account(0x100, Map.of(0, 0x2a), new int[] {
+				PUSH1, 0x00, SLOAD, PUSH1, 0x00, MSTORE, PUSH1, 0x20, PUSH1, 0x00, REVERT })));
+	}
+
+	@Test
+	public void test_provider_05() {
+		// Contract creation, where the address being created must be fetched.
+		differentialProvider(Map.of(DEFAULT_RECEIVER, account(0, Map.of(), new int[] {
+				PUSH1, 0x00, DUP1, DUP1, CREATE, PUSH1, 0x00, MSTORE, PUSH1, 0x20, PUSH1, 0x00, RETURN })));
+	}
+
+	@Test
+	public void test_provider_06() {
+		// State for the transaction itself is fetched ahead of execution, after which
+		// nothing further is requested.
+		Map<BigInteger, Account> world = Map.of(DEFAULT_SENDER,
+				new Account(DEFAULT_BALANCE, BigInteger.ZERO, new HashMap<>(), new byte[0]), DEFAULT_RECEIVER,
+				account(0, Map.of(), new int[] { PUSH1, 0x01, PUSH1, 0x00, MSTORE, PUSH1, 0x20, PUSH1, 0x00, RETURN }));
+		AtomicInteger requests = new AtomicInteger();
+		StateProvider provider = StateProvider.fromMap(world);
+		DafnyEvm evm = new DafnyEvm().blockInfo(new BlockInfo().gasLimit(DEFAULT_BLOCK_GAS)).stateProvider(new StateProvider() {
+			@Override
+			public CompletableFuture<Account> account(BigInteger address) {
+				requests.incrementAndGet();
+				return provider.account(address).thenApplyAsync(a -> a);
+			}
+
+			@Override
+			public CompletableFuture<BigInteger> storage(BigInteger address, BigInteger key) {
+				requests.incrementAndGet();
+				return provider.storage(address, key).thenApplyAsync(v -> v);
+			}
+		});
+		LegacyTransaction tx = defaultTxCall();
+		evm.prefetch(tx).join();
+		// Sender, receiver and coinbase
+		assertEquals(3, requests.get());
+		State<?> r = evm.execute(tx);
+		assertEquals(3, requests.get());
+		assertEquals(Transaction.Outcome.RETURN, r.getOutcome());
+		assertArrayEquals(UINT256(1), r.getReturnData());
+	}
+
+	@Test
+	public void test_provider_07() {
+		// Storage keys (and accounts) predicted from the recipient's code are fetched
+		// ahead of execution, including a key computed from calldata.
+		Map<BigInteger, Account> world = Map.of(DEFAULT_SENDER,
+				new Account(DEFAULT_BALANCE, BigInteger.ZERO, new HashMap<>(), new byte[0]), DEFAULT_RECEIVER,
+				account(0, Map.of(5, 0x2a), new int[] {
+						// Read slot 5, and the balance of 0xccc
+						PUSH1, 0x05, SLOAD, PUSH2, 0xc, 0xcc, BALANCE, ADD,
+						// Read slot keccak(calldata[0] . 1)
+						PUSH1, 0x00, CALLDATALOAD, PUSH1, 0x00, MSTORE, PUSH1, 0x01, PUSH1, 0x20, MSTORE,
+						PUSH1, 0x40, PUSH1, 0x00, KECCAK256, SLOAD, ADD,
+						PUSH1, 0x00, MSTORE, PUSH1, 0x20, PUSH1, 0x00, RETURN }));
+		AtomicInteger requests = new AtomicInteger();
+		StateProvider provider = StateProvider.fromMap(world);
+		Predictor.Prediction[] prediction = new Predictor.Prediction[1];
+		DafnyEvm evm = new DafnyEvm().blockInfo(new BlockInfo().gasLimit(DEFAULT_BLOCK_GAS)).stateProvider(new StateProvider() {
+			@Override
+			public CompletableFuture<Account> account(BigInteger address) {
+				requests.incrementAndGet();
+				// Omit storage, so it must be fetched
+				return provider.account(address).thenApplyAsync(a -> a == null ? null : new Account(a.balance, a.nonce, new HashMap<>(), a.code));
+			}
+
+			@Override
+			public CompletableFuture<BigInteger> storage(BigInteger address, BigInteger key) {
+				requests.incrementAndGet();
+				return provider.storage(address, key).thenApplyAsync(v -> v);
+			}
+		}).tracer(new DafnyEvm.TraceAdaptor() {
+			@Override
+			public void enter() {}
+
+			@Override
+			public void step(DafnyEvm.State.Executing state) {}
+
+			@Override
+			public void end(DafnyEvm.State.Return state) {}
+
+			@Override
+			public void exception(DafnyEvm.State.Exception state) {}
+
+			@Override
+			public void predicted(Predictor.Prediction p) {
+				prediction[0] = p;
+			}
+		});
+		LegacyTransaction tx = defaultTxCall();
+		evm.prefetch(tx).join();
+		// Sender, receiver, coinbase, 0xccc and two storage keys
+		assertEquals(6, requests.get());
+		State<?> r = evm.execute(tx);
+		assertEquals(6, requests.get());
+		assertEquals(Transaction.Outcome.RETURN, r.getOutcome());
+		assertArrayEquals(UINT256(0x2a), r.getReturnData());
+		assertEquals(3, prediction[0].getHits());
+		assertEquals(0, prediction[0].getMisses());
+	}
+
+	@Test
+	public void test_provider_08() {
+		// An account fetched after execution has begun (here, by prefetching another
+		// transaction) must still be loaded into the executing transaction. The
+		// address whose balance is read comes from storage, so it cannot be
+		// predicted (and, hence, is not fetched ahead of execution).
+		Map<BigInteger, Account> world = Map.of(DEFAULT_SENDER,
+				new Account(DEFAULT_BALANCE, BigInteger.ZERO, new HashMap<>(), new byte[0]), DEFAULT_RECEIVER,
+				account(0, Map.of(), new int[] {
+						GAS, SLOAD, BALANCE, PUSH1, 0x00, MSTORE, PUSH1, 0x20, PUSH1, 0x00, RETURN }),
+				CONTRACT_1, account(0x100, Map.of(), new int[0]));
+		CompletableFuture<Void> gate = new CompletableFuture<>();
+		AtomicInteger requests = new AtomicInteger();
+		DafnyEvm evm = new DafnyEvm().blockInfo(new BlockInfo().gasLimit(DEFAULT_BLOCK_GAS))
+				.stateProvider(gatedProvider(world, gate, requests));
+		// Execution suspends at the SLOAD, since the receiver's storage is gated.
+		CompletableFuture<State<?>> r1 = evm.executeAsync(defaultTxCall());
+		assertFalse(r1.isDone());
+		// Prefetch a transaction to 0xccc, whilst the first is suspended.
+		evm.prefetch(txCall(CONTRACT_1)).join();
+		gate.complete(null);
+		State<?> r = r1.join();
+		assertEquals(Transaction.Outcome.RETURN, r.getOutcome());
+		assertArrayEquals(UINT256(0x100), r.getReturnData());
+	}
+
+	@Test
+	public void test_provider_09() {
+		// State for the next transaction in a block is prefetched whilst the current
+		// transaction is executing, after which the next transaction executes without
+		// any further requests.
+		Map<BigInteger, Account> world = Map.of(DEFAULT_SENDER,
+				new Account(DEFAULT_BALANCE, BigInteger.ZERO, new HashMap<>(), new byte[0]), DEFAULT_RECEIVER,
+				account(0, Map.of(), new int[] {
+						GAS, SLOAD, PUSH1, 0x00, MSTORE, PUSH1, 0x20, PUSH1, 0x00, RETURN }),
+				CONTRACT_1, account(0, Map.of(5, 0x2a), new int[] {
+						PUSH1, 0x05, SLOAD, PUSH1, 0x00, MSTORE, PUSH1, 0x20, PUSH1, 0x00, RETURN }));
+		CompletableFuture<Void> gate = new CompletableFuture<>();
+		AtomicInteger requests = new AtomicInteger();
+		DafnyEvm evm = new DafnyEvm().blockInfo(new BlockInfo().gasLimit(DEFAULT_BLOCK_GAS))
+				.stateProvider(gatedProvider(world, gate, requests));
+		// Transaction N suspends at the SLOAD, since the receiver's storage is gated.
+		CompletableFuture<State<?>> r1 = evm.executeAsync(defaultTxCall());
+		assertFalse(r1.isDone());
+		// Prefetch transaction N+1 whilst N is still executing.
+		LegacyTransaction tx2 = txCall(CONTRACT_1);
+		evm.prefetch(tx2).join();
+		assertFalse(r1.isDone());
+		int prefetched = requests.get();
+		// Complete transaction N, then execute N+1.
+		gate.complete(null);
+		assertEquals(Transaction.Outcome.RETURN, r1.join().getOutcome());
+		assertArrayEquals(UINT256(0xccc), r1.join().getReturnData());
+		State<?> r2 = evm.execute(tx2);
+		assertEquals(Transaction.Outcome.RETURN, r2.getOutcome());
+		assertArrayEquals(UINT256(0x2a), r2.getReturnData());
+		// Everything needed by N+1 was prefetched.
+		assertEquals(prefetched, requests.get());
+	}
+
+	// ========================================================================
+	// World State
+	// ========================================================================
+
+	@Test
+	public void test_worldstate_01() {
+		// World state constructed in bulk (and in parallel) matches that constructed
+		// one account at a time.
+		HashMap<BigInteger, Account> accounts = new HashMap<>();
+		for (int i = 0; i != 512; ++i) {
+			accounts.put(BigInteger.valueOf(0x10000 + i), account(i, Map.of(i, i + 1), new int[] { PUSH1, i & 0xff, STOP }));
+		}
+		accounts.put(DEFAULT_RECEIVER, account(0, Map.of(0, 1), new int[] {
+				PUSH1, 0x2a, PUSH1, 0x00, SSTORE, PUSH3, 0x01, 0x00, 0x07, BALANCE,
+				PUSH1, 0x00, MSTORE, PUSH1, 0x20, PUSH1, 0x00, RETURN }));
+		DafnyEvm expected = defaultDafnyEvm();
+		for (Map.Entry<BigInteger, Account> e : accounts.entrySet()) {
+			Account a = e.getValue();
+			expected.create(e.getKey(), a.nonce, a.balance, a.storage, a.code);
+		}
+		DafnyEvm actual = defaultDafnyEvm().worldState(accounts);
+		State<?> r1 = expected.execute(defaultTxCall());
+		State<?> r2 = actual.execute(defaultTxCall());
+		assertEquals(Transaction.Outcome.RETURN, r1.getOutcome());
+		assertArrayEquals(UINT256(7), r1.getReturnData());
+		// NOTE: this includes the final world state.
+		assertEquals(r1.toString(), r2.toString());
+	}
+
+	@Test
+	public void test_stateroot_01() {
+		// State root computed incrementally over two transactions matches that
+		// computed from scratch.
+		byte[] code = toBytes(PUSH1, 0x2a, PUSH1, 0x00, SSTORE, PUSH1, 0x01, SLOAD, PUSH1, 0x01, ADD, PUSH1, 0x01,
+				SSTORE, STOP);
+		StateTrie trie = new StateTrie();
+		State<?> r1 = defaultDafnyEvm().stateTrie(trie).create(DEFAULT_RECEIVER, code).execute(defaultTxCall());
+		assertEquals(Transaction.Outcome.RETURN, r1.getOutcome());
+		State.Return ret1 = (State.Return) r1;
+		BigInteger root1 = ret1.stateRoot();
+		DafnyEvm incremental = new DafnyEvm().blockInfo(new BlockInfo().gasLimit(DEFAULT_BLOCK_GAS))
+				.worldState(ret1.getWorldState()).stateTrie(trie);
+		DafnyEvm fresh = new DafnyEvm().blockInfo(new BlockInfo().gasLimit(DEFAULT_BLOCK_GAS))
+				.worldState(ret1.getWorldState());
+		State<?> r2 = incremental.execute(defaultTxCall());
+		State<?> r3 = fresh.execute(defaultTxCall());
+		BigInteger root2 = ((State.Return) r2).stateRoot();
+		assertNotEquals(root1, root2);
+		assertEquals(((State.Return) r3).stateRoot(), root2);
+	}
+
+	@Test
+	public void test_stateroot_02() {
+		// State root computed incrementally over several transactions, where each
+		// is given the post-state of the last (hence, unchanged accounts are
+		// skipped), matches that computed from scratch.
+		byte[] code = toBytes(PUSH1, 0x00, SLOAD, PUSH1, 0x01, ADD, DUP1, PUSH1, 0x00, SSTORE, PUSH1, 0x01, SWAP1,
+				SSTORE, STOP);
+		HashMap<BigInteger, Account> accounts = new HashMap<>();
+		for (int i = 0; i != 64; ++i) {
+			accounts.put(BigInteger.valueOf(0x10000 + i), account(i, Map.of(i, i + 1), new int[] { STOP }));
+		}
+		StateTrie trie = new StateTrie();
+		DafnyEvm evm = defaultDafnyEvm().worldState(accounts).create(DEFAULT_RECEIVER, code).stateTrie(trie);
+		BigInteger last = null;
+		for (int i = 0; i != 4; ++i) {
+			State<?> r = evm.execute(defaultTxCall());
+			assertEquals(Transaction.Outcome.RETURN, r.getOutcome());
+			State.Return ret = (State.Return) r;
+			BigInteger root = ret.stateRoot();
+			assertNotEquals(last, root);
+			assertEquals(new StateTrie().root(ret.state.dtor_world()), root);
+			last = root;
+			evm = new DafnyEvm().blockInfo(new BlockInfo().gasLimit(DEFAULT_BLOCK_GAS))
+					.worldState(ret.getPrestate()).stateTrie(trie);
+		}
+	}
+
+	@Test
+	public void test_trie_01() {
+		Trie trie = new Trie();
+		assertArrayEquals(Hex.toBytes("0x56e81f171bcc55a6ff8345e692c0f86e5b48e01b996cadc001622fb5e363b421"), trie.hash());
+		trie.put("do".getBytes(), "verb".getBytes());
+		trie.put("ether".getBytes(), "wookiedoo".getBytes());
+		trie.put("horse".getBytes(), "stallion".getBytes());
+		trie.put("shaman".getBytes(), "horse".getBytes());
+		trie.put("doge".getBytes(), "coin".getBytes());
+		trie.remove("ether".getBytes());
+		trie.put("dog".getBytes(), "puppy".getBytes());
+		trie.remove("shaman".getBytes());
+		assertEquals(4, trie.size());
+		assertArrayEquals(Hex.toBytes("0x5991bb8c6514148a29db676a14ac506cd2cd5775ace63c30a4fe457715e9ac84"), trie.hash());
+	}
+
 	// ========================================================================
 	// Misc
 	// ========================================================================
@@ -2742,6 +3400,143 @@ public class Tests {
 		assert r.getOutcome().equals(err);
 	}
 
+	/**
+	 * Run a given sequence of bytecodes using both the interpreter and tiered
+	 * execution, and check they produce identical results.
+	 *
+	 * @param threshold The tiered execution threshold to use.
+	 * @param evm The EVM instance to use.
+	 * @param words The EVM bytecode sequence to execute.
+	 * @return The code cache used for tiered execution.
+	 */
+	private CodeCache differentialCall(int threshold, DafnyEvm evm, int[] words) {
+		LegacyTransaction tx = defaultTxCall();
+		CodeCache cache = new CodeCache(threshold);
+		evm = evm.create(DEFAULT_RECEIVER, toBytes(words));
+		State<?> expected = evm.tiered(null).execute(tx);
+		State<?> actual = evm.tiered(cache).execute(tx);
+		// Check both agree
+		assertEquals(expected.getOutcome(), actual.getOutcome());
+		assertEquals(expected.getGas(), actual.getGas());
+		assertArrayEquals(expected.getReturnData(), actual.getReturnData());
+		if (expected instanceof State.Return) {
+			// NOTE: this includes the final world state.
+			assertEquals(expected.toString(), actual.toString());
+		}
+		return cache;
+	}
+
+	/**
+	 * Run a given sequence of bytecodes using both the functional and imperative
+	 * engines, and check they produce identical results.
+	 *
+	 * @param evm The EVM instance to use.
+	 * @param words The EVM bytecode sequence to execute.
+	 */
+	private void differentialEngine(DafnyEvm evm, int[] words) {
+		LegacyTransaction tx = defaultTxCall();
+		evm = evm.create(DEFAULT_RECEIVER, toBytes(words));
+		State<?> expected = evm.engine(DafnyEvm.Engine.FUNCTIONAL).execute(tx);
+		State<?> actual = evm.engine(DafnyEvm.Engine.IMPERATIVE).execute(tx);
+		// Check both agree
+		assertEquals(expected.getOutcome(), actual.getOutcome());
+		assertEquals(expected.getGas(), actual.getGas());
+		assertArrayEquals(expected.getReturnData(), actual.getReturnData());
+		if (expected instanceof State.Return) {
+			// NOTE: this includes the final world state.
+			assertEquals(expected.toString(), actual.toString());
+		}
+	}
+
+	/**
+	 * Run a transaction whose world state is given up front, and again where it
+	 * must instead be fetched (asynchronously) from a state provider, and check
+	 * they produce identical results. The provider omits storage from every
+	 * account, such that it must be fetched separately.
+	 *
+	 * @param accounts The world state (excluding the sender).
+	 */
+	private void differentialProvider(Map<BigInteger, Account> accounts) {
+		LegacyTransaction tx = defaultTxCall();
+		DafnyEvm.BlockInfo block = new BlockInfo().gasLimit(DEFAULT_BLOCK_GAS);
+		HashMap<BigInteger, Account> world = new HashMap<>(accounts);
+		world.put(DEFAULT_SENDER, new Account(DEFAULT_BALANCE, BigInteger.ZERO, new HashMap<>(), new byte[0]));
+		// Execute with world state given up front.
+		DafnyEvm evm = new DafnyEvm().blockInfo(block);
+		for (Map.Entry<BigInteger, Account> e : world.entrySet()) {
+			Account a = e.getValue();
+			evm.create(e.getKey(), a.nonce, a.balance, a.storage, a.code);
+		}
+		State<?> expected = evm.execute(tx);
+		// Execute with world state fetched on demand.
+		AtomicInteger requests = new AtomicInteger();
+		StateProvider provider = new StateProvider() {
+			@Override
+			public CompletableFuture<Account> account(BigInteger address) {
+				requests.incrementAndGet();
+				return CompletableFuture.supplyAsync(() -> {
+					Account a = world.get(address);
+					return (a == null) ? null : new Account(a.balance, a.nonce, new HashMap<>(), a.code);
+				});
+			}
+
+			@Override
+			public CompletableFuture<BigInteger> storage(BigInteger address, BigInteger key) {
+				requests.incrementAndGet();
+				return CompletableFuture.supplyAsync(() -> world.get(address).storage.getOrDefault(key, BigInteger.ZERO));
+			}
+		};
+		State<?> actual = new DafnyEvm().blockInfo(block).stateProvider(provider).executeAsync(tx).join();
+		// Check both agree
+		assertTrue(requests.get() > 0);
+		assertEquals(expected.getOutcome(), actual.getOutcome());
+		assertEquals(expected.getGas(), actual.getGas());
+		assertArrayEquals(expected.getReturnData(), actual.getReturnData());
+	}
+
+	/**
+	 * Construct a state provider for a given world state which omits storage from
+	 * every account, such that it must be fetched separately. Requests for the
+	 * storage of <code>DEFAULT_RECEIVER</code> do not complete until a given gate
+	 * does, and then always yield <code>0xccc</code>. This allows a transaction to
+	 * be held mid-execution. All other requests complete immediately.
+	 *
+	 * @param world    The world state.
+	 * @param gate     Gate for storage requests to the receiver.
+	 * @param requests Counts the number of requests made.
+	 * @return
+	 */
+	private StateProvider gatedProvider(Map<BigInteger, Account> world, CompletableFuture<Void> gate,
+			AtomicInteger requests) {
+		return new StateProvider() {
+			@Override
+			public CompletableFuture<Account> account(BigInteger address) {
+				requests.incrementAndGet();
+				Account a = world.get(address);
+				return CompletableFuture.completedFuture(
+						(a == null) ? null : new Account(a.balance, a.nonce, new HashMap<>(), a.code));
+			}
+
+			@Override
+			public CompletableFuture<BigInteger> storage(BigInteger address, BigInteger key) {
+				requests.incrementAndGet();
+				if (address.equals(DEFAULT_RECEIVER)) {
+					return gate.thenApply(v -> CONTRACT_1);
+				} else {
+					return CompletableFuture.completedFuture(world.get(address).storage.getOrDefault(key, BigInteger.ZERO));
+				}
+			}
+		};
+	}
+
+	private Account account(int balance, Map<Integer, Integer> storage, int[] words) {
+		HashMap<BigInteger, BigInteger> store = new HashMap<>();
+		for (Map.Entry<Integer, Integer> e : storage.entrySet()) {
+			store.put(BigInteger.valueOf(e.getKey()), BigInteger.valueOf(e.getValue()));
+		}
+		return new Account(BigInteger.valueOf(balance), BigInteger.ZERO, store, toBytes(words));
+	}
+
 	private DafnyEvm defaultDafnyEvm() {
 		DafnyEvm.BlockInfo block = new BlockInfo().gasLimit(DEFAULT_BLOCK_GAS);
 	    return new DafnyEvm().blockInfo(block).create(DEFAULT_SENDER, DEFAULT_BALANCE);
@@ -2752,6 +3547,11 @@ public class Tests {
                 DEFAULT_DATA, null, BigInteger.ONE);
     }
 
+    private LegacyTransaction txCall(BigInteger to) {
+        return new LegacyTransaction(DEFAULT_SENDER, null, to, BigInteger.ONE, DEFAULT_GAS, DEFAULT_VALUE,
+                DEFAULT_DATA, null, BigInteger.ONE);
+    }
+
 	/**
 	 * Convert an array of Java ints into an array of bytes. This assumes that every
 	 * int is within bounds for a byte.
@@ -2833,6 +3633,21 @@ public class Tests {
 		return bytes;
 	}
 
+	/**
+	 * Construct a block with the given number, where each previous block
+	 * <code>i</code> has hash <code>i</code>.
+	 *
+	 * @param number
+	 * @return
+	 */
+	private BlockInfo blockWithHashes(long number) {
+		BlockHashes hashes = new BlockHashes(0);
+		for (long i = 0; i < number; ++i) {
+			hashes.advance(BigInteger.valueOf(i));
+		}
+		return new BlockInfo().gasLimit(DEFAULT_BLOCK_GAS).number(number).blockHashes(hashes);
+	}
+
 	/**
 	 * Shift an array of bytes to the left a given amount.
 	 *
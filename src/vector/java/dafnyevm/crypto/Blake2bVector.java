@@ -0,0 +1,105 @@
+/*
+ * Copyright 2022 ConsenSys Software Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software dis-
+ * tributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package dafnyevm.crypto;
+
+import static jdk.incubator.vector.VectorOperators.ROR;
+import static jdk.incubator.vector.VectorOperators.XOR;
+
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorShuffle;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * <p>
+ * Implementation of the Blake2b compression function using the (incubating)
+ * Vector API. The sixteen words of state are held as four rows of four words,
+ * such that the mixing function is applied to all four columns at once.
+ * Rotating the second, third and fourth rows by one, two and three lanes
+ * (respectively) then lines up the diagonals as columns, and rotating them
+ * back restores the original arrangement.
+ * </p>
+ * <p>
+ * This requires the JVM to be started with
+ * <code>--add-modules jdk.incubator.vector</code>. Furthermore, it cannot be
+ * constructed unless the hardware supports 256-bit vectors, since otherwise
+ * the Vector API falls back to a (much slower) emulation.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class Blake2bVector implements Blake2b.Compression {
+    private static final VectorSpecies<Long> SPECIES = LongVector.SPECIES_256;
+    /**
+     * Rotate lanes left by one, two and three positions.
+     */
+    private static final VectorShuffle<Long> ROTATE_1 = VectorShuffle.fromValues(SPECIES, 1, 2, 3, 0);
+    private static final VectorShuffle<Long> ROTATE_2 = VectorShuffle.fromValues(SPECIES, 2, 3, 0, 1);
+    private static final VectorShuffle<Long> ROTATE_3 = VectorShuffle.fromValues(SPECIES, 3, 0, 1, 2);
+
+    public Blake2bVector() {
+        if (LongVector.SPECIES_PREFERRED.vectorBitSize() < SPECIES.vectorBitSize()) {
+            throw new UnsupportedOperationException("256-bit vectors not supported");
+        }
+    }
+
+    @Override
+    public long[] F(long r, long[] h, long[] m, long[] t, boolean f) {
+        long[] iv = Blake2b.IV;
+        LongVector a = LongVector.fromArray(SPECIES, h, 0);
+        LongVector b = LongVector.fromArray(SPECIES, h, 4);
+        LongVector c = LongVector.fromArray(SPECIES, iv, 0);
+        LongVector d = LongVector.fromArray(SPECIES,
+                new long[] { iv[4] ^ t[0], iv[5] ^ t[1], f ? ~iv[6] : iv[6], iv[7] }, 0);
+        // Message words in the order used by each round
+        long[] x = Blake2b.schedule(r, m);
+        int off = 0;
+        // Cryptographic mixing
+        for (long i = 0; i < r; ++i) {
+            // Mix columns
+            a = a.add(b).add(LongVector.fromArray(SPECIES, x, off));
+            d = d.lanewise(XOR, a).lanewise(ROR, 32);
+            c = c.add(d);
+            b = b.lanewise(XOR, c).lanewise(ROR, 24);
+            a = a.add(b).add(LongVector.fromArray(SPECIES, x, off + 4));
+            d = d.lanewise(XOR, a).lanewise(ROR, 16);
+            c = c.add(d);
+            b = b.lanewise(XOR, c).lanewise(ROR, 63);
+            // Line up diagonals as columns
+            b = b.rearrange(ROTATE_1);
+            c = c.rearrange(ROTATE_2);
+            d = d.rearrange(ROTATE_3);
+            // Mix diagonals
+            a = a.add(b).add(LongVector.fromArray(SPECIES, x, off + 8));
+            d = d.lanewise(XOR, a).lanewise(ROR, 32);
+            c = c.add(d);
+            b = b.lanewise(XOR, c).lanewise(ROR, 24);
+            a = a.add(b).add(LongVector.fromArray(SPECIES, x, off + 12));
+            d = d.lanewise(XOR, a).lanewise(ROR, 16);
+            c = c.add(d);
+            b = b.lanewise(XOR, c).lanewise(ROR, 63);
+            // Restore columns
+            b = b.rearrange(ROTATE_3);
+            c = c.rearrange(ROTATE_2);
+            d = d.rearrange(ROTATE_1);
+            // Move to next round
+            off = (off + 16 == x.length) ? 0 : off + 16;
+        }
+        // Xor two halves
+        LongVector.fromArray(SPECIES, h, 0).lanewise(XOR, a).lanewise(XOR, c).intoArray(h, 0);
+        LongVector.fromArray(SPECIES, h, 4).lanewise(XOR, b).lanewise(XOR, d).intoArray(h, 4);
+        //
+        return h;
+    }
+}